@@ -241,6 +241,11 @@ public abstract class AbstractQuery<T extends Table> implements Query<T> {
 
 	@Override
 	public Iterable<Object[]> asIterableOfObjectArrays() {
+		return asIterableOfObjectArrays(false);
+	}
+
+	@Override
+	public Iterable<Object[]> asIterableOfObjectArrays(final boolean reuseArrays) {
 		final Query<T> q = this;
 		return new Iterable<Object[]>() {
 			@Override
@@ -248,6 +253,7 @@ public abstract class AbstractQuery<T extends Table> implements Query<T> {
 				final Iterator<T> it = q.iterator();
 				return new Iterator<Object[]>() {
 					List<Field<?>> fields = q.getSelectFields();
+					Object[] last = null;
 					@Override
 					public boolean hasNext() {
 						return it.hasNext();
@@ -255,7 +261,8 @@ public abstract class AbstractQuery<T extends Table> implements Query<T> {
 					@Override
 					public Object[] next() {
 						final T t = it.next();
-						final Object[] oa = new Object[fields.size()];
+						final Object[] oa = reuseArrays && last != null ? last : new Object[fields.size()];
+						last = oa;
 						for (int i=0; i<oa.length; ++i) {
 							oa[i] = t.get(fields.get(i));
 						}
@@ -699,6 +706,16 @@ public abstract class AbstractQuery<T extends Table> implements Query<T> {
 		return new QuerySnapshot<T>(this, f);
 	}
 
+	@Override
+	public Iterable<T> columnarSnapshot() {
+		return new ColumnarSnapshot<T>(this);
+	}
+
+	@Override
+	public Iterable<T> columnarSnapshot(final File f) {
+		return new ColumnarSnapshot<T>(this, f);
+	}
+
 	@Override
 	public Query<T> select(final Field<?>... fields) {
 		return onlyFields(fields);
@@ -751,6 +768,11 @@ public abstract class AbstractQuery<T extends Table> implements Query<T> {
 		return this;
 	}
 
+	@Override
+	public Query<T> setFetchSize(int rows) {
+		return this;
+	}
+
 	@Override
 	public Iterator<T> iterator() {
 		// TODO Auto-generated method stub
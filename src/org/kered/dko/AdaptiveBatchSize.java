@@ -0,0 +1,66 @@
+package org.kered.dko;
+
+/**
+ * Tunes a batch size from how long batches take to execute. &nbsp; Starting from the initial
+ * size, it doubles the batch size as long as doing so improves throughput (rows per second)
+ * by at least 10%, then settles on the best size found (the "knee" where bigger batches
+ * only add latency). &nbsp; If the database later slows to under half the best throughput
+ * seen, the size is halved and the search starts over from there.
+ *
+ * @author Derek Anderson
+ */
+class AdaptiveBatchSize {
+
+	private static final double GAIN = 1.1;
+	private static final double SLOWDOWN = 0.5;
+
+	private final int max;
+	private int size;
+	private boolean growing = true;
+	private int bestSize;
+	private double bestRate = 0;
+	private double recentRate = 0;
+
+	AdaptiveBatchSize(final int initial, final int max) {
+		this.max = max;
+		this.size = Math.max(1, Math.min(initial, max));
+		this.bestSize = size;
+	}
+
+	int get() {
+		return size;
+	}
+
+	/**
+	 * Records how long a batch took.
+	 */
+	void record(final int rows, final long nanos) {
+		// partial batches (the tail end of a load) don't say much about the batch size
+		if (rows < size || nanos <= 0) return;
+		final double rate = rows * 1e9 / nanos;
+		if (growing) {
+			if (rate > bestRate * GAIN) {
+				bestRate = rate;
+				bestSize = size;
+				if (size < max) {
+					size = Math.min(max, size * 2);
+				} else {
+					growing = false;
+				}
+			} else {
+				growing = false;
+				size = bestSize;
+			}
+			recentRate = bestRate;
+		} else {
+			recentRate = 0.8 * recentRate + 0.2 * rate;
+			if (recentRate < bestRate * SLOWDOWN) {
+				size = Math.max(1, size / 2);
+				bestSize = size;
+				bestRate = recentRate;
+				growing = true;
+			}
+		}
+	}
+
+}
@@ -1,18 +1,36 @@
 package org.kered.dko;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.sql.BatchUpdateException;
+import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sql.DataSource;
 
@@ -47,6 +65,12 @@ public class Bulk {
 	private final DB_TYPE dbType;
 	private final int batchSize;
 	private long rateLimit = -1;
+	private long byteRateLimit = -1;
+	private int maxBatchSize = -1;
+	private boolean multiRowInsert = false;
+	private NativeLoader nativeLoader = null;
+	private int parallelism = 1;
+	private boolean nativeUpsert = false;
 	private static final int DEFAULT_BATCH_SIZE = 64;
 
 	/**
@@ -71,12 +95,178 @@ public class Bulk {
 		dbType = DB_TYPE.detect(ds);
 		this.batchSize = batchSize;
 	}
+
+	/**
+	 * A single threaded copy of another Bulk, for use by its writer threads.
+	 */
+	private Bulk(final Bulk parent) {
+		ds = parent.ds;
+		dbType = parent.dbType;
+		batchSize = parent.batchSize;
+		multiRowInsert = parent.multiRowInsert;
+		nativeLoader = parent.nativeLoader;
+		nativeUpsert = parent.nativeUpsert;
+		maxBatchSize = parent.maxBatchSize;
+	}
 	
+	/**
+	 * Limits how many rows per second are written. &nbsp; Enforced with a token bucket,
+	 * so the rate stays smooth (short bursts of up to a tenth of a second's worth of rows).
+	 * @param limit rows per second, or a non-positive number for no limit
+	 * @return this
+	 */
 	public Bulk setRateLimit(long limit) {
 		this.rateLimit  = limit;
 		return this;
 	}
 
+	/**
+	 * Limits how many bytes of column data per second are written. &nbsp; Sizes are
+	 * estimated from the objects' values (string lengths, array lengths, 8 bytes per number).
+	 * @param limit bytes per second, or a non-positive number for no limit
+	 * @return this
+	 */
+	public Bulk setByteRateLimit(final long limit) {
+		this.byteRateLimit = limit;
+		return this;
+	}
+
+	/**
+	 * Tunes the batch size as the load runs, from how long each batch takes. &nbsp;
+	 * Starting at the batch size this Bulk was constructed with, batches grow for as long
+	 * as bigger batches mean more rows per second, up to {@code maxBatchSize}, and shrink
+	 * again if the database slows down.
+	 * @param maxBatchSize the largest batch to try, or a non-positive number to keep
+	 * the batch size fixed (the default)
+	 * @return this
+	 */
+	public Bulk setAdaptiveBatchSize(final int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+		return this;
+	}
+
+	/**
+	 * Limits the rate of rows (and bytes) handed to the database, for one bulk operation.
+	 */
+	private class Throttle {
+
+		private final TokenBucket rows = rateLimit > 0 ? new TokenBucket(rateLimit) : null;
+		private final TokenBucket bytes = byteRateLimit > 0 ? new TokenBucket(byteRateLimit) : null;
+
+		void acquire(final Table t) throws InterruptedException {
+			if (rows != null) rows.acquire(1);
+			if (bytes != null) bytes.acquire(estimateBytes(t));
+		}
+
+		void acquire(final Object[] values) throws InterruptedException {
+			if (rows != null) rows.acquire(1);
+			if (bytes != null) {
+				long n = 0;
+				for (final Object o : values) n += estimateBytes(o);
+				bytes.acquire(n);
+			}
+		}
+
+		/**
+		 * Like {@code acquire()}, but keeps the thread's interrupted status instead of throwing.
+		 * @return false if interrupted (so the load should stop)
+		 */
+		boolean acquireUnlessInterrupted(final Table t) {
+			try {
+				acquire(t);
+				return true;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+	}
+
+	private static long estimateBytes(final Table t) {
+		long bytes = 0;
+		final List<Field<?>> fields = Util.getFields(t.getClass());
+		for (int i=0; i<fields.size(); ++i) {
+			if (!t.__NOSCO_FETCHED_VALUES.get(i)) continue;
+			bytes += estimateBytes(t.get(fields.get(i)));
+		}
+		return bytes;
+	}
+
+	private static long estimateBytes(final Object o) {
+		if (o == null) return 1;
+		if (o instanceof String) return ((String) o).length();
+		if (o instanceof byte[]) return ((byte[]) o).length;
+		if (o instanceof Blob) {
+			try { return ((Blob) o).length(); }
+			catch (final SQLException e) { return 8; }
+		}
+		if (o instanceof Number || o instanceof Boolean || o instanceof java.util.Date) return 8;
+		return o.toString().length();
+	}
+
+	/**
+	 * Spreads the writes over this many threads, each with its own connection. &nbsp;
+	 * Objects are partitioned by the hash of their primary key (round-robin for objects
+	 * without one), so all writes to a given row go through the same thread, in order. &nbsp;
+	 * Any rate limit applies to all threads combined.
+	 * <p>
+	 * Writer threads don't share the calling thread's {@code Context}, so inside a
+	 * transaction (where the writes must all go through one connection) this is ignored. &nbsp;
+	 * Default: 1
+	 * @param threads
+	 * @return this
+	 */
+	public Bulk setParallelism(final int threads) {
+		if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: "+ threads);
+		this.parallelism = threads;
+		return this;
+	}
+
+	/**
+	 * If true, inserts send many rows per statement ({@code insert ... values (...),(...),...})
+	 * instead of one statement per row. &nbsp; Rows per statement are capped by the batch size
+	 * and by the database's bind parameter limit. &nbsp; Databases that don't support it
+	 * (Oracle and plain SQL92) silently keep inserting one row per statement. &nbsp;
+	 * Default: false
+	 * @param multiRowInsert
+	 * @return this
+	 */
+	public Bulk setMultiRowInsert(final boolean multiRowInsert) {
+		this.multiRowInsert = multiRowInsert;
+		return this;
+	}
+
+	/**
+	 * If true, {@code insertOrUpdateAll()} writes each object with a single upsert statement
+	 * instead of trying an insert and then updating the rows that were rejected. &nbsp;
+	 * Uses {@code ON CONFLICT ... DO UPDATE} (Postgres 9.5+), {@code ON DUPLICATE KEY UPDATE}
+	 * (MySQL), {@code MERGE} (SQL Server, Oracle and HSQL) and {@code INSERT OR REPLACE}
+	 * (SQLite, and only for objects with every column set, as it replaces the whole row). &nbsp;
+	 * Objects without their primary key set, classes with insert or update callbacks
+	 * (as which will apply isn't known in advance) and other databases keep the
+	 * insert-then-update behavior. &nbsp; Each object upserted counts as one row, whether
+	 * it was inserted, updated or already up to date. &nbsp; Default: false
+	 * @param nativeUpsert
+	 * @return this
+	 */
+	public Bulk setNativeUpsert(final boolean nativeUpsert) {
+		this.nativeUpsert = nativeUpsert;
+		return this;
+	}
+
+	/**
+	 * Sets a database specific loader (ie: Postgres's {@code COPY} or MySQL's
+	 * {@code LOAD DATA}) to try before falling back to JDBC batches for inserts.
+	 * @param loader
+	 * @return this
+	 * @see PostgresCopyLoader
+	 */
+	public Bulk setNativeLoader(final NativeLoader loader) {
+		this.nativeLoader = loader;
+		return this;
+	}
+
 	/**
 	 * Inserts all objects from the source iterable into the target DataSource. &nbsp;
 	 * On error aborts. &nbsp;
@@ -101,16 +291,12 @@ public class Bulk {
 	 */
 	public <T extends Table> long insertAll(final Iterable<T> iterable, final StatusCallback callback,
 			final double frequency) throws SQLException {
-		long start = System.currentTimeMillis()-1;
-		long c = 0;
+		if (runParallel()) return parallel(iterable, callback, frequency, Op.INSERT);
+		final Throttle throttle = new Throttle();
 		double lastCallback = System.currentTimeMillis() / 1000.0;
 		final Map<String, Inserter<T>> inserters = new HashMap<String,Inserter<T>>();
 		for (final T t : iterable) {
-			++c;
-			if (rateLimit>0 && c*1000/(System.currentTimeMillis()-start) > rateLimit) {
-				try { Thread.currentThread().sleep(500); }
-				catch (InterruptedException e) { /* ignore */ }
-			}
+			if (!throttle.acquireUnlessInterrupted(t)) break;
 			final String key = t.__NOSCO_FETCHED_VALUES.toString();
 			Inserter<T> inserter = inserters.get(key);
 			if (inserter == null) {
@@ -135,6 +321,215 @@ public class Bulk {
 		return count;
 	}
 
+	/**
+	 * Inserts the rows of a CSV file (with a header row, as written by {@code CSV.write()})
+	 * into {@code cls}'s table. &nbsp; On error aborts.
+	 * @see #insertAllFromCSV(Class, Reader, CSVRejectCallback)
+	 */
+	public <T extends Table> long insertAllFromCSV(final Class<T> cls, final File f) throws SQLException {
+		return insertAllFromCSV(cls, f, null);
+	}
+
+	/**
+	 * Inserts the rows of a CSV file (with a header row, as written by {@code CSV.write()})
+	 * into {@code cls}'s table.
+	 * @see #insertAllFromCSV(Class, Reader, CSVRejectCallback)
+	 */
+	public <T extends Table> long insertAllFromCSV(final Class<T> cls, final File f,
+			final CSVRejectCallback rejects) throws SQLException {
+		final Reader r;
+		try {
+			r = new FileReader(f);
+		} catch (final FileNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+		try {
+			return insertAllFromCSV(cls, r, rejects);
+		} finally {
+			try {
+				r.close();
+			} catch (final IOException e) {
+				// we're done with it anyway
+			}
+		}
+	}
+
+	/**
+	 * Inserts CSV rows straight into {@code cls}'s table, without creating an object per
+	 * row. &nbsp; The header row is matched to the class's fields (other columns are ignored),
+	 * and each cell is converted to its field's type and bound directly to the insert. &nbsp;
+	 * Parsing runs on its own thread, ahead of the inserts; with {@code setParallelism()}
+	 * the batches are inserted by several threads at once.
+	 * <p>
+	 * If {@code rejects} is null, any bad row aborts the load. &nbsp; Otherwise rows that
+	 * can't be parsed, and rows the database won't accept (found the same way as
+	 * {@code insertAll()}'s rejects), are reported to it by line number and the load carries on. &nbsp;
+	 * As no objects are created, insert callbacks aren't called.
+	 * @param cls
+	 * @param r
+	 * @param rejects
+	 * @return the number of rows inserted
+	 * @throws SQLException
+	 */
+	public <T extends Table> long insertAllFromCSV(final Class<T> cls, final Reader r,
+			final CSVRejectCallback rejects) throws SQLException {
+		final CSVParser parser = new CSVParser(r);
+		try {
+			if (!parser.next()) return 0;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		final CSV.RowBuilder<T> builder = new CSV.RowBuilder<T>(cls, parser);
+		final CSVRejectCallback rc = rejects==null ? null : new CSVRejectCallback() {
+			@Override
+			public synchronized void reject(final long line, final Exception e) {
+				// called from the parsing and all the writing threads
+				rejects.reject(line, e);
+			}
+		};
+		final int writers = runParallel() ? parallelism : 1;
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(writers * 2);
+		final WorkerThreads workers = new WorkerThreads();
+		final AtomicLong count = new AtomicLong();
+
+		workers.start("DKO csv parser", new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				final Throttle throttle = new Throttle();
+				try {
+					CSVBatch batch = new CSVBatch(batchSize);
+					while (parser.next()) {
+						final Object[] values;
+						try {
+							values = builder.convert(parser);
+						} catch (final IllegalArgumentException e) {
+							if (rc == null) throw e;
+							rc.reject(parser.getLineNumber(), e);
+							continue;
+						}
+						throttle.acquire(values);
+						batch.add(values, parser.getLineNumber());
+						if (batch.size == batchSize) {
+							if (!workers.hand(queue, batch)) return null;
+							batch = new CSVBatch(batchSize);
+						}
+					}
+					if (batch.size > 0) workers.hand(queue, batch);
+				} finally {
+					for (int i=0; i<writers; ++i) {
+						if (!workers.hand(queue, END)) break;
+					}
+				}
+				return null;
+			}
+		});
+		final Callable<Void> inserter = new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				new CSVInserter(cls, builder, rc).run(new QueueIterable<CSVBatch>(queue, workers.failure), count);
+				return null;
+			}
+		};
+		for (int i=1; i<writers; ++i) workers.start("DKO bulk writer "+ i, inserter);
+		// the calling thread writes too, so it uses any transaction in its Context
+		workers.call(inserter);
+		workers.join();
+		return count.get();
+	}
+
+	/**
+	 * Called with the rows {@code insertAllFromCSV()} couldn't insert.
+	 * @author Derek Anderson
+	 */
+	public static interface CSVRejectCallback {
+		/**
+		 * @param line the (one based) line number the rejected row started on
+		 * @param e why it was rejected
+		 */
+		public void reject(long line, Exception e);
+	}
+
+	/**
+	 * A batch of parsed CSV rows, and the line numbers they came from.
+	 */
+	private static class CSVBatch {
+		final Object[][] rows;
+		final long[] lines;
+		int size = 0;
+		CSVBatch(final int capacity) {
+			rows = new Object[capacity][];
+			lines = new long[capacity];
+		}
+		void add(final Object[] row, final long line) {
+			rows[size] = row;
+			lines[size++] = line;
+		}
+	}
+
+	/**
+	 * Inserts batches of parsed CSV rows from a queue, binding their values directly.
+	 */
+	private class CSVInserter {
+
+		private final Field<?>[] fields;
+		// for mapping any custom column types back to their database types
+		private final Table prototype;
+		private final CSVRejectCallback rc;
+		private final String sql;
+
+		<T extends Table> CSVInserter(final Class<T> cls, final CSV.RowBuilder<T> builder,
+				final CSVRejectCallback rc) {
+			this.fields = builder.fields;
+			this.prototype = builder.empty();
+			this.rc = rc;
+			final StringBuilder row = new StringBuilder();
+			for (int i=0; i<fields.length; ++i) row.append(i==0 ? "?" : ",?");
+			sql = "insert into "+ getTableName(cls) +" ("+ Util.joinFields(dbType, ", ", fields)
+					+") values ("+ row +")";
+		}
+
+		void run(final Iterable<CSVBatch> batches, final AtomicLong count) throws SQLException {
+			final Tuple2<Connection, Boolean> connInfo = DBQuery.getConnRW(ds);
+			final Connection conn = connInfo.a;
+			final boolean shouldCloseConn = connInfo.b;
+			PreparedStatement ps = null;
+			try {
+				Util.log(sql, null);
+				ps = conn.prepareStatement(sql);
+				for (final CSVBatch batch : batches) {
+					count.addAndGet(write(conn, shouldCloseConn, ps, batch));
+				}
+			} finally {
+				safeClose(ps);
+				if (shouldCloseConn) {
+					if (!conn.getAutoCommit()) conn.commit();
+					safeClose(conn);
+				}
+			}
+		}
+
+		private long write(final Connection conn, final boolean shouldCloseConn,
+				final PreparedStatement ps, final CSVBatch batch) throws SQLException {
+			return new BatchWriter() {
+				@Override
+				void bind(final PreparedStatement ps, final int i) throws SQLException {
+					CSVInserter.this.bind(ps, batch.rows[i]);
+				}
+				@Override
+				void reject(final int i, final SQLException e) {
+					rc.reject(batch.lines[i], e);
+				}
+			}.write(conn, shouldCloseConn, ps, 0, batch.size, rc != null);
+		}
+
+		private void bind(final PreparedStatement ps, final Object[] row) throws SQLException {
+			for (int j=0; j<fields.length; ++j) {
+				Util.setBindingWithTypeFixes(ps, j+1, prototype.__NOSCO_PRIVATE_mapType(row[j]));
+			}
+		}
+
+	}
+
 	private static void safeClose(final PreparedStatement ps) {
 		// c3p0 sometimes throws a NPE on isClosed()
 		try { if (ps != null && !ps.isClosed()) ps.close(); }
@@ -171,17 +566,13 @@ public class Bulk {
 	 */
 	public <T extends Table> long updateAll(final Iterable<T> iterable, final StatusCallback callback,
 			final double frequency) throws SQLException {
-		long start = System.currentTimeMillis()-1;
-		long c = 0;
+		if (runParallel()) return parallel(iterable, callback, frequency, Op.UPDATE);
+		final Throttle throttle = new Throttle();
 		double lastCallback = System.currentTimeMillis() / 1000.0;
 		final Map<String, Updater<T>> updaters = new HashMap<String,Updater<T>>();
 		for (final T t : iterable) {
 			if (t.__NOSCO_UPDATED_VALUES==null) continue;
-			++c;
-			if (rateLimit>0 && c*1000/(System.currentTimeMillis()-start) > rateLimit) {
-				try { Thread.sleep(500); }
-				catch (InterruptedException e) { /* ignore */ }
-			}
+			if (!throttle.acquireUnlessInterrupted(t)) break;
 			final String key = t.__NOSCO_UPDATED_VALUES.toString();
 			Updater<T> updater = updaters.get(key);
 			if (updater == null) {
@@ -207,10 +598,132 @@ public class Bulk {
 		return count;
 	}
 
+	/**
+	 * @return the table name, qualified by whatever schema the Context says to use
+	 */
+	private String getTableName(final Class<? extends Table> cls) {
+		final String sep = dbType==DB_TYPE.SQLSERVER ? ".dbo." : ".";
+		final String schema = Context.getSchemaToUse(ds, Util.getSchemaName(cls));
+		return (schema==null || "".equals(schema) ? "" : schema+sep) + Util.getTableName(cls);
+	}
+
+	/**
+	 * Writes a range of rows as a JDBC batch. &nbsp; If the batch fails and rejects are
+	 * wanted, the bad rows are found (from the driver's update counts where it reports
+	 * them, otherwise by bisecting the batch) and reported, and the rest are written.
+	 */
+	private static abstract class BatchWriter {
+
+		abstract void bind(PreparedStatement ps, int i) throws SQLException;
+
+		abstract void reject(int i, SQLException e);
+
+		/**
+		 * @return the number of rows written by a statement with this update count
+		 */
+		int rowCount(final int updateCount) {
+			return updateCount;
+		}
+
+		/**
+		 * @return the number of rows written
+		 */
+		long write(final Connection conn, final boolean shouldCloseConn, final PreparedStatement ps,
+				final int start, final int end, final boolean findRejects) throws SQLException {
+			long count = 0;
+			// ranges still to be written, worked through in order (and iteratively, so a
+			// batch full of bad rows can't overflow the stack)
+			final ArrayDeque<int[]> todo = new ArrayDeque<int[]>();
+			todo.push(new int[] {start, end});
+			while (!todo.isEmpty()) {
+				final int[] range = todo.pop();
+				final int s = range[0];
+				final int e = range[1];
+				for (int i=s; i<e; ++i) {
+					bind(ps, i);
+					ps.addBatch();
+				}
+				try {
+					final int[] batchResults = ps.executeBatch();
+					if (shouldCloseConn && !conn.getAutoCommit()) conn.commit();
+					for (final int k : batchResults) count += rowCount(succeeded(k));
+				} catch (final BatchUpdateException ex) {
+					final boolean rolledBack = shouldCloseConn && !conn.getAutoCommit();
+					if (rolledBack) conn.rollback();
+					if (!findRejects) throw ex;
+					ps.clearBatch();
+					if (e - s == 1) {
+						reject(s, ex);
+						continue;
+					}
+					final int[] batchResults = ex.getUpdateCounts()==null ? new int[0] : ex.getUpdateCounts();
+					if (batchResults.length < e - s) {
+						// some JDBC drivers (*cough* HSQL *cough*) stop immediately if any
+						// row throws an exception, so the row after the last reported one is
+						// bad and the ones after it haven't been tried yet.
+						final int bad = s + batchResults.length;
+						if (bad+1 < e) todo.push(new int[] {bad+1, e});
+						reject(bad, ex);
+						if (rolledBack) {
+							if (s < bad) todo.push(new int[] {s, bad});
+						} else {
+							for (int i=0; i<batchResults.length; ++i) {
+								if (failed(batchResults[i])) reject(s+i, ex);
+								else count += rowCount(succeeded(batchResults[i]));
+							}
+						}
+					} else if (!allFailed(batchResults)) {
+						// every row was tried, and we know which ones failed
+						for (int i=0; i<batchResults.length; ++i) {
+							if (failed(batchResults[i])) reject(s+i, ex);
+							else if (!rolledBack) count += rowCount(succeeded(batchResults[i]));
+						}
+						if (rolledBack) {
+							// the good rows were rolled back with the bad, so write each run of
+							// them again (pushed last to first, so they're written in order)
+							for (int i=batchResults.length; i>0; ) {
+								while (i > 0 && failed(batchResults[i-1])) --i;
+								final int runEnd = i;
+								while (i > 0 && !failed(batchResults[i-1])) --i;
+								if (i < runEnd) todo.push(new int[] {s+i, s+runEnd});
+							}
+						}
+					} else {
+						// the driver reports the whole batch as failed (ie: mysql's rewritten
+						// batches), so bisect to find the bad rows in O(k log n) batches
+						final int mid = (s + e) >>> 1;
+						todo.push(new int[] {mid, e});
+						todo.push(new int[] {s, mid});
+					}
+				}
+			}
+			return count;
+		}
+
+		private static int succeeded(final int k) {
+			// from oracle's docs:  a value of -2 indicates that a element was processed
+			// successfully, but that the number of effected rows is unknown.
+			return k==Statement.SUCCESS_NO_INFO ? 1 : k;
+		}
+
+		private static boolean failed(final int k) {
+			return k==Statement.EXECUTE_FAILED || k==0;
+		}
+
+		private static boolean allFailed(final int[] batchResults) {
+			for (final int k : batchResults) {
+				if (!failed(k)) return false;
+			}
+			return true;
+		}
+
+	}
+
 	private class Doer<T extends Table> {
 
 		@SuppressWarnings("unchecked")
-		private final T[] buffer = (T[]) new Table[batchSize];
+		protected final T[] buffer = (T[]) new Table[Math.max(batchSize, maxBatchSize)];
+		private final AdaptiveBatchSize sizer = maxBatchSize > 0 ? new AdaptiveBatchSize(batchSize, buffer.length) : null;
 		private int pos = 0;
 		protected boolean init = false;
 		protected Field<?>[] fields;
@@ -218,6 +731,9 @@ public class Bulk {
 		protected Method pre = null;
 		protected Method post = null;
 		protected PreparedStatement ps;
+		// optional statement inserting rowsPerStatement rows at once
+		protected PreparedStatement multiPs = null;
+		protected int rowsPerStatement = 1;
 		protected Boolean shouldCloseConn = true;
 		private boolean finished = false;
 		long count = 0;
@@ -226,7 +742,7 @@ public class Bulk {
 
 		boolean push(final T t) throws SQLException {
 			buffer[pos++] = t;
-			if (pos == buffer.length) {
+			if (pos == (sizer == null ? buffer.length : sizer.get())) {
 				pushBatch();
 				return true;
 			}
@@ -249,7 +765,9 @@ public class Bulk {
 					throw new RuntimeException(e);
 				}
 			}
-			executeBatch(0, pos);
+			final long start = System.nanoTime();
+			if (!loadNatively(0, pos)) executeBatch(0, pos);
+			if (sizer != null) sizer.record(pos, System.nanoTime() - start);
 			if (post != null) {
 				try {
 					final Object[] cba = (Object[]) Array.newInstance(clazz, pos);
@@ -266,63 +784,92 @@ public class Bulk {
 			pos = 0;
 		}
 
-		private void executeBatch(final int start, final int end) throws SQLException, BatchUpdateException {
-			//System.err.println("executing batch of " + (end-start));
-			for (int i=start; i<end; ++i) {
-				final Table table = buffer[i];
+		/**
+		 * @return the number of objects written by a statement with this update count
+		 */
+		protected int rowCount(final int updateCount) {
+			return updateCount;
+		}
+
+		/**
+		 * @return true if the rows were loaded by something other than the JDBC batch
+		 */
+		protected boolean loadNatively(final int start, final int end) throws SQLException {
+			return false;
+		}
+
+		private void executeBatch(final int start, final int end) throws SQLException {
+			int i = start;
+			if (multiPs != null) {
+				final int full = start + (end - start) / rowsPerStatement * rowsPerStatement;
+				if (full > start) executeMultiRowBatch(start, full);
+				i = full;
+			}
+			// whatever doesn't fill a multi-row statement goes in one row at a time
+			if (i < end) executeSingleRowBatch(i, end);
+		}
+
+		private int bind(final PreparedStatement ps, final Table table, int k) throws SQLException {
+			for (int j=0; j<fields.length; ++j) {
+				final Field<?> field = fields[j];
+				Object o = table.get(field);
+				o = table.__NOSCO_PRIVATE_mapType(o);
+				Util.setBindingWithTypeFixes(ps, k, o);
+				++k;
+			}
+			return k;
+		}
+
+		private void executeMultiRowBatch(final int start, final int end) throws SQLException {
+			for (int i=start; i<end; i+=rowsPerStatement) {
 				int k=1;
-				for (int j=0; j<fields.length; ++j) {
-					final Field<?> field = fields[j];
-					Object o = table.get(field);
-					o = table.__NOSCO_PRIVATE_mapType(o);
-					Util.setBindingWithTypeFixes(ps, k, o);
-					++k;
-					//System.err.print(o + ", ");
-				}
-				//System.err.println();
-				ps.addBatch();
+				for (int j=i; j<i+rowsPerStatement; ++j) k = bind(multiPs, buffer[j], k);
+				multiPs.addBatch();
 			}
 			try {
-				//System.err.println("executing batch of " + (end-start));
-				final int[] batchResults = ps.executeBatch();
-				//System.err.println("... done! "+ Util.join(",", batchResults));
+				final int[] batchResults = multiPs.executeBatch();
 				if (shouldCloseConn && !conn.getAutoCommit()) conn.commit();
-				//System.err.println("... committed!");
-				for (int k : batchResults) {
-					if (dbType==DB_TYPE.ORACLE && k==-2) {
-						// from oracle's docs:  a value of -2 indicates that a element was processed 
-						// successfully, but that the number of effected rows is unknown.
-						k = 1;
-					}
-					count += k;
+				for (final int k : batchResults) {
+					count += k==Statement.SUCCESS_NO_INFO ? rowsPerStatement : k;
 				}
-			} catch (final BatchUpdateException e) {
-				if (shouldCloseConn && !conn.getAutoCommit()) conn.rollback();
+			} catch (final SQLException e) {
+				final boolean rolledBack = shouldCloseConn && !conn.getAutoCommit();
+				if (rolledBack) conn.rollback();
 				if (rc == null) throw e;
-				final int[] batchResults = e.getUpdateCounts();
-				//System.err.println(e);
-				//System.err.println(e.getCause());
-				//System.err.print("batchResults("+ batchResults.length +") ");
-				final List<T> rejects = new ArrayList<T>();
-				for (int i=0; i<batchResults.length; ++i) {
-					//System.err.print(" " + batchResults[i] +":"+ buffer[start+i]);
-					if (batchResults[i]<=0) rejects.add(buffer[start+i]);
-					else count += batchResults[i];
-				}
-				//System.err.println();
-				if (batchResults.length < end-start) {
-					// some JDBC drivers (*cough* HSQL *cough*) stop immediately if any
-					// row throws an exception.  (instead of trying all rows and reporting
-					// which rows throw an exception)  this behavior sucks because it forces
-					// you to resubmit each object individually to the db if they all fail,
-					// completely eliminating the benefit of batch operations!
-					rejects.add(buffer[start + batchResults.length]);
-					if (start+1 < end) executeBatch(start+1, end);
-				}
-				rc.reject(rejects);
+				multiPs.clearBatch();
+				final int[] batchResults = !rolledBack && e instanceof BatchUpdateException
+						? ((BatchUpdateException) e).getUpdateCounts() : new int[0];
+				// a multi-row statement fails as a whole, so resubmit the rows of every
+				// failed statement one at a time to find out which were rejected
+				for (int c=0, i=start; i<end; ++c, i+=rowsPerStatement) {
+					if (c < batchResults.length && batchResults[c] != Statement.EXECUTE_FAILED) {
+						count += batchResults[c]==Statement.SUCCESS_NO_INFO ? rowsPerStatement : batchResults[c];
+					} else {
+						executeSingleRowBatch(i, i+rowsPerStatement);
+					}
+				}
 			}
 		}
 
+		private void executeSingleRowBatch(final int start, final int end) throws SQLException {
+			final List<T> rejects = new ArrayList<T>();
+			count += new BatchWriter() {
+				@Override
+				void bind(final PreparedStatement ps, final int i) throws SQLException {
+					Doer.this.bind(ps, buffer[i], 1);
+				}
+				@Override
+				void reject(final int i, final SQLException e) {
+					rejects.add(buffer[i]);
+				}
+				@Override
+				int rowCount(final int updateCount) {
+					return Doer.this.rowCount(updateCount);
+				}
+			}.write(conn, shouldCloseConn, ps, start, end, rc != null);
+			if (!rejects.isEmpty()) rc.reject(rejects);
+		}
+
 		protected void init(final Table table) throws SQLException {
 			init = true;
 			clazz = table.getClass();
@@ -334,6 +881,7 @@ public class Bulk {
 		void finish() throws SQLException {
 			if (pos > 0) pushBatch();
 			safeClose(ps);
+			safeClose(multiPs);
 			if (shouldCloseConn) {
 				if (conn != null && !conn.getAutoCommit()) conn.commit();
 				safeClose(conn);
@@ -351,12 +899,42 @@ public class Bulk {
 
 	private class Inserter<T extends Table> extends Doer<T> {
 
+		private String tableName;
+		private String[] columns;
+
 		public Inserter() {}
 
 		Inserter(final RejectCallback<T> rc) {
 			this.rc  = rc;
 		}
 
+		@Override
+		protected boolean loadNatively(final int start, final int end) throws SQLException {
+			if (nativeLoader == null) return false;
+			final List<Object[]> rows = new ArrayList<Object[]>(end - start);
+			for (int i=start; i<end; ++i) {
+				final Table table = buffer[i];
+				final Object[] row = new Object[fields.length];
+				for (int j=0; j<fields.length; ++j) {
+					row[j] = table.__NOSCO_PRIVATE_mapType(table.get(fields[j]));
+				}
+				rows.add(row);
+			}
+			final long loaded;
+			try {
+				loaded = nativeLoader.load(conn, dbType, tableName, columns, rows);
+			} catch (final SQLException e) {
+				if (shouldCloseConn && !conn.getAutoCommit()) conn.rollback();
+				if (rc == null) throw e;
+				// let the batch path sort out which rows were rejected
+				return false;
+			}
+			if (loaded < 0) return false;
+			count += loaded;
+			if (shouldCloseConn && !conn.getAutoCommit()) conn.commit();
+			return true;
+		}
+
 		protected void init(final Table table) throws SQLException {
 			super.init(table);
 			final List<Field<?>> allFields = Util.getFields(table.getClass());
@@ -382,22 +960,42 @@ public class Bulk {
 			catch (final IllegalAccessException e) { /* ignore */ }
 
 			// create the statement
-			final String sep = dbType==DB_TYPE.SQLSERVER ? ".dbo." : ".";
 			final StringBuffer sb = new StringBuffer();
 			sb.append("insert into ");
-			String schema = Context.getSchemaToUse(ds, Util.getSchemaName(table.getClass()));
-			sb.append((schema==null || "".equals(schema) ? "" : schema+sep) + Util.getTableName(table.getClass()));
+			tableName = getTableName(table.getClass());
+			columns = new String[fields.length];
+			for (int i=0; i<fields.length; ++i) columns[i] = fields[i].getSQL(dbType);
+			sb.append(tableName);
 			sb.append(" (");
 			sb.append(Util.joinFields(dbType, ", ", fields));
-			sb.append(") values (");
+			sb.append(") values ");
+			final StringBuffer row = new StringBuffer();
+			row.append("(");
 			for (int i=0; i<fields.length; ++i) {
-				sb.append("?,");
+				row.append("?,");
 			}
-			sb.deleteCharAt(sb.length()-1);
-			sb.append(")");
+			row.deleteCharAt(row.length()-1);
+			row.append(")");
+			final int prefixLength = sb.length();
+			sb.append(row);
 			final String sql = sb.toString();
 			Util.log(sql, null);
 			ps = conn.prepareStatement(sql);
+
+			if (multiRowInsert && fields.length > 0) {
+				rowsPerStatement = Math.min(batchSize, Math.min(dbType.getMaxRowsPerInsert(),
+						dbType.getMaxBindParameters() / fields.length));
+				if (rowsPerStatement > 1) {
+					sb.setLength(prefixLength);
+					for (int i=0; i<rowsPerStatement; ++i) {
+						if (i > 0) sb.append(",");
+						sb.append(row);
+					}
+					final String multiSql = sb.toString();
+					Util.log(multiSql, null);
+					multiPs = conn.prepareStatement(multiSql);
+				}
+			}
 		}
 
 	}
@@ -470,6 +1068,135 @@ public class Bulk {
 
 	}
 
+	private static final String[] CALLBACKS = {"__NOSCO_CALLBACK_INSERT_PRE", "__NOSCO_CALLBACK_INSERT_POST",
+		"__NOSCO_CALLBACK_UPDATE_PRE", "__NOSCO_CALLBACK_UPDATE_POST"};
+
+	/**
+	 * @return true if this object can be written with an {@code Upserter}
+	 */
+	private boolean canUpsert(final Table t) {
+		switch (dbType) {
+		case POSTGRES: case MYSQL: case SQLSERVER: case ORACLE: case HSQL: case SQLITE3: break;
+		default: return false;
+		}
+		final Field.PK<?> pk = Util.getPK(t);
+		if (pk == null) return false;
+		for (final Field<?> field : pk.GET_FIELDS()) {
+			if (!t.__NOSCO_FETCHED_VALUES.get(field.INDEX)) return false;
+		}
+		if (dbType==DB_TYPE.SQLITE3 &&
+				t.__NOSCO_FETCHED_VALUES.cardinality() < Util.getFields(t.getClass()).size()) {
+			return false;
+		}
+		for (final String name : CALLBACKS) {
+			try {
+				final java.lang.reflect.Field callback = t.getClass().getDeclaredField(name);
+				callback.setAccessible(true);
+				if (callback.get(null) != null) return false;
+			}
+			catch (final NoSuchFieldException e) { /* ignore */ }
+			catch (final SecurityException e) { return false; }
+			catch (final IllegalAccessException e) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Inserts objects, or updates their changed fields if their primary key already exists,
+	 * in one statement per object.
+	 */
+	private class Upserter<T extends Table> extends Doer<T> {
+
+		Upserter() {}
+
+		@Override
+		protected int rowCount(final int updateCount) {
+			// one per object upserted - mysql reports 2 for a row that was updated instead
+			// of inserted, and 0 (like postgres's "do nothing") for a row left as it was
+			return 1;
+		}
+
+		@Override
+		protected void init(final Table table) throws SQLException {
+			super.init(table);
+			final List<Field<?>> allFields = Util.getFields(table.getClass());
+			final List<Field<?>> pks = Util.getPK(table).GET_FIELDS();
+			final List<Field<?>> inserts = new ArrayList<Field<?>>();
+			final List<Field<?>> updates = new ArrayList<Field<?>>();
+			for (int i=0; i<allFields.size(); ++i) {
+				final Field<?> field = allFields.get(i);
+				if (table.__NOSCO_FETCHED_VALUES.get(i)) inserts.add(field);
+				if (table.__NOSCO_UPDATED_VALUES.get(i) && !pks.contains(field)) updates.add(field);
+			}
+
+			final String tableName = getTableName(table.getClass());
+			final StringBuffer values = new StringBuffer();
+			values.append("(");
+			for (int i=0; i<inserts.size(); ++i) {
+				values.append(i==0 ? "?" : ",?");
+			}
+			values.append(")");
+			final List<Field<?>> bindings = new ArrayList<Field<?>>();
+			final StringBuffer sb = new StringBuffer();
+			if (dbType==DB_TYPE.POSTGRES || dbType==DB_TYPE.MYSQL || dbType==DB_TYPE.SQLITE3) {
+				sb.append(dbType==DB_TYPE.SQLITE3 ? "insert or replace into " : "insert into ");
+				sb.append(tableName);
+				sb.append(" (");
+				sb.append(Util.joinFields(dbType, ", ", inserts));
+				sb.append(") values ");
+				sb.append(values);
+				bindings.addAll(inserts);
+				if (dbType==DB_TYPE.POSTGRES) {
+					sb.append(" on conflict (");
+					sb.append(Util.joinFields(dbType, ", ", pks));
+					sb.append(updates.isEmpty() ? ") do nothing" : ") do update set ");
+					for (int i=0; i<updates.size(); ++i) {
+						final String name = updates.get(i).getSQL(dbType);
+						if (i > 0) sb.append(", ");
+						sb.append(name).append("=excluded.").append(name);
+					}
+				} else if (dbType==DB_TYPE.MYSQL) {
+					sb.append(" on duplicate key update ");
+					// with nothing to update, a no-op keeps the duplicate from being an error
+					final List<Field<?>> set = updates.isEmpty() ? pks.subList(0, 1) : updates;
+					for (int i=0; i<set.size(); ++i) {
+						final String name = set.get(i).getSQL(dbType);
+						if (i > 0) sb.append(", ");
+						sb.append(name).append("=values(").append(name).append(")");
+					}
+				}
+			} else {
+				// merge, with the values bound in place so the database knows their types
+				sb.append("merge into ").append(tableName).append(" dko_target using ");
+				sb.append(dbType==DB_TYPE.ORACLE ? "dual" : "(values(0)) dko_source(dko_none)");
+				sb.append(" on (");
+				for (int i=0; i<pks.size(); ++i) {
+					if (i > 0) sb.append(" and ");
+					sb.append("dko_target.").append(pks.get(i).getSQL(dbType)).append("=?");
+					bindings.add(pks.get(i));
+				}
+				sb.append(")");
+				if (!updates.isEmpty()) {
+					sb.append(" when matched then update set ");
+					sb.append(Util.joinFields(dbType, "=?, ", updates));
+					sb.append("=?");
+					bindings.addAll(updates);
+				}
+				sb.append(" when not matched then insert (");
+				sb.append(Util.joinFields(dbType, ", ", inserts));
+				sb.append(") values ");
+				sb.append(values);
+				bindings.addAll(inserts);
+				if (dbType==DB_TYPE.SQLSERVER) sb.append(";");
+			}
+			fields = bindings.toArray(new Field[bindings.size()]);
+			final String sql = sb.toString();
+			Util.log(sql, null);
+			ps = conn.prepareStatement(sql);
+		}
+
+	}
+
 	private class Deleter<T extends Table> extends Doer<T> {
 
 		Deleter() {}
@@ -534,47 +1261,58 @@ public class Bulk {
 	 */
 	public <T extends Table> long insertOrUpdateAll(final Iterable<T> iterable, final StatusCallback callback,
 			final double frequency) throws SQLException {
-		long start = System.currentTimeMillis()-1;
-		long c = 0;
+		if (runParallel()) return parallel(iterable, callback, frequency, Op.INSERT_OR_UPDATE);
+		final Throttle throttle = new Throttle();
 		double lastCallback = System.currentTimeMillis() / 1000.0;
 		final Map<String, Inserter<T>> inserters = new HashMap<String,Inserter<T>>();
 		final Map<String, Updater<T>> updaters = new HashMap<String,Updater<T>>();
+		final Map<String, Upserter<T>> upserters = new HashMap<String,Upserter<T>>();
 		final List<T> rejects = new ArrayList<T>();
 		for (final T t : iterable) {
 			if (t.__NOSCO_UPDATED_VALUES==null) continue;
-			++c;
-			if (rateLimit>0 && c*1000/(System.currentTimeMillis()-start) > rateLimit) {
-				try { Thread.currentThread().sleep(500); }
-				catch (InterruptedException e) { /* ignore */ }
-			}
+			if (!throttle.acquireUnlessInterrupted(t)) break;
 			// we use a string for the key because the bitset could change out from under us
 			final String insertKey = t.__NOSCO_FETCHED_VALUES.toString();
-			Inserter<T> inserter = inserters.get(insertKey);
-			if (inserter == null) {
-				inserter = new Inserter<T>(new RejectCallback<T>() {
-					@Override
-					void reject(final Collection<T> rs) {
-						rejects.addAll(rs);
-						//System.err.println("found rejects "+ rs.size());
-					}
-				});
-				inserters.put(insertKey, inserter);
-			}
-			inserter.push(t);
-			if (!rejects.isEmpty()) {
-				for (final T r : rejects) {
-					//System.err.println("reject: "+ r);
-					final String key = r.__NOSCO_UPDATED_VALUES.toString();
-					Updater<T> updater = updaters.get(key);
-					if (updater == null) {
-						//System.err.println("updaters.size(): "+ updaters.size());
-						//System.err.println("r.__NOSCO_UPDATED_VALUES: "+ key);
-						updater = new Updater<T>();
-						updaters.put(key, updater);
+			Upserter<T> upserter = null;
+			if (nativeUpsert) {
+				final String upsertKey = insertKey +"/"+ t.__NOSCO_UPDATED_VALUES;
+				upserter = upserters.get(upsertKey);
+				if (upserter == null && !upserters.containsKey(upsertKey)) {
+					// a null value means these objects have to be inserted then updated
+					upserter = canUpsert(t) ? new Upserter<T>() : null;
+					upserters.put(upsertKey, upserter);
+				}
+			}
+			if (upserter != null) {
+				upserter.push(t);
+			} else {
+				Inserter<T> inserter = inserters.get(insertKey);
+				if (inserter == null) {
+					inserter = new Inserter<T>(new RejectCallback<T>() {
+						@Override
+						void reject(final Collection<T> rs) {
+							rejects.addAll(rs);
+							//System.err.println("found rejects "+ rs.size());
+						}
+					});
+					inserters.put(insertKey, inserter);
+				}
+				inserter.push(t);
+				if (!rejects.isEmpty()) {
+					for (final T r : rejects) {
+						//System.err.println("reject: "+ r);
+						final String key = r.__NOSCO_UPDATED_VALUES.toString();
+						Updater<T> updater = updaters.get(key);
+						if (updater == null) {
+							//System.err.println("updaters.size(): "+ updaters.size());
+							//System.err.println("r.__NOSCO_UPDATED_VALUES: "+ key);
+							updater = new Updater<T>();
+							updaters.put(key, updater);
+						}
+						updater.push(r);
 					}
-					updater.push(r);
+					rejects.clear();
 				}
-				rejects.clear();
 			}
 			if (callback!=null && ((System.currentTimeMillis()/1000.0) - lastCallback > frequency)) {
 				long count = 0;
@@ -584,6 +1322,9 @@ public class Bulk {
 				for (final Updater<T> u : updaters.values()) {
 					count += u.count;
 				}
+				for (final Upserter<T> u : upserters.values()) {
+					if (u != null) count += u.count;
+				}
 				callback.call(count);
 				lastCallback = System.currentTimeMillis() / 1000.0;
 			}
@@ -608,6 +1349,11 @@ public class Bulk {
 			updater.finish();
 			count += updater.count;
 		}
+		for (final Upserter<T> upserter : upserters.values()) {
+			if (upserter == null) continue;
+			upserter.finish();
+			count += upserter.count;
+		}
 		return count;
 	}
 
@@ -631,16 +1377,12 @@ public class Bulk {
 	 */
 	public <T extends Table> long deleteAll(final Iterable<T> iterable, final StatusCallback callback,
 			final double frequency) throws SQLException {
-		long start = System.currentTimeMillis()-1;
-		long c = 0;
+		if (runParallel()) return parallel(iterable, callback, frequency, Op.DELETE);
+		final Throttle throttle = new Throttle();
 		double lastCallback = System.currentTimeMillis() / 1000.0;
 		final Deleter<T> deleter = new Deleter<T>();
 		for (final T t : iterable) {
-			++c;
-			if (rateLimit>0 && c*1000/(System.currentTimeMillis()-start) > rateLimit) {
-				try { Thread.currentThread().sleep(500); }
-				catch (InterruptedException e) { /* ignore */ }
-			}
+			if (!throttle.acquireUnlessInterrupted(t)) break;
 			deleter.push(t);
 			if (callback!=null && ((System.currentTimeMillis()/1000.0) - lastCallback > frequency)) {
 				callback.call(deleter.count);
@@ -651,6 +1393,229 @@ public class Bulk {
 		return deleter.count;
 	}
 
+	private static enum Op { INSERT, UPDATE, INSERT_OR_UPDATE, DELETE }
+
+	// marks the end of a writer thread's queue
+	private static final Object END = new Object();
+
+	private boolean runParallel() {
+		return parallelism > 1 && !Context.inTransaction(ds);
+	}
+
+	/**
+	 * Feeds the objects from the calling thread to {@code parallelism} writer threads,
+	 * each running the normal single threaded operation over its own bounded queue.
+	 */
+	private <T extends Table> long parallel(final Iterable<T> iterable, final StatusCallback callback,
+			final double frequency, final Op op) throws SQLException {
+		final AtomicLongArray counts = new AtomicLongArray(parallelism);
+		final WorkerThreads workers = new WorkerThreads();
+		final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>(parallelism);
+		for (int i=0; i<parallelism; ++i) {
+			final int worker = i;
+			final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(batchSize * 2);
+			queues.add(queue);
+			final Bulk bulk = new Bulk(this);
+			final StatusCallback status = new StatusCallback() {
+				@Override
+				public void call(final long count) {
+					counts.set(worker, count);
+				}
+			};
+			workers.start("DKO bulk writer "+ i, new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					final Iterable<T> objects = new QueueIterable<T>(queue, workers.failure);
+					try {
+						final long count;
+						switch (op) {
+						case INSERT: count = bulk.insertAll(objects, status, 0); break;
+						case UPDATE: count = bulk.updateAll(objects, status, 0); break;
+						case INSERT_OR_UPDATE: count = bulk.insertOrUpdateAll(objects, status, 0); break;
+						default: count = bulk.deleteAll(objects, status, 0); break;
+						}
+						counts.set(worker, count);
+					} catch (final Exception e) {
+						// unblock the feeding thread
+						queue.clear();
+						throw e;
+					}
+					return null;
+				}
+			});
+		}
+
+		final Throttle throttle = new Throttle();
+		long roundRobin = 0;
+		double lastCallback = System.currentTimeMillis() / 1000.0;
+		try {
+			for (final T t : iterable) {
+				throttle.acquire(t);
+				final Object key = getPartitionKey(t);
+				final long hash = key==null ? roundRobin++ : key.hashCode() & Integer.MAX_VALUE;
+				if (!workers.hand(queues.get((int) (hash % parallelism)), t)) break;
+				if (callback!=null && ((System.currentTimeMillis()/1000.0) - lastCallback > frequency)) {
+					long count = 0;
+					for (int i=0; i<parallelism; ++i) count += counts.get(i);
+					callback.call(count);
+					lastCallback = System.currentTimeMillis() / 1000.0;
+				}
+			}
+		} catch (final InterruptedException e) {
+			// stop feeding, but let the writers finish what they've been given
+			workers.interrupted = true;
+		} finally {
+			for (final BlockingQueue<Object> queue : queues) {
+				try {
+					workers.hand(queue, END);
+				} catch (final InterruptedException e) {
+					workers.interrupted = true;
+				}
+			}
+			workers.join();
+		}
+		long count = 0;
+		for (int i=0; i<parallelism; ++i) count += counts.get(i);
+		return count;
+	}
+
+	/**
+	 * The threads of a parallel bulk operation (see {@code parallel()} and
+	 * {@code insertAllFromCSV()}), and the first failure among them.
+	 */
+	private class WorkerThreads {
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		private final List<Thread> threads = new ArrayList<Thread>();
+		// if the calling thread was interrupted along the way
+		boolean interrupted = false;
+
+		void start(final String name, final Callable<?> work) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					call(work);
+				}
+			}, name);
+			threads.add(thread);
+			thread.start();
+		}
+
+		/**
+		 * Runs some of the work on the calling thread, recording any failure like the others.
+		 */
+		void call(final Callable<?> work) {
+			try {
+				work.call();
+			} catch (final Throwable e) {
+				failure.compareAndSet(null, e);
+			}
+		}
+
+		/**
+		 * @return false if a thread has failed (whose consumers stop by themselves - see
+		 * {@code QueueIterable})
+		 */
+		boolean hand(final BlockingQueue<Object> queue, final Object o) throws InterruptedException {
+			while (failure.get() == null) {
+				if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Waits for every thread to finish, then rethrows the first failure.
+		 */
+		void join() throws SQLException {
+			for (final Thread thread : threads) {
+				while (true) {
+					try {
+						thread.join();
+						break;
+					} catch (final InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			// the worker threads' contexts are thrown away - read-your-writes is for this one
+			Context.recordWrite(ds);
+			final Throwable e = failure.get();
+			if (e instanceof SQLException) throw (SQLException) e;
+			if (e instanceof RuntimeException) throw (RuntimeException) e;
+			if (e instanceof Error) throw (Error) e;
+			if (e != null) throw new RuntimeException(e);
+		}
+
+	}
+
+	/**
+	 * @return the object's primary key values, or null if it doesn't have them all
+	 */
+	private static Object getPartitionKey(final Table t) {
+		final Field.PK<?> pk = Util.getPK(t);
+		if (pk == null) return null;
+		final List<Field<?>> pkFields = pk.GET_FIELDS();
+		if (pkFields.size() == 1) {
+			final Field<?> f = pkFields.get(0);
+			return t.__NOSCO_FETCHED_VALUES.get(f.INDEX) ? t.get(f) : null;
+		}
+		final List<Object> key = new ArrayList<Object>(pkFields.size());
+		for (final Field<?> f : pkFields) {
+			if (!t.__NOSCO_FETCHED_VALUES.get(f.INDEX)) return null;
+			key.add(t.get(f));
+		}
+		return key;
+	}
+
+	/**
+	 * Iterates over the objects handed to a writer thread, up to {@code END} (or until
+	 * another thread fails, as {@code END} may then never come).
+	 */
+	private static class QueueIterable<T> implements Iterable<T> {
+
+		private final BlockingQueue<Object> queue;
+		private final AtomicReference<Throwable> failure;
+
+		QueueIterable(final BlockingQueue<Object> queue, final AtomicReference<Throwable> failure) {
+			this.queue = queue;
+			this.failure = failure;
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return new Iterator<T>() {
+				private Object next = null;
+				@Override
+				public boolean hasNext() {
+					while (next == null) {
+						try {
+							next = queue.poll(100, TimeUnit.MILLISECONDS);
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+							next = END;
+						}
+						if (next == null && failure.get() != null) next = END;
+					}
+					return next != END;
+				}
+				@SuppressWarnings("unchecked")
+				@Override
+				public T next() {
+					if (!hasNext()) throw new NoSuchElementException();
+					final T t = (T) next;
+					next = null;
+					return t;
+				}
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+	}
+
 	/**
 	 * A callback interface for bulk load operations. &nbsp; Calls with the current
 	 * count of rows inserted, updated or deleted every {@code frequency} seconds
@@ -661,6 +1626,83 @@ public class Bulk {
 		public void call(long count);
 	}
 
+	/**
+	 * A database specific bulk loading path (ie: Postgres's {@code COPY} or MySQL's
+	 * {@code LOAD DATA LOCAL INFILE}). &nbsp; See {@code Bulk.setNativeLoader()}.
+	 * @author Derek Anderson
+	 */
+	public static interface NativeLoader {
+		/**
+		 * Loads a batch of rows into a table.
+		 * @param conn the connection the batch would have used
+		 * @param dbType
+		 * @param table the (schema qualified) table name
+		 * @param columns the column names, in the same order as each row's values
+		 * @param rows
+		 * @return the number of rows loaded, or -1 if these rows can't be loaded
+		 * this way (in which case they're sent as a normal JDBC batch)
+		 * @throws SQLException
+		 */
+		public long load(Connection conn, DB_TYPE dbType, String table, String[] columns,
+				List<Object[]> rows) throws SQLException;
+	}
+
+	/**
+	 * Loads rows into Postgres with {@code COPY ... FROM STDIN}. &nbsp; The Postgres driver
+	 * is called reflectively, so this has no compile time dependency on it. &nbsp;
+	 * Falls back to JDBC batches for other databases and for binary columns.
+	 * @author Derek Anderson
+	 */
+	public static class PostgresCopyLoader implements NativeLoader {
+
+		@Override
+		public long load(final Connection conn, final DB_TYPE dbType, final String table,
+				final String[] columns, final List<Object[]> rows) throws SQLException {
+			if (dbType != DB_TYPE.POSTGRES) return -1;
+			final StringBuilder data = new StringBuilder();
+			for (final Object[] row : rows) {
+				for (int i=0; i<row.length; ++i) {
+					if (i > 0) data.append(',');
+					final Object o = row[i];
+					// an unquoted empty value is null in COPY's csv format
+					if (o == null) continue;
+					if (o instanceof byte[] || o instanceof Blob) return -1;
+					data.append('"').append(o.toString().replace("\"", "\"\"")).append('"');
+				}
+				data.append('\n');
+			}
+			final String sql = "COPY "+ table +" ("+ Util.join(", ", columns) +") FROM STDIN WITH CSV";
+			Util.log(sql, null);
+			try {
+				final Class<?> baseConnection = Class.forName("org.postgresql.core.BaseConnection");
+				final Class<?> copyManager = Class.forName("org.postgresql.copy.CopyManager");
+				final Object pgConn;
+				try {
+					pgConn = conn.unwrap(baseConnection);
+				} catch (final SQLException e) {
+					// not (or not wrapping) a Postgres driver connection
+					return -1;
+				}
+				final Object copier = copyManager.getConstructor(baseConnection).newInstance(pgConn);
+				final Method copyIn = copyManager.getMethod("copyIn", String.class, Reader.class);
+				return (Long) copyIn.invoke(copier, sql, new StringReader(data.toString()));
+			} catch (final InvocationTargetException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof SQLException) throw (SQLException) cause;
+				throw new RuntimeException(cause);
+			} catch (final ClassNotFoundException e) {
+				return -1;
+			} catch (final NoSuchMethodException e) {
+				return -1;
+			} catch (final InstantiationException e) {
+				return -1;
+			} catch (final IllegalAccessException e) {
+				return -1;
+			}
+		}
+
+	}
+
 	static abstract class RejectCallback<T extends Table> {
 		abstract void reject(final Collection<T> rejects);
 	}
@@ -1,19 +1,40 @@
 package org.kered.dko;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.kered.dko.Field.PK;
 
@@ -33,7 +54,7 @@ public class CSV {
 	 * @throws IOException
 	 */
 	public static <T extends Table> long write(final Iterable<T> items, final Writer w) throws IOException {
-		final long count = 0;
+		long count = 0;
 		boolean first = true;
 		List<Field<?>> fields = null;
 		for (final T t : items) {
@@ -64,15 +85,18 @@ public class CSV {
 					final Object o = t.get(f);
 					if (o != null) {
 						String s = o.toString();
-						if (s.contains(",") || s.contains("\"") || s.length()==0) {
+						if (s.contains(",") || s.contains("\"") || s.contains("\n") || s.contains("\r")
+								|| s.length()==0) {
 							s = "\"" + s.replace("\"", "\"\"") + "\"";
 						}
 						w.write(s);
 					}
-					if (i < fields.size()-1) w.write(',');
 				}
+				// unfetched fields are written as nulls, to keep the columns lined up
+				if (i < fields.size()-1) w.write(',');
 			}
 			w.write('\n');
+			++count;
 		}
 		return count;
 	}
@@ -92,6 +116,7 @@ public class CSV {
 		return count;
 	}
 
+
 	/**
 	 * Creates an iterable of objects of type cls from a CSV file.
 	 * Note that this iterable will always try to read from the reader.  (no caching)
@@ -100,21 +125,12 @@ public class CSV {
 	 * @return
 	 */
 	public static <T extends Table> Iterable<T> read(final Class<T> cls, final Reader r) {
-		try {
-			final Constructor<T> constructor = (Constructor<T>) cls.getDeclaredConstructor(
-					new Field[0].getClass(), new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
-			constructor.setAccessible(true);
-			return new Iterable<T>() {
-				@Override
-				public Iterator<T> iterator() {
-					return createIterator(cls, constructor, r, false);
-				}
-			};
-		} catch (final SecurityException e) {
-			throw new RuntimeException(e);
-		} catch (final NoSuchMethodException e) {
-			throw new RuntimeException(e);
-		}
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return createIterator(cls, r, false);
+			}
+		};
 	}
 
 	/**
@@ -124,132 +140,281 @@ public class CSV {
 	 * @return
 	 */
 	public static <T extends Table> Iterable<T> read(final Class<T> cls, final File f) {
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				try {
+					return createIterator(cls, new FileReader(f), true);
+				} catch (final FileNotFoundException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Creates an iterable of objects of type cls from a CSV file, parsing it in parallel.
+	 * &nbsp; The file is memory mapped and split into chunks of several megabytes (at
+	 * record boundaries, found by a quick scan that only tracks quoting), and the chunks
+	 * are parsed by {@code threads} threads. &nbsp; Objects are still returned in file order.
+	 * <p>
+	 * The file is read in the platform's default charset, which must be ASCII compatible
+	 * (such as UTF-8 or ISO-8859-1) for the chunks to split cleanly.
+	 * @param cls
+	 * @param f
+	 * @param threads
+	 * @return
+	 */
+	public static <T extends Table> Iterable<T> read(final Class<T> cls, final File f, final int threads) {
+		if (threads <= 1) return read(cls, f);
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				try {
+					return new ChunkIterator<T>(cls, f, threads);
+				} catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Converts a CSV cell to a field's type.
+	 */
+	static interface Converter {
+		Object convert(String s);
+	}
+
+	private static final Map<Class<?>,Converter> converters = new HashMap<Class<?>,Converter>();
+	static {
+		converters.put(String.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return s;
+			}
+		});
+		converters.put(Object.class, converters.get(String.class));
+		converters.put(Integer.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return Integer.valueOf(s.trim());
+			}
+		});
+		converters.put(Long.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return Long.valueOf(s.trim());
+			}
+		});
+		converters.put(Short.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return Short.valueOf(s.trim());
+			}
+		});
+		converters.put(Byte.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return Byte.valueOf(s.trim());
+			}
+		});
+		converters.put(Double.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return Double.valueOf(s.trim());
+			}
+		});
+		converters.put(Float.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return Float.valueOf(s.trim());
+			}
+		});
+		converters.put(BigDecimal.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return new BigDecimal(s.trim());
+			}
+		});
+		converters.put(BigInteger.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return new BigInteger(s.trim());
+			}
+		});
+		converters.put(Boolean.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				final String v = s.trim();
+				return "true".equalsIgnoreCase(v) || "1".equals(v);
+			}
+		});
+		converters.put(Character.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return s.length() == 0 ? null : s.charAt(0);
+			}
+		});
+		converters.put(Timestamp.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return Timestamp.valueOf(s.trim());
+			}
+		});
+		converters.put(java.sql.Date.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return java.sql.Date.valueOf(s.trim());
+			}
+		});
+		converters.put(Time.class, new Converter() {
+			@Override
+			public Object convert(final String s) {
+				return Time.valueOf(s.trim());
+			}
+		});
+	}
+
+	/**
+	 * @return a converter for the type, falling back to its {@code String} constructor
+	 * for types we don't know about
+	 */
+	static Converter getConverter(final Class<?> type) {
+		final Converter converter = converters.get(type);
+		if (converter != null) return converter;
 		try {
-			final Constructor<T> constructor = (Constructor<T>) cls.getDeclaredConstructor(
-					new Expression.Select[0].getClass(), new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
-			constructor.setAccessible(true);
-			return new Iterable<T>() {
+			final Constructor<?> constructor = type.getDeclaredConstructor(String.class);
+			if (!constructor.isAccessible()) constructor.setAccessible(true);
+			return new Converter() {
 				@Override
-				public Iterator<T> iterator() {
+				public Object convert(final String s) {
 					try {
-						return createIterator(cls, constructor, new FileReader(f), true);
-					} catch (final FileNotFoundException e) {
+						return constructor.newInstance(s.trim());
+					} catch (final InvocationTargetException e) {
+						throw new RuntimeException(e.getCause());
+					} catch (final Exception e) {
 						throw new RuntimeException(e);
 					}
 				}
 			};
-		} catch (final SecurityException e) {
-			throw new RuntimeException(e);
 		} catch (final NoSuchMethodException e) {
-			throw new RuntimeException(e);
+			throw new RuntimeException("don't know how to read a "+ type.getName() +" from a CSV file", e);
+		}
+	}
+
+	/**
+	 * Maps the columns of a CSV file (by its header row) to the fields of a class, and
+	 * builds objects out of records. &nbsp; Columns that aren't fields of the class are ignored.
+	 */
+	static class RowBuilder<T extends Table> {
+		private final Table.__Factory<T> factory;
+		final Field<?>[] fields;
+		private final int[] columns;
+		private final Converter[] converters;
+
+		RowBuilder(final Class<T> cls, final CSVParser header) {
+			factory = Util.getFactory(cls);
+			final List<Field<?>> clsFields = Util.getFields(cls);
+			final List<Field<?>> fields = new ArrayList<Field<?>>();
+			final List<Integer> columns = new ArrayList<Integer>();
+			for (int i=0; i<header.size(); ++i) {
+				final String name = header.get(i).trim();
+				for (final Field<?> field : clsFields) {
+					if (field.NAME.equals(name)) {
+						fields.add(field);
+						columns.add(i);
+						break;
+					}
+				}
+			}
+			this.fields = fields.toArray(new Field<?>[fields.size()]);
+			this.columns = new int[this.fields.length];
+			this.converters = new Converter[this.fields.length];
+			for (int i=0; i<this.fields.length; ++i) {
+				this.columns[i] = columns.get(i);
+				this.converters[i] = getConverter(this.fields[i].TYPE);
+			}
+		}
+
+		/**
+		 * @return the current record's values, in the same order as {@code fields}
+		 * @throws IllegalArgumentException if a value can't be converted to its field's type
+		 */
+		Object[] convert(final CSVParser p) {
+			final Object[] values = new Object[fields.length];
+			for (int i=0; i<fields.length; ++i) {
+				final int col = columns[i];
+				if (col >= p.size()) continue;
+				final String s = p.get(col);
+				if (s.length() == 0 && !p.isQuoted(col)) continue;
+				try {
+					values[i] = converters[i].convert(s);
+				} catch (final RuntimeException e) {
+					throw new IllegalArgumentException("could not read "+ fields[i].NAME +" from \""+ s
+							+"\" on line "+ p.getLineNumber(), e);
+				}
+			}
+			return values;
+		}
+
+		T build(final CSVParser p) {
+			return factory.newInstance(fields, convert(p), 0, fields.length);
+		}
+
+		/**
+		 * @return an object with no fields set
+		 */
+		T empty() {
+			return factory.newInstance(new Field<?>[0], new Object[0], 0, 0);
 		}
 	}
 
-	private static <T extends Table> Iterator<T> createIterator(
-			final Class<T> cls, final Constructor<T> constructor,
-			final Reader _r, final boolean closeOnFinish) {
-		final BufferedReader r = new BufferedReader(_r);
+	private static <T extends Table> Iterator<T> createIterator(final Class<T> cls,
+			final Reader r, final boolean closeOnFinish) {
+		final CSVParser p = new CSVParser(r);
 		return new Iterator<T>() {
 
 			private T next = null;
-			private boolean first = true;
-			private Field<?>[] fields = null;
-			private Constructor<?>[] fieldConstructors = null;
+			private RowBuilder<T> builder = null;
+			private boolean done = false;
 
 			@Override
 			public boolean hasNext() {
 				if (next != null) return true;
+				if (done) return false;
 				try {
-					if (first) {
-						first  = false;
-						final String line = r.readLine();
-						if (line != null) {
-							final String[] headers = line.split(",");
-							fields = new Field<?>[headers.length];
-							fieldConstructors  = new Constructor<?>[fields.length];
-							final List<Field<?>> clsFields = Util.getFields(cls);
-							for (int i=0; i<fields.length; ++i) {
-								for (int j=0; j<clsFields.size(); ++j) {
-									if (clsFields.get(j).NAME.equals(headers[i])) {
-										fields[i] = clsFields.get(j);
-										break;
-									}
-								}
-								fieldConstructors[i] = fields[i].TYPE
-										.getDeclaredConstructor(String.class);
-								if (!fieldConstructors[i].isAccessible()) {
-									fieldConstructors[i].setAccessible(true);
-								}
-							}
-
+					if (builder == null) {
+						if (!p.next()) {
+							finish();
+							return false;
 						}
+						builder = new RowBuilder<T>(cls, p);
 					}
-					final Object[] oa = new Object[fields.length];
-					int pos = 0;
-					final String line = r.readLine();
-					if (line != null) {
-			            StringBuilder sb = new StringBuilder();
-			            boolean quoted = false;
-			            boolean valueWasQuoted = false;
-						for (int i = 0; i < line.length(); ++i) {
-			                final char c = line.charAt(i);
-			                sb.append(c);
-			                if (c == '"') {
-			                    quoted = !quoted;
-			                    valueWasQuoted |= quoted;
-			                }
-			                if ((!quoted && c == ',') || i == line.length()-1) {
-			                    final String s = sb.toString()
-			                    		.replaceAll(",$", "")
-			                    		.replaceAll("^\"|\"$", "")
-			                    		.replace("\"\"", "\"")
-			                    		.trim();
-			                    if (pos<oa.length) {
-				                    Object o = null;
-				                    if (s.length()>0 || valueWasQuoted) {
-				                    	o = fieldConstructors[pos].newInstance(s);
-				                    }
-			                    	oa[pos++] = o;
-			                    	valueWasQuoted = false;
-			                    }
-			                    sb = new StringBuilder();
-			                }
-			            }
-						next = constructor.newInstance(fields, oa, 0, fields.length);
+					if (p.next()) {
+						next = builder.build(p);
+						return true;
 					}
-
+					finish();
+					return false;
 				} catch (final IOException e) {
 					try {
-						if (closeOnFinish) r.close();
+						finish();
 					} catch (final IOException e1) {
 						e1.printStackTrace();
 					}
 					throw new RuntimeException(e);
-				} catch (final InstantiationException e) {
-					throw new RuntimeException(e);
-				} catch (final IllegalAccessException e) {
-					throw new RuntimeException(e);
-				} catch (final IllegalArgumentException e) {
-					throw new RuntimeException(e);
-				} catch (final InvocationTargetException e) {
-					throw new RuntimeException(e);
-				} catch (final SecurityException e) {
-					throw new RuntimeException(e);
-				} catch (final NoSuchMethodException e) {
-					throw new RuntimeException(e);
 				}
-				if (next != null) return true;
-				try {
-					if (closeOnFinish) r.close();
-				} catch (final IOException e) {
-					throw new RuntimeException(e);
-				}
-				return false;
+			}
+
+			private void finish() throws IOException {
+				done = true;
+				if (closeOnFinish) r.close();
 			}
 
 			@Override
 			public T next() {
-				if (next == null) hasNext();
+				if (!hasNext()) throw new NoSuchElementException();
 				final T t = next;
 				next = null;
 				return t;
@@ -263,4 +428,185 @@ public class CSV {
 		};
 	}
 
+	/**
+	 * Splits a memory mapped file into chunks of whole records and parses them in parallel,
+	 * handing back the objects in file order.
+	 */
+	private static class ChunkIterator<T extends Table> implements Iterator<T> {
+
+		private static final int CHUNK_SIZE = 4 << 20;
+		private static final int WINDOW_SIZE = 64 << 20;
+
+		private final Charset charset = Charset.defaultCharset();
+		private final int threads;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long size;
+		private final RowBuilder<T> builder;
+		private final ThreadPoolExecutor pool;
+		private final ArrayDeque<Future<List<T>>> running = new ArrayDeque<Future<List<T>>>();
+		private Iterator<T> current = null;
+
+		// the boundary scan
+		private MappedByteBuffer window = null;
+		private long windowStart = 0;
+		private long pos = 0;
+		private long line = 1;
+		private int state = FIELD_START;
+
+		private static final int FIELD_START = 0;
+		private static final int UNQUOTED = 1;
+		private static final int QUOTED = 2;
+		private static final int QUOTE = 3;
+
+		ChunkIterator(final Class<T> cls, final File f, final int threads) throws IOException {
+			this.threads = threads;
+			file = new RandomAccessFile(f, "r");
+			channel = file.getChannel();
+			size = channel.size();
+			try {
+				final CSVParser header = parse(0, nextBoundary(0), 1);
+				if (!header.next()) throw new IOException("no header row in "+ f);
+				builder = new RowBuilder<T>(cls, header);
+			} catch (final IOException e) {
+				file.close();
+				throw e;
+			}
+			pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				int i = 0;
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "DKO csv reader "+ (i++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// so abandoned iterators don't leave idle threads lying around
+			pool.allowCoreThreadTimeOut(true);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (current == null || !current.hasNext()) {
+				try {
+					// keep a few chunks in flight, but don't let parsed ones pile up in memory
+					while (running.size() < threads * 2 && pos < size) {
+						final long start = pos;
+						final long startLine = line;
+						final long end = nextBoundary(start + CHUNK_SIZE);
+						final MappedByteBuffer bytes = channel.map(MapMode.READ_ONLY, start, end - start);
+						running.add(pool.submit(new Callable<List<T>>() {
+							@Override
+							public List<T> call() throws Exception {
+								final CSVParser p = parse(bytes, startLine);
+								final List<T> ret = new ArrayList<T>();
+								while (p.next()) ret.add(builder.build(p));
+								return ret;
+							}
+						}));
+					}
+					final Future<List<T>> f = running.poll();
+					if (f == null) {
+						close();
+						return false;
+					}
+					current = f.get().iterator();
+				} catch (final IOException e) {
+					abort();
+					throw new RuntimeException(e);
+				} catch (final InterruptedException e) {
+					abort();
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} catch (final ExecutionException e) {
+					abort();
+					throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+							: new RuntimeException(e.getCause());
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private CSVParser parse(final long start, final long end, final long firstLine) throws IOException {
+			return parse(channel.map(MapMode.READ_ONLY, start, end - start), firstLine);
+		}
+
+		private CSVParser parse(final ByteBuffer bytes, final long firstLine) {
+			final CharBuffer chars = charset.decode(bytes);
+			return new CSVParser(chars.array(), chars.limit(), firstLine);
+		}
+
+		/**
+		 * Scans forward to the end of the first record that ends at or after {@code target}.
+		 * &nbsp; This tracks quoting the same way {@code CSVParser} does (so a line break in a
+		 * quoted cell isn't mistaken for the end of a record), but does nothing else.
+		 * @return the offset just past that record's line break (or the end of the file)
+		 */
+		private long nextBoundary(final long target) throws IOException {
+			while (pos < size) {
+				if (window == null || pos >= windowStart + window.limit()) {
+					windowStart = pos;
+					window = channel.map(MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, size - pos));
+				}
+				final byte b = window.get((int) (pos++ - windowStart));
+				switch (state) {
+				case FIELD_START:
+				case UNQUOTED:
+					if (b == '"' && state == FIELD_START) {
+						state = QUOTED;
+					} else if (b == ',') {
+						state = FIELD_START;
+					} else if (b == '\n') {
+						++line;
+						state = FIELD_START;
+						if (pos > target) return pos;
+					} else {
+						state = UNQUOTED;
+					}
+					break;
+				case QUOTED:
+					if (b == '"') state = QUOTE;
+					else if (b == '\n') ++line;
+					break;
+				case QUOTE:
+					if (b == '"') {
+						state = QUOTED;
+					} else {
+						state = UNQUOTED;
+						--pos;
+					}
+					break;
+				}
+			}
+			return pos;
+		}
+
+		private void abort() {
+			pool.shutdownNow();
+			close();
+		}
+
+		private void close() {
+			pool.shutdown();
+			try {
+				file.close();
+			} catch (final IOException e) {
+				// we're done with it anyway
+			}
+		}
+
+	}
+
 }
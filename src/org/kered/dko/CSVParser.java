@@ -0,0 +1,193 @@
+package org.kered.dko;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A single pass, RFC 4180 CSV tokenizer. &nbsp; It runs a small state machine over a large
+ * char buffer, copying each cell out once (no regexes, no per-line strings). &nbsp; Quoted
+ * cells may contain commas, doubled quotes and line breaks; records may end in
+ * {@code \n}, {@code \r\n} or {@code \r}. &nbsp; Blank lines are skipped.
+ * <p>
+ * Call {@code next()} to advance to each record, then read its cells with {@code get(i)}.
+ *
+ * @author Derek Anderson
+ */
+class CSVParser {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int FIELD_START = 0;
+	private static final int UNQUOTED = 1;
+	private static final int QUOTED = 2;
+	// just saw a quote inside a quoted cell - it's either escaped or the end of the cell
+	private static final int QUOTE = 3;
+
+	private final Reader r;
+	private char[] buf;
+	private int pos = 0;
+	private int len = 0;
+	private boolean eof = false;
+
+	private final StringBuilder cell = new StringBuilder();
+	private String[] cells = new String[16];
+	private boolean[] quoted = new boolean[16];
+	private int size = 0;
+	private boolean cellQuoted = false;
+
+	private long line;
+	private long recordLine = 0;
+
+	CSVParser(final Reader r) {
+		this.r = r;
+		this.buf = new char[BUFFER_SIZE];
+		this.line = 1;
+	}
+
+	/**
+	 * Parses an already decoded chunk of a file.
+	 * @param firstLine the line number the chunk starts on
+	 */
+	CSVParser(final char[] buf, final int len, final long firstLine) {
+		this.r = null;
+		this.buf = buf;
+		this.len = len;
+		this.eof = true;
+		this.line = firstLine;
+	}
+
+	/**
+	 * Advances to the next record.
+	 * @return false at the end of the input
+	 * @throws IOException
+	 */
+	boolean next() throws IOException {
+		while (true) {
+			if (pos >= len && !fill()) return false;
+			readRecord();
+			// skip blank lines
+			if (size > 1 || quoted[0] || cells[0].length() > 0) return true;
+		}
+	}
+
+	/**
+	 * @return the number of cells in the current record
+	 */
+	int size() {
+		return size;
+	}
+
+	String get(final int i) {
+		return cells[i];
+	}
+
+	/**
+	 * @return true if the cell was quoted (so {@code ""} is an empty string, not a null)
+	 */
+	boolean isQuoted(final int i) {
+		return quoted[i];
+	}
+
+	/**
+	 * @return the (one based) line number the current record started on
+	 */
+	long getLineNumber() {
+		return recordLine;
+	}
+
+	private void readRecord() throws IOException {
+		size = 0;
+		recordLine = line;
+		cell.setLength(0);
+		cellQuoted = false;
+		int state = FIELD_START;
+		while (true) {
+			if (pos >= len && !fill()) {
+				endCell();
+				return;
+			}
+			switch (state) {
+			case FIELD_START:
+				if (buf[pos] == '"') {
+					++pos;
+					cellQuoted = true;
+					state = QUOTED;
+					break;
+				}
+				state = UNQUOTED;
+				//$FALL-THROUGH$
+			case UNQUOTED: {
+				final int start = pos;
+				char c = 0;
+				while (pos < len && (c = buf[pos]) != ',' && c != '\n' && c != '\r') ++pos;
+				cell.append(buf, start, pos - start);
+				if (pos >= len) break;
+				++pos;
+				endCell();
+				if (c == ',') {
+					state = FIELD_START;
+					break;
+				}
+				if (c == '\r' && (pos < len || fill()) && buf[pos] == '\n') ++pos;
+				++line;
+				return;
+			}
+			case QUOTED: {
+				final int start = pos;
+				char c = 0;
+				while (pos < len && (c = buf[pos]) != '"') {
+					if (c == '\n') ++line;
+					++pos;
+				}
+				cell.append(buf, start, pos - start);
+				if (pos >= len) break;
+				++pos;
+				state = QUOTE;
+				break;
+			}
+			case QUOTE:
+				if (buf[pos] == '"') {
+					++pos;
+					cell.append('"');
+					state = QUOTED;
+				} else {
+					// the closing quote (anything after it up to the comma is kept, leniently)
+					state = UNQUOTED;
+				}
+				break;
+			}
+		}
+	}
+
+	private void endCell() {
+		if (size == cells.length) {
+			final String[] tmp = new String[size * 2];
+			System.arraycopy(cells, 0, tmp, 0, size);
+			cells = tmp;
+			final boolean[] tmp2 = new boolean[size * 2];
+			System.arraycopy(quoted, 0, tmp2, 0, size);
+			quoted = tmp2;
+		}
+		quoted[size] = cellQuoted;
+		cells[size++] = cell.toString();
+		cell.setLength(0);
+		cellQuoted = false;
+	}
+
+	/**
+	 * Reads more of the input into the buffer.
+	 * @return false if there's nothing left
+	 */
+	private boolean fill() throws IOException {
+		if (eof) return false;
+		final int n = r.read(buf, 0, buf.length);
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		pos = 0;
+		len = n;
+		return true;
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.kered.dko;
+
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Reads a single typed column value out of a {@code ResultSet}. &nbsp; The reader for a
+ * type is looked up once per select list (see {@code forFields()}), so decoding a row
+ * is one virtual call per column instead of walking a chain of type checks per cell.
+ *
+ * @author Derek Anderson
+ */
+enum ColumnReader {
+
+	BYTE {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final byte v = rs.getByte(i);
+			return rs.wasNull() ? null : Byte.valueOf(v);
+		}
+	},
+
+	DOUBLE {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final double v = rs.getDouble(i);
+			return rs.wasNull() ? null : Double.valueOf(v);
+		}
+	},
+
+	FLOAT {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final float v = rs.getFloat(i);
+			return rs.wasNull() ? null : Float.valueOf(v);
+		}
+	},
+
+	INTEGER {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final int v = rs.getInt(i);
+			return rs.wasNull() ? null : Integer.valueOf(v);
+		}
+	},
+
+	LONG {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final long v = rs.getLong(i);
+			return rs.wasNull() ? null : Long.valueOf(v);
+		}
+	},
+
+	SHORT {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final short v = rs.getShort(i);
+			return rs.wasNull() ? null : Short.valueOf(v);
+		}
+	},
+
+	BOOLEAN {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final boolean v = rs.getBoolean(i);
+			return rs.wasNull() ? null : Boolean.valueOf(v);
+		}
+	},
+
+	CHARACTER {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final String s = rs.getString(i);
+			if (s != null && s.length() > 0) return Character.valueOf(s.charAt(0));
+			else return null;
+		}
+	},
+
+	STRING {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			return rs.getString(i);
+		}
+	},
+
+	BLOB {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			return rs.getBlob(i);
+		}
+	},
+
+	TIMESTAMP {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			return rs.getTimestamp(i);
+		}
+	},
+
+	OBJECT {
+		@Override
+		Object read(final ResultSet rs, final int i) throws SQLException {
+			final Object o = rs.getObject(i);
+			if (o instanceof Short) return Integer.valueOf(((Short)o).intValue());
+			return o;
+		}
+	};
+
+	/**
+	 * @param i the (1-based) column index
+	 */
+	abstract Object read(ResultSet rs, int i) throws SQLException;
+
+	static ColumnReader forType(final Class<?> type) {
+		if (type==Byte.class || type==byte.class) return BYTE;
+		if (type==Double.class || type==double.class) return DOUBLE;
+		if (type==Float.class || type==float.class) return FLOAT;
+		if (type==Integer.class || type==int.class) return INTEGER;
+		if (type==Long.class || type==long.class) return LONG;
+		if (type==Short.class || type==short.class) return SHORT;
+		if (type==Boolean.class || type==boolean.class) return BOOLEAN;
+		if (type==Character.class || type==char.class) return CHARACTER;
+		if (type==String.class) return STRING;
+		if (type==Blob.class) return BLOB;
+		if (type==Timestamp.class) return TIMESTAMP;
+		return OBJECT;
+	}
+
+	static ColumnReader forField(final Expression.Select<?> field) {
+		return forType(field instanceof Field ? ((Field<?>)field).TYPE : field.getType());
+	}
+
+	static ColumnReader[] forFields(final Expression.Select<?>[] fields) {
+		final ColumnReader[] readers = new ColumnReader[fields.length];
+		for (int i=0; i<fields.length; ++i) {
+			readers[i] = forField(fields[i]);
+		}
+		return readers;
+	}
+
+	static ColumnReader[] forFields(final List<? extends Expression.Select<?>> fields) {
+		return forFields(fields.toArray(new Expression.Select<?>[fields.size()]));
+	}
+
+}
@@ -0,0 +1,481 @@
+package org.kered.dko;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.sql.Blob;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.sql.rowset.serial.SerialBlob;
+
+/**
+ * A query snapshot stored in a compact, column oriented binary file instead of a SQLite
+ * database. &nbsp; Rows are written in groups; within a group each column is stored on its
+ * own, typed by the values it holds (ints as ints, doubles as doubles...), with a null
+ * bitmap, and with strings dictionary encoded when they repeat. &nbsp; Reading memory maps
+ * one group at a time and decodes the values straight into the row arrays handed to
+ * {@code SelectFromOAI}, with no JDBC driver or SQL in between.
+ * <p>
+ * A temp file created for the snapshot is deleted by {@code close()}, so callers have to
+ * close it when they're done with it.
+ *
+ * @author Derek Anderson
+ */
+class ColumnarSnapshot<T extends Table> implements Iterable<T>, Closeable {
+
+	private static final String PREFIX = "dko_snapshot_";
+	private static final String EXT = ".dkoc";
+	private static final int MAGIC = 0x444b4f43; // "DKOC"
+	private static final int VERSION = 1;
+	private static final int GROUP_SIZE = 16384;
+
+	// column types
+	private static final byte NULL = 0;
+	private static final byte INT = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+	private static final byte FLOAT = 4;
+	private static final byte SHORT = 5;
+	private static final byte BYTE = 6;
+	private static final byte BOOLEAN = 7;
+	private static final byte CHAR = 8;
+	private static final byte STRING = 9;
+	private static final byte DICTIONARY = 10;
+	private static final byte TIMESTAMP = 11;
+	private static final byte DATE = 12;
+	private static final byte TIME = 13;
+	private static final byte BYTES = 14;
+	// anything else, java serialized
+	private static final byte OBJECT = 15;
+
+	private static final Map<Class<?>,Byte> TYPES = new HashMap<Class<?>,Byte>();
+	static {
+		TYPES.put(Integer.class, INT);
+		TYPES.put(Long.class, LONG);
+		TYPES.put(Double.class, DOUBLE);
+		TYPES.put(Float.class, FLOAT);
+		TYPES.put(Short.class, SHORT);
+		TYPES.put(Byte.class, BYTE);
+		TYPES.put(Boolean.class, BOOLEAN);
+		TYPES.put(Character.class, CHAR);
+		TYPES.put(String.class, STRING);
+		TYPES.put(Timestamp.class, TIMESTAMP);
+		TYPES.put(java.sql.Date.class, DATE);
+		TYPES.put(Time.class, TIME);
+		TYPES.put(byte[].class, BYTES);
+	}
+
+	private final File f;
+	private final boolean delete;
+	private final Query<T> q;
+	private final List<Field<?>> fields;
+	private volatile boolean closed = false;
+
+	ColumnarSnapshot(final Query<T> q) {
+		this.q = q;
+		try {
+			f = File.createTempFile(PREFIX, EXT);
+			delete = true;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		fields = q.getSelectFields();
+		write();
+	}
+
+	ColumnarSnapshot(final Query<T> q, final File f) {
+		this.q = q;
+		if (f.isDirectory()) {
+			try {
+				this.f = File.createTempFile(PREFIX, EXT, f);
+				delete = true;
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			this.f = f;
+			delete = false;
+		}
+		fields = q.getSelectFields();
+		write();
+	}
+
+	private void write() {
+		boolean written = false;
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(fields.size());
+				final Object[][] rows = new Object[GROUP_SIZE][];
+				int n = 0;
+				for (final Table row : q) {
+					final Object[] values = new Object[fields.size()];
+					for (int i=0; i<values.length; ++i) {
+						values[i] = row.__NOSCO_PRIVATE_mapType(row.get(fields.get(i)));
+					}
+					rows[n++] = values;
+					if (n == GROUP_SIZE) {
+						writeGroup(out, rows, n);
+						n = 0;
+					}
+				}
+				if (n > 0) writeGroup(out, rows, n);
+			} finally {
+				out.close();
+			}
+			written = true;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		} catch (final SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			// nobody gets the chance to close() it
+			if (!written) close();
+		}
+	}
+
+	/**
+	 * Writes a group of rows as: the row count, the group's length in bytes, then each
+	 * column (prefixed by its own length in bytes).
+	 */
+	private void writeGroup(final DataOutputStream out, final Object[][] rows, final int n)
+			throws IOException, SQLException {
+		final ByteArrayOutputStream group = new ByteArrayOutputStream();
+		final ByteArrayOutputStream column = new ByteArrayOutputStream();
+		final DataOutputStream groupOut = new DataOutputStream(group);
+		for (int c=0; c<fields.size(); ++c) {
+			column.reset();
+			writeColumn(new DataOutputStream(column), rows, n, c);
+			groupOut.writeInt(column.size());
+			column.writeTo(groupOut);
+		}
+		out.writeInt(n);
+		out.writeInt(group.size());
+		group.writeTo(out);
+	}
+
+	private static void writeColumn(final DataOutputStream out, final Object[][] rows, final int n,
+			final int c) throws IOException, SQLException {
+		// pick the column's type from its values
+		byte type = NULL;
+		int nulls = 0;
+		for (int r=0; r<n; ++r) {
+			final Object o = rows[r][c];
+			if (o == null) {
+				++nulls;
+				continue;
+			}
+			final Byte t = TYPES.get(o.getClass());
+			if (t == null || (type != NULL && type != t)) {
+				type = OBJECT;
+				break;
+			}
+			type = t;
+		}
+		Map<String,Integer> dictionary = null;
+		if (type == STRING) {
+			dictionary = new HashMap<String,Integer>();
+			for (int r=0; r<n && dictionary.size() <= (n - nulls) / 2; ++r) {
+				final String s = (String) rows[r][c];
+				if (s != null && !dictionary.containsKey(s)) dictionary.put(s, dictionary.size());
+			}
+			if (dictionary.size() <= (n - nulls) / 2) type = DICTIONARY;
+			else dictionary = null;
+		}
+		out.writeByte(type);
+		if (type == NULL) return;
+
+		// the null bitmap
+		if (type == OBJECT) nulls = countNulls(rows, n, c);
+		out.writeBoolean(nulls > 0);
+		if (nulls > 0) {
+			final long[] bits = new long[(n + 63) / 64];
+			for (int r=0; r<n; ++r) {
+				if (rows[r][c] == null) bits[r >>> 6] |= 1L << (r & 63);
+			}
+			for (final long word : bits) out.writeLong(word);
+		}
+
+		if (type == DICTIONARY) {
+			final String[] words = new String[dictionary.size()];
+			for (final Map.Entry<String,Integer> e : dictionary.entrySet()) words[e.getValue()] = e.getKey();
+			out.writeInt(words.length);
+			for (final String s : words) writeString(out, s);
+			for (int r=0; r<n; ++r) {
+				final Object o = rows[r][c];
+				if (o != null) out.writeInt(dictionary.get(o));
+			}
+			return;
+		}
+		if (type == OBJECT) {
+			final ObjectOutputStream oos = new ObjectOutputStream(out);
+			for (int r=0; r<n; ++r) {
+				Object o = rows[r][c];
+				if (o == null) continue;
+				if (o instanceof Blob && !(o instanceof SerialBlob)) o = new SerialBlob((Blob) o);
+				oos.writeObject(o);
+			}
+			oos.flush();
+			return;
+		}
+		for (int r=0; r<n; ++r) {
+			final Object o = rows[r][c];
+			if (o == null) continue;
+			switch (type) {
+			case INT: out.writeInt((Integer) o); break;
+			case LONG: out.writeLong((Long) o); break;
+			case DOUBLE: out.writeDouble((Double) o); break;
+			case FLOAT: out.writeFloat((Float) o); break;
+			case SHORT: out.writeShort((Short) o); break;
+			case BYTE: out.writeByte((Byte) o); break;
+			case BOOLEAN: out.writeBoolean((Boolean) o); break;
+			case CHAR: out.writeChar((Character) o); break;
+			case STRING: writeString(out, (String) o); break;
+			case TIMESTAMP:
+				out.writeLong(((Timestamp) o).getTime());
+				out.writeInt(((Timestamp) o).getNanos());
+				break;
+			case DATE: out.writeLong(((java.sql.Date) o).getTime()); break;
+			case TIME: out.writeLong(((Time) o).getTime()); break;
+			case BYTES:
+				out.writeInt(((byte[]) o).length);
+				out.write((byte[]) o);
+				break;
+			}
+		}
+	}
+
+	private static int countNulls(final Object[][] rows, final int n, final int c) {
+		int nulls = 0;
+		for (int r=0; r<n; ++r) {
+			if (rows[r][c] == null) ++nulls;
+		}
+		return nulls;
+	}
+
+	private static void writeString(final DataOutputStream out, final String s) throws IOException {
+		final byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		if (closed) throw new IllegalStateException("this snapshot has been closed");
+		if (q instanceof DBQuery) {
+			return new SelectFromOAI<T>((DBQuery<T>) q, new RowIterator());
+		} else {
+			throw new RuntimeException("not implemented (yet) for this query implementation: "+ q.getClass().getName());
+		}
+	}
+
+	/**
+	 * Decodes one column of a group of rows, from a memory mapped buffer.
+	 */
+	private static class Column {
+		final byte type;
+		final long[] nulls;
+		final ByteBuffer values;
+		String[] dictionary = null;
+		Object[] objects = null;
+		private byte[] scratch = new byte[64];
+
+		Column(final ByteBuffer buf, final int n) throws IOException {
+			type = buf.get();
+			if (type != NULL && buf.get() != 0) {
+				nulls = new long[(n + 63) / 64];
+				for (int i=0; i<nulls.length; ++i) nulls[i] = buf.getLong();
+			} else {
+				nulls = null;
+			}
+			values = buf;
+			if (type == DICTIONARY) {
+				dictionary = new String[buf.getInt()];
+				for (int i=0; i<dictionary.length; ++i) dictionary[i] = readString(buf);
+			} else if (type == OBJECT) {
+				final byte[] bytes = new byte[buf.remaining()];
+				buf.get(bytes);
+				final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+				objects = new Object[n];
+				try {
+					for (int r=0; r<n; ++r) {
+						if (!isNull(r)) objects[r] = in.readObject();
+					}
+				} catch (final ClassNotFoundException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		boolean isNull(final int r) {
+			return nulls != null && (nulls[r >>> 6] & (1L << (r & 63))) != 0;
+		}
+
+		/**
+		 * Reads row {@code r}'s value. &nbsp; Rows must be read in order.
+		 */
+		Object read(final int r) {
+			if (type == NULL || isNull(r)) return null;
+			switch (type) {
+			case INT: return values.getInt();
+			case LONG: return values.getLong();
+			case DOUBLE: return values.getDouble();
+			case FLOAT: return values.getFloat();
+			case SHORT: return values.getShort();
+			case BYTE: return values.get();
+			case BOOLEAN: return values.get() != 0;
+			case CHAR: return values.getChar();
+			case STRING: return readString(values);
+			case DICTIONARY: return dictionary[values.getInt()];
+			case TIMESTAMP:
+				final Timestamp ts = new Timestamp(values.getLong());
+				ts.setNanos(values.getInt());
+				return ts;
+			case DATE: return new java.sql.Date(values.getLong());
+			case TIME: return new Time(values.getLong());
+			case BYTES:
+				final byte[] bytes = new byte[values.getInt()];
+				values.get(bytes);
+				return bytes;
+			default: return objects[r];
+			}
+		}
+
+		private String readString(final ByteBuffer buf) {
+			final int length = buf.getInt();
+			if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+			buf.get(scratch, 0, length);
+			try {
+				return new String(scratch, 0, length, "UTF-8");
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private class RowIterator implements PeekableClosableIterator<Object[]> {
+
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private long pos;
+		private final Column[] columns = new Column[fields.size()];
+		private int groupSize = 0;
+		private int row = 0;
+		private Object[] next = null;
+
+		RowIterator() {
+			try {
+				file = new RandomAccessFile(f, "r");
+				channel = file.getChannel();
+				final ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, 12);
+				if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != columns.length) {
+					throw new IOException(f +" isn't a snapshot of this query");
+				}
+				pos = 12;
+			} catch (final IOException e) {
+				close();
+				throw new RuntimeException(e);
+			}
+		}
+
+		private boolean nextGroup() throws IOException {
+			if (pos >= channel.size()) return false;
+			final ByteBuffer sizes = channel.map(MapMode.READ_ONLY, pos, 8);
+			groupSize = sizes.getInt();
+			final int length = sizes.getInt();
+			final MappedByteBuffer group = channel.map(MapMode.READ_ONLY, pos + 8, length);
+			pos += 8 + length;
+			for (int c=0; c<columns.length; ++c) {
+				final int columnLength = group.getInt();
+				final ByteBuffer column = group.slice();
+				column.limit(columnLength);
+				group.position(group.position() + columnLength);
+				columns[c] = new Column(column, groupSize);
+			}
+			row = 0;
+			return true;
+		}
+
+		@Override
+		public Object[] peek() {
+			if (next != null) return next;
+			if (channel == null) return null;
+			try {
+				while (row >= groupSize) {
+					if (!nextGroup()) {
+						close();
+						return null;
+					}
+				}
+			} catch (final IOException e) {
+				close();
+				throw new RuntimeException(e);
+			}
+			next = new Object[columns.length];
+			for (int c=0; c<columns.length; ++c) next[c] = columns[c].read(row);
+			++row;
+			return next;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return peek() != null;
+		}
+
+		@Override
+		public Object[] next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			final Object[] ret = next;
+			next = null;
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			channel = null;
+			try {
+				if (file != null) file.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			file = null;
+		}
+
+	}
+
+	/**
+	 * Deletes the snapshot's file, if it was a temp file created for it.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (delete) f.delete();
+	}
+
+}
@@ -0,0 +1,377 @@
+package org.kered.dko;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A condition tree compiled for checking lots of rows in memory. &nbsp; {@code Condition.matches()}
+ * re-interprets the tree for every row (re-reading operators, scanning {@code in} lists and
+ * going through {@code Table.get()}); compiling does all that once: &nbsp; {@code in} lists
+ * become hash sets, operators are decided up front, fields are read straight from their
+ * getters, and the terms of each {@code and} / {@code or} are reordered so the cheapest and
+ * most selective (equalities, null checks, {@code in}s) are tried first.
+ * <p>
+ * Anything it doesn't know how to compile falls back to the condition's own {@code matches()}.
+ *
+ * @author Derek Anderson
+ */
+abstract class CompiledCondition {
+
+	abstract boolean matches(Table t);
+
+	/**
+	 * Lower ranks are cheaper and reject more rows, so they're tried first.
+	 */
+	int rank() {
+		return 6;
+	}
+
+	static final CompiledCondition TRUE = new CompiledCondition() {
+		@Override
+		boolean matches(final Table t) {
+			return true;
+		}
+		@Override
+		int rank() {
+			return 0;
+		}
+	};
+
+	static final CompiledCondition FALSE = new CompiledCondition() {
+		@Override
+		boolean matches(final Table t) {
+			return false;
+		}
+		@Override
+		int rank() {
+			return 0;
+		}
+	};
+
+	/**
+	 * @return a predicate matching rows all the conditions match
+	 */
+	static CompiledCondition compile(final Condition... conditions) {
+		return compile(Arrays.asList(conditions));
+	}
+
+	static CompiledCondition compile(final Collection<Condition> conditions) {
+		final List<CompiledCondition> terms = new ArrayList<CompiledCondition>();
+		for (final Condition c : conditions) {
+			if (c == null) continue;
+			if (c instanceof Condition.And) {
+				for (final Condition x : ((Condition.And) c).conditions) terms.add(compile(x));
+			} else {
+				terms.add(compile(c));
+			}
+		}
+		if (terms.isEmpty()) return TRUE;
+		if (terms.size() == 1) return terms.get(0);
+		return new And(sort(terms));
+	}
+
+	static CompiledCondition compile(final Condition c) {
+		if (c == null || c == Condition.TRUE) return TRUE;
+		if (c == Condition.FALSE) return FALSE;
+		if (c instanceof Condition.And) {
+			return compile(((Condition.And) c).conditions);
+		}
+		if (c instanceof Condition.Or) {
+			final List<CompiledCondition> terms = new ArrayList<CompiledCondition>();
+			for (final Condition x : ((Condition.Or) c).conditions) terms.add(compile(x));
+			return terms.size() == 1 ? terms.get(0) : new Or(sort(terms));
+		}
+		if (c instanceof Condition.Not) {
+			final CompiledCondition inner = compile(((Condition.Not) c).condition);
+			return new CompiledCondition() {
+				@Override
+				boolean matches(final Table t) {
+					return !inner.matches(t);
+				}
+				@Override
+				int rank() {
+					// a negation rejects few rows
+					return Math.max(4, inner.rank());
+				}
+			};
+		}
+		if (c instanceof Condition.Binary) {
+			final CompiledCondition ret = compileBinary((Condition.Binary) c);
+			if (ret != null) return ret;
+		}
+		if (c instanceof Condition.Binary2) {
+			final CompiledCondition ret = compileBinary2((Condition.Binary2) c);
+			if (ret != null) return ret;
+		}
+		if (c instanceof Condition.In) {
+			final CompiledCondition ret = compileIn((Condition.In) c);
+			if (ret != null) return ret;
+		}
+		if (c instanceof Condition.InTmpTable) {
+			final Condition.InTmpTable<?> in = (Condition.InTmpTable<?>) c;
+			return new InSet(accessor(in.field), in.set);
+		}
+		if (c instanceof Condition.Unary) {
+			final Condition.Unary u = (Condition.Unary) c;
+			final Accessor a = accessor(u.field);
+			if (" is null".equals(u.suffix)) return new IsNull(a);
+			if (" is not null".equals(u.suffix)) {
+				return new CompiledCondition() {
+					@Override
+					boolean matches(final Table t) {
+						return a.get(t) != null;
+					}
+					@Override
+					int rank() {
+						return 4;
+					}
+				};
+			}
+		}
+		// not compilable - interpret it
+		return new CompiledCondition() {
+			@Override
+			boolean matches(final Table t) {
+				return c.matches(t);
+			}
+		};
+	}
+
+	private static CompiledCondition compileBinary(final Condition.Binary b) {
+		final Accessor a = accessor(b.field);
+		final Object v = b.v;
+		if (v != null) {
+			if ("=".equals(b.cmp)) {
+				return new CompiledCondition() {
+					@Override
+					boolean matches(final Table t) {
+						return v.equals(a.get(t));
+					}
+					@Override
+					int rank() {
+						return 0;
+					}
+				};
+			}
+			if ("!=".equals(b.cmp)) {
+				return new CompiledCondition() {
+					@Override
+					boolean matches(final Table t) {
+						return !v.equals(a.get(t));
+					}
+					@Override
+					int rank() {
+						return 4;
+					}
+				};
+			}
+			if (Condition.compare(null, null, b.cmp) == Condition.NOT_COMPARED) return null;
+			final String cmp = b.cmp;
+			return new CompiledCondition() {
+				@Override
+				boolean matches(final Table t) {
+					return Condition.compare(a.get(t), v, cmp) == 1;
+				}
+				@Override
+				int rank() {
+					return 3;
+				}
+			};
+		}
+		if (b.field2 != null) {
+			final Accessor a2 = accessor(b.field2);
+			return new CompiledCondition() {
+				@Override
+				boolean matches(final Table t) {
+					final Object x = a.get(t);
+					final Object y = a2.get(t);
+					return x == y || (x != null && x.equals(y));
+				}
+				@Override
+				int rank() {
+					return 5;
+				}
+			};
+		}
+		if (b.s == null && b.o2 == null) return new IsNull(a);
+		return null;
+	}
+
+	private static CompiledCondition compileBinary2(final Condition.Binary2 b) {
+		if (b.o1 instanceof SQLFunction || b.o2 instanceof SQLFunction) return null;
+		final Accessor a1 = b.o1 instanceof Field ? accessor((Field<?>) b.o1) : null;
+		final Accessor a2 = b.o2 instanceof Field ? accessor((Field<?>) b.o2) : null;
+		return new CompiledCondition() {
+			@Override
+			boolean matches(final Table t) {
+				return b.matches(a1 == null ? b.o1 : a1.get(t), a2 == null ? b.o2 : a2.get(t));
+			}
+			@Override
+			int rank() {
+				return 5;
+			}
+		};
+	}
+
+	private static CompiledCondition compileIn(final Condition.In in) {
+		final String cmp = in.cmp.trim();
+		final boolean not;
+		if ("in".equalsIgnoreCase(cmp)) not = false;
+		else if ("not in".equalsIgnoreCase(cmp)) not = true;
+		else return null;
+		final Collection<?> values;
+		if (in.set != null) {
+			for (final Object v : in.set) {
+				if (v instanceof Field) return null;
+			}
+			values = Arrays.asList(in.set);
+		} else {
+			values = in.set2;
+		}
+		// (an empty list matches nothing, either way)
+		if (values == null || values.isEmpty()) return FALSE;
+		final InSet ret = new InSet(accessor(in.field), values);
+		if (!not) return ret;
+		return new CompiledCondition() {
+			@Override
+			boolean matches(final Table t) {
+				return !ret.matches(t);
+			}
+			@Override
+			int rank() {
+				return 4;
+			}
+		};
+	}
+
+	private static List<CompiledCondition> sort(final List<CompiledCondition> terms) {
+		// stable, so equally ranked terms keep the order they were written in
+		Collections.sort(terms, new Comparator<CompiledCondition>() {
+			@Override
+			public int compare(final CompiledCondition a, final CompiledCondition b) {
+				return a.rank() - b.rank();
+			}
+		});
+		return terms;
+	}
+
+	private static class And extends CompiledCondition {
+		private final CompiledCondition[] terms;
+		And(final List<CompiledCondition> terms) {
+			this.terms = terms.toArray(new CompiledCondition[terms.size()]);
+		}
+		@Override
+		boolean matches(final Table t) {
+			for (final CompiledCondition c : terms) {
+				if (!c.matches(t)) return false;
+			}
+			return true;
+		}
+		@Override
+		int rank() {
+			return terms[0].rank();
+		}
+	}
+
+	private static class Or extends CompiledCondition {
+		private final CompiledCondition[] terms;
+		Or(final List<CompiledCondition> terms) {
+			this.terms = terms.toArray(new CompiledCondition[terms.size()]);
+		}
+		@Override
+		boolean matches(final Table t) {
+			for (final CompiledCondition c : terms) {
+				if (c.matches(t)) return true;
+			}
+			return false;
+		}
+	}
+
+	private static class IsNull extends CompiledCondition {
+		private final Accessor a;
+		IsNull(final Accessor a) {
+			this.a = a;
+		}
+		@Override
+		boolean matches(final Table t) {
+			return a.get(t) == null;
+		}
+		@Override
+		int rank() {
+			return 1;
+		}
+	}
+
+	private static class InSet extends CompiledCondition {
+		private final Accessor a;
+		private final Set<?> set;
+		InSet(final Accessor a, final Collection<?> values) {
+			this.a = a;
+			this.set = values instanceof Set ? (Set<?>) values : new HashSet<Object>(values);
+		}
+		@Override
+		boolean matches(final Table t) {
+			return set.contains(a.get(t));
+		}
+		@Override
+		int rank() {
+			return 2;
+		}
+	}
+
+	/**
+	 * Reads a field from a row.
+	 */
+	static abstract class Accessor {
+		abstract Object get(Table t);
+	}
+
+	/**
+	 * @return an accessor calling the field's getter directly for rows of its own table
+	 * (or joins with it on the left), and {@code Table.get()} for anything else
+	 */
+	static Accessor accessor(final Field<?> field) {
+		final Method getter = field.GETTER;
+		final Class<?> table = field.TABLE;
+		if (getter == null) {
+			return new Accessor() {
+				@Override
+				Object get(final Table t) {
+					return t.get(field);
+				}
+			};
+		}
+		return new Accessor() {
+			@Override
+			Object get(final Table t) {
+				if (t.getClass() == table) {
+					try {
+						return getter.invoke(t, (Object[]) null);
+					} catch (final Exception e) {
+						return t.get(field);
+					}
+				}
+				if (t instanceof Join) {
+					final Object l = ((Join<?,?>) t).l;
+					if (l != null && l.getClass() == table) {
+						try {
+							final Object v = getter.invoke(l, (Object[]) null);
+							if (v != null) return v;
+						} catch (final Exception e) {
+							// fall through
+						}
+					}
+				}
+				return t.get(field);
+			}
+		};
+	}
+
+}
@@ -75,8 +75,8 @@ public abstract class Condition {
 
 	static class InTmpTable<T> extends Condition {
 
-		private final Field<T> field;
-		private final Collection<T> set;
+		final Field<T> field;
+		final Collection<T> set;
 		private final String tmpTableName = "#DKO_"+ Math.round(Math.random() * Integer.MAX_VALUE);
 		private String type = null;
 		private In backup;
@@ -216,6 +216,11 @@ public abstract class Condition {
 		boolean matches(final Table t) {
 			return true;
 		}
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(this);
+			return true;
+		}
 	};
 
 	/**
@@ -230,6 +235,11 @@ public abstract class Condition {
 		boolean matches(final Table t) {
 			return false;
 		}
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(this);
+			return true;
+		}
 	};
 
 	/**
@@ -260,6 +270,13 @@ public abstract class Condition {
 			sb.append(s);
 		}
 
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(Literal.class);
+			shape.add(s);
+			return true;
+		}
+
 	}
 
 	transient List<Object> bindings = null;
@@ -291,6 +308,33 @@ public abstract class Condition {
 	 */
 	protected abstract void getSQL(StringBuffer sb, List<Object> bindings, SqlContext context);
 
+	/**
+	 * Marks a bound value's position in a shape.
+	 */
+	static final Object BINDING = new Object();
+
+	/**
+	 * Internal function.  Do not use.  Subject to change.
+	 * <p>
+	 * Adds everything this condition's SQL depends on (but not its bound values) to
+	 * {@code shape}, and its bound values to {@code bindings} in the same order
+	 * {@code getSQL()} would add them.
+	 * @return false if this condition's SQL can't be derived from its shape
+	 */
+	boolean getShape(final List<Object> shape, final List<Object> bindings) {
+		return false;
+	}
+
+	private static boolean getShapes(final Class<?> type, final List<Condition> conditions,
+			final List<Object> shape, final List<Object> bindings) {
+		shape.add(type);
+		shape.add(conditions.size());
+		for (final Condition condition : conditions) {
+			if (!condition.getShape(shape, bindings)) return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Creates a new condition negating the current condition.
 	 * @return A new condition negating the current condition
@@ -369,6 +413,11 @@ public abstract class Condition {
 			sb.append(")");
 		}
 
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			return getShapes(And.class, conditions, shape, bindings);
+		}
+
 		@Override
 		boolean matches(final Table t) {
 			for (final Condition c : conditions) {
@@ -437,6 +486,11 @@ public abstract class Condition {
 			sb.append(")");
 		}
 
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			return getShapes(Or.class, conditions, shape, bindings);
+		}
+
 		@Override
 		boolean matches(final Table t) {
 			for (final Condition c : conditions) {
@@ -470,7 +524,7 @@ public abstract class Condition {
 
 	static class Not extends Condition {
 
-		private final Condition condition;
+		final Condition condition;
 		private boolean parens = true;
 
 		public Not(final Condition condition) {
@@ -490,6 +544,13 @@ public abstract class Condition {
 			if (parens) sb.append(")");
 		}
 
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(Not.class);
+			shape.add(parens);
+			return condition.getShape(shape, bindings);
+		}
+
 		@Override
 		boolean matches(final Table t) {
 			return !condition.matches(t);
@@ -562,6 +623,24 @@ public abstract class Condition {
 			}
 		}
 
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(Ternary.class);
+			shape.add(cmp1);
+			shape.add(cmp2);
+			for (final Object v : new Object[] {v1, v2, v3}) {
+				if (v instanceof Field) {
+					shape.add(v);
+				} else if (v instanceof Expression) {
+					return false;
+				} else {
+					shape.add(BINDING);
+					bindings.add(v);
+				}
+			}
+			return true;
+		}
+
 		@SuppressWarnings({ "rawtypes", "unchecked" })
 		@Override
 		boolean matches(final Table t) {
@@ -594,7 +673,7 @@ public abstract class Condition {
 
 		private final String prefix;
 		final Field<?> field;
-		private final String suffix;
+		final String suffix;
 
 		public <T> Unary(final Field<T> field, final String suffix) {
 			this.prefix = null;
@@ -622,6 +701,15 @@ public abstract class Condition {
 			if (suffix!=null) sb.append(suffix);
 		}
 
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(Unary.class);
+			shape.add(prefix);
+			shape.add(field);
+			shape.add(suffix);
+			return true;
+		}
+
 		@Override
 		boolean matches(final Table t) {
 			final Object v = t.get(field);
@@ -640,11 +728,11 @@ public abstract class Condition {
 	static class Binary extends Condition {
 
 		final Field<?> field;
-		private Object v;
+		Object v;
 		Field<?> field2;
 		final String cmp;
-		private DBRowIterator<?> s;
-		private Expression o2;
+		DBRowIterator<?> s;
+		Expression o2;
 
 		public <T> Binary(final Field<T> field, final String cmp, final Object v) {
 			// note "v" should be of type T here - set to object to work around
@@ -740,11 +828,29 @@ public abstract class Condition {
 			}
 		}
 
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			if (s!=null || o2!=null) return false;
+			shape.add(Binary.class);
+			shape.add(field);
+			if (v!=null) {
+				shape.add(cmp);
+				shape.add(BINDING);
+				bindings.add(v);
+			} else if (field2!=null) {
+				shape.add(cmp);
+				shape.add(field2);
+			}
+			return true;
+		}
+
 		@Override
 		boolean matches(final Table t) {
 			if (v!=null) {
 				if ("=".equals(cmp)) return v.equals(t.get(field));
 				if ("!=".equals(cmp)) return !v.equals(t.get(field));
+				final int c = compare(t.get(field), v, cmp);
+				if (c != NOT_COMPARED) return c != 0;
 				throw new RuntimeException("operator "+ cmp +" unsupported in in-memory comparisons");
 			} else if (field2!=null) {
 				final Object a = t.get(field);
@@ -816,14 +922,35 @@ public abstract class Condition {
 				sb.append("?");
 				bindings.add(o2);
 			}
-		}}
+		}
+
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(Binary2.class);
+			shape.add(cmp);
+			for (final Object o : new Object[] {o1, o2}) {
+				if (o instanceof Field) {
+					shape.add(o);
+				} else if (o instanceof Expression) {
+					return false;
+				} else if (o instanceof SQLFunction.SQLLiteral) {
+					shape.add(((SQLFunction.SQLLiteral)o).sql);
+				} else {
+					shape.add(BINDING);
+					bindings.add(o);
+				}
+			}
+			return true;
+		}
+
+	}
 
 	static class In extends Condition {
 
-		private final Field<?> field;
-		private final String cmp;
-		private final Object[] set;
-		private final Collection<?> set2;
+		final Field<?> field;
+		final String cmp;
+		final Object[] set;
+		final Collection<?> set2;
 
 		public In(final Field<?> field, final String cmp, final Object... set) {
 			this.field = field;
@@ -871,6 +998,30 @@ public abstract class Condition {
 			sb.append(')');
 		}
 
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(In.class);
+			shape.add(field);
+			shape.add(cmp);
+			if (set != null && set.length > 0) {
+				shape.add(set.length);
+				for (final Object v : set) {
+					if (v instanceof Field) {
+						shape.add(v);
+					} else {
+						shape.add(BINDING);
+						bindings.add(v);
+					}
+				}
+			} else if (set2 != null && set2.size() > 0) {
+				shape.add(set2.size());
+				bindings.addAll(set2);
+			} else {
+				shape.add(0);
+			}
+			return true;
+		}
+
 		@Override
 		boolean matches(final Table t) {
 			boolean rev;
@@ -892,6 +1043,93 @@ public abstract class Condition {
 		}
 	}
 
+	/**
+	 * An {@code in} over a single bound array, so a large set is one binding (and one
+	 * cached statement) instead of thousands. &nbsp; Only for databases whose drivers
+	 * support {@code Connection.createArrayOf()} - see {@code supports()}.
+	 */
+	static class InArray extends Condition {
+
+		private final Field<?> field;
+		private final Set<?> set;
+		private final Util.SQLArray array;
+
+		InArray(final Field<?> field, final String arrayType, final Set<?> set) {
+			this.field = field;
+			this.set = set;
+			this.array = new Util.SQLArray(arrayType, set.toArray());
+		}
+
+		/**
+		 * @return the array element type name for this field's values, or null if they
+		 * can't be bound as an array on this database
+		 */
+		static String getArrayType(final DB_TYPE dbType, final Field<?> field) {
+			final Class<?> type = field.TYPE;
+			if (dbType == DB_TYPE.POSTGRES) {
+				if (Integer.class.equals(type)) return "int4";
+				if (Long.class.equals(type)) return "int8";
+				if (Short.class.equals(type)) return "int2";
+				if (String.class.equals(type)) return "varchar";
+				if (Double.class.equals(type)) return "float8";
+				if (Float.class.equals(type)) return "float4";
+				if (java.math.BigDecimal.class.equals(type)) return "numeric";
+			}
+			if (dbType == DB_TYPE.HSQL) {
+				if (Integer.class.equals(type)) return "INTEGER";
+				if (Long.class.equals(type)) return "BIGINT";
+				if (Short.class.equals(type)) return "SMALLINT";
+				if (String.class.equals(type)) return "VARCHAR";
+				if (Double.class.equals(type)) return "DOUBLE";
+				if (java.math.BigDecimal.class.equals(type)) return "DECIMAL";
+			}
+			return null;
+		}
+
+		@Override
+		protected void getSQL(final StringBuffer sb, final List<Object> bindings, final SqlContext context) {
+			sb.append(' ');
+			sb.append(Util.derefField(field, context));
+			// hsql can't infer the type of "= any(?)", but can unnest a typed array
+			sb.append(context.dbType == DB_TYPE.HSQL ? " in (unnest(?))" : " = any(?)");
+			bindings.add(array);
+		}
+
+		@Override
+		boolean getShape(final List<Object> shape, final List<Object> bindings) {
+			shape.add(InArray.class);
+			shape.add(field);
+			shape.add(BINDING);
+			bindings.add(array);
+			return true;
+		}
+
+		@Override
+		boolean matches(final Table t) {
+			return set.contains(t.get(field));
+		}
+
+	}
+
+	static final int NOT_COMPARED = -1;
+
+	/**
+	 * Evaluates one of the range operators ({@code <, <=, >, >=}) in memory. &nbsp; Like
+	 * SQL, a null is never in range.
+	 * @return 1 if it holds, 0 if not, or {@code NOT_COMPARED} if cmp isn't a range operator
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compare(final Object a, final Object b, final String cmp) {
+		final boolean lt = "<".equals(cmp);
+		final boolean le = "<=".equals(cmp);
+		final boolean gt = ">".equals(cmp);
+		final boolean ge = ">=".equals(cmp);
+		if (!(lt || le || gt || ge)) return NOT_COMPARED;
+		if (a == null || b == null) return 0;
+		final int c = ((Comparable) a).compareTo(b);
+		return (lt && c < 0) || (le && c <= 0) || (gt && c > 0) || (ge && c >= 0) ? 1 : 0;
+	}
+
 	private static boolean eq(final Object a, final Object b) {
 		return a == b || (a != null && a.equals(b));
 	}
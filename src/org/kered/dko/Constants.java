@@ -179,6 +179,30 @@ public class Constants {
 			return this == SQLSERVER ? ".dbo." : ".";
 		}
 
+		/**
+		 * @return the most bind parameters a single statement can have, or 0 if multi-row
+		 * {@code insert ... values (...),(...)} isn't supported
+		 */
+		int getMaxBindParameters() {
+			switch (this) {
+			case MYSQL: return 65535;
+			case POSTGRES: return 32767;
+			case HSQL: return 32767;
+			case DERBY: return 32767;
+			// the documented limit is 2100, less a few the driver uses itself
+			case SQLSERVER: return 2000;
+			case SQLITE3: return 999;
+			default: return 0;
+			}
+		}
+
+		/**
+		 * @return the most rows a single multi-row {@code insert ... values} can have
+		 */
+		int getMaxRowsPerInsert() {
+			return this == SQLSERVER ? 1000 : Integer.MAX_VALUE;
+		}
+
 	}
 
 	@SuppressWarnings("serial")
@@ -305,6 +329,46 @@ public class Constants {
 
 	public static final String PROPERTY_USE_PERSISTENCE_DB = "org.kered.dko.use_persistence_db";
 
+	/**
+	 * A Java property that sets how many prepared statements are cached per connection.
+	 * Only connections that outlive a single query (transactions and pooled connections) are cached.
+	 * Set to 0 to disable.  Default: 32
+	 */
+	public static final String PROPERTY_STATEMENT_CACHE_SIZE = "org.kered.dko.statement_cache_size";
+
+	/**
+	 * A Java property that sets how many generated SQL strings are cached by query shape
+	 * (the query with its bound values left out).  Set to 0 to disable.  Default: 1024
+	 */
+	public static final String PROPERTY_SQL_CACHE_SIZE = "org.kered.dko.sql_cache_size";
+
+	/**
+	 * A Java property that sets the JDBC fetch size for select queries, so large results are
+	 * streamed instead of being read into memory all at once.  (MySQL streams row by row and
+	 * Postgres uses a cursor, see {@code Query.setFetchSize()})  Default: 0 (driver default)
+	 */
+	public static final String PROPERTY_FETCH_SIZE = "org.kered.dko.fetch_size";
+
+	/**
+	 * A Java property that turns on reading and decoding select results on a background thread,
+	 * a few batches ahead of the thread iterating over them.  Default: false
+	 */
+	public static final String PROPERTY_BACKGROUND_PREFETCH = "org.kered.dko.background_prefetch";
+
+	/**
+	 * A Java property that turns on lazy loading deferred columns and FK references for all the
+	 * objects read by the same query at once, instead of one query per object.  Default: true
+	 */
+	public static final String PROPERTY_BATCHED_LAZY_LOADING = "org.kered.dko.batched_lazy_loading";
+
+	/**
+	 * A Java property that sets how long (in millis) after writing through a
+	 * {@code MirroredDataSource} a thread's reads avoid mirrors that haven't caught up
+	 * with its writes.  (see {@code Context.setReadYourWritesWindow()})  Read once, when DKO is
+	 * loaded.  Default: 0 (off)
+	 */
+	public static final String PROPERTY_READ_YOUR_WRITES_WINDOW = "org.kered.dko.read_your_writes_window";
+
 	static enum JOIN_TYPE {
 
 		LEFT("left join"),
@@ -12,6 +12,8 @@ import java.util.UUID;
 import javax.sql.DataSource;
 
 import org.kered.dko.Tuple.Tuple2;
+import org.kered.dko.datasource.MatryoshkaDataSource;
+import org.kered.dko.datasource.MirroredDataSource;
 import org.kered.dko.persistence.QuerySize;
 
 
@@ -142,6 +144,38 @@ public class Context {
 		return true;
 	}
 
+	static boolean backgroundPrefetchEnabled() {
+		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
+		for (final Context context : contexts) {
+			Boolean x = null;
+			synchronized(context.enableBackgroundPrefetch) {
+				for (final Boolean v : context.enableBackgroundPrefetch.values()) {
+					x = v;
+				}
+			}
+			if (x != null) return x;
+		}
+		final String prop = System.getProperty(Constants.PROPERTY_BACKGROUND_PREFETCH);
+		if (prop != null) return Util.truthy(prop);
+		return false;
+	}
+
+	static boolean batchedLazyLoadingEnabled() {
+		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
+		for (final Context context : contexts) {
+			Boolean x = null;
+			synchronized(context.enableBatchedLazyLoading) {
+				for (final Boolean v : context.enableBatchedLazyLoading.values()) {
+					x = v;
+				}
+			}
+			if (x != null) return x;
+		}
+		final String prop = System.getProperty(Constants.PROPERTY_BATCHED_LAZY_LOADING);
+		if (prop != null) return Util.truthy(prop);
+		return true;
+	}
+
 	static boolean selectOptimizationsEnabled() {
 		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
 		for (final Context context : contexts) {
@@ -159,6 +193,112 @@ public class Context {
 		return true;
 	}
 
+	static int getStatementCacheSize() {
+		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
+		for (final Context context : contexts) {
+			Integer x = null;
+			synchronized(context.statementCacheSize) {
+				for (final Integer v : context.statementCacheSize.values()) {
+					x = v;
+				}
+			}
+			if (x != null) return x;
+		}
+		final String prop = System.getProperty(Constants.PROPERTY_STATEMENT_CACHE_SIZE);
+		if (prop != null) return Integer.parseInt(prop.trim());
+		return DEFAULT_STATEMENT_CACHE_SIZE;
+	}
+
+	static int getFetchSize() {
+		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
+		for (final Context context : contexts) {
+			Integer x = null;
+			synchronized(context.fetchSize) {
+				for (final Integer v : context.fetchSize.values()) {
+					x = v;
+				}
+			}
+			if (x != null) return x;
+		}
+		final String prop = System.getProperty(Constants.PROPERTY_FETCH_SIZE);
+		if (prop != null) return Integer.parseInt(prop.trim());
+		return 0;
+	}
+
+	static int getSqlCacheSize() {
+		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
+		for (final Context context : contexts) {
+			Integer x = null;
+			synchronized(context.sqlCacheSize) {
+				for (final Integer v : context.sqlCacheSize.values()) {
+					x = v;
+				}
+			}
+			if (x != null) return x;
+		}
+		final String prop = System.getProperty(Constants.PROPERTY_SQL_CACHE_SIZE);
+		if (prop != null) return Integer.parseInt(prop.trim());
+		return DEFAULT_SQL_CACHE_SIZE;
+	}
+
+	static long getReadYourWritesWindow() {
+		final Context[] contexts = {getThreadContext(), getThreadGroupContext(), getVMContext()};
+		for (final Context context : contexts) {
+			Long x = null;
+			synchronized(context.readYourWritesWindow) {
+				for (final Long v : context.readYourWritesWindow.values()) {
+					x = v;
+				}
+			}
+			if (x != null) return x;
+		}
+		return DEFAULT_READ_YOUR_WRITES_WINDOW;
+	}
+
+	/**
+	 * Notes that the current thread is writing to this {@code DataSource}.
+	 */
+	static void recordWrite(final DataSource ds) {
+		// called on every write, so check the cheap things first
+		if (!isMirrored(ds)) return;
+		if (getReadYourWritesWindow() <= 0) return;
+		// the write isn't committed yet - it's timed by the next read (which can't start until it is)
+		getThreadContext().lastWrites.put(ds, WRITE_NOT_TIMED);
+	}
+
+	/**
+	 * @return true if this is (or wraps, by {@code MatryoshkaDataSource}) a
+	 * {@code MirroredDataSource}, the only kind whose reads can go somewhere its writes don't
+	 */
+	private static boolean isMirrored(DataSource ds) {
+		while (ds instanceof MatryoshkaDataSource) {
+			if (ds instanceof MirroredDataSource) return true;
+			ds = ((MatryoshkaDataSource) ds).getPrimaryUnderlying();
+		}
+		return false;
+	}
+
+	/**
+	 * @return when the current thread last wrote to this {@code DataSource}, or -1 if
+	 * not within the read-your-writes window
+	 */
+	static long getLastWrite(final DataSource ds) {
+		final Map<DataSource,Long> lastWrites = getThreadContext().lastWrites;
+		if (lastWrites.isEmpty()) return -1;
+		final Long time = lastWrites.get(ds);
+		if (time == null) return -1;
+		final long now = System.currentTimeMillis();
+		if (time == WRITE_NOT_TIMED) {
+			lastWrites.put(ds, now);
+			return now;
+		}
+		if (now - time > getReadYourWritesWindow()) {
+			lastWrites.remove(ds);
+			return -1;
+		}
+		return time;
+	}
+
 	/**
 	 * Returns true if currently inside a transaction.
 	 * @param ds
@@ -233,7 +373,9 @@ public class Context {
 			Util.log("connection.commit()", null);
 			c.commit();
 		}
+		StatementCache.clear(c);
 		c.close();
+		recordWrite(ds);
 		return true;
 	}
 
@@ -269,6 +411,7 @@ public class Context {
 			}
 		} catch (final SQLException e) {
 			e.printStackTrace();
+			StatementCache.clear(c);
 			try {
 				c.close();
 			} catch (final SQLException e2) {
@@ -276,6 +419,7 @@ public class Context {
 			}
 			return false;
 		}
+		StatementCache.clear(c);
 		try {
 			c.close();
 		} catch (final SQLException e) {
@@ -299,6 +443,7 @@ public class Context {
 		} catch (final SQLException e) {
 			throw e;
 		} finally {
+			StatementCache.clear(c);
 			c.close();
 		}
 		return true;
@@ -422,6 +567,45 @@ public class Context {
 		};
 	}
 
+	/**
+	 * Turns on and off reading query results on a background thread. &nbsp; When on, rows are
+	 * read and decoded a few batches ahead of the code iterating over them, so database
+	 * latency overlaps with whatever work is done per row. &nbsp; Only applies to queries
+	 * that get their own connection (not inside a transaction), as JDBC connections
+	 * aren't safe to share between threads.
+	 * @param enable
+	 * @return
+	 */
+	public Undoer enableBackgroundPrefetch(final boolean enable) {
+		final UUID uuid = UUID.randomUUID();
+		enableBackgroundPrefetch.put(uuid, enable);
+		return new Undoer() {
+			@Override
+			public void undo() {
+				enableBackgroundPrefetch.remove(uuid);
+			}
+		};
+	}
+
+	/**
+	 * Turns on and off batched lazy loading. &nbsp; When on (the default), the first time a
+	 * deferred column or an FK reference (not loaded with {@code with()}) is read on an object,
+	 * it's loaded for up to a few hundred of the other objects read by the same query in one
+	 * {@code IN (...)} query, rather than one query per object.
+	 * @param enable
+	 * @return
+	 */
+	public Undoer enableBatchedLazyLoading(final boolean enable) {
+		final UUID uuid = UUID.randomUUID();
+		enableBatchedLazyLoading.put(uuid, enable);
+		return new Undoer() {
+			@Override
+			public void undo() {
+				enableBatchedLazyLoading.remove(uuid);
+			}
+		};
+	}
+
 	/**
 	 * Turns on and off select optimizations that par down selected fields that are never used.
 	 * @param enable
@@ -439,6 +623,82 @@ public class Context {
 	}
 
 
+	/**
+	 * Sets how many prepared statements are kept open per connection (LRU). &nbsp;
+	 * Statements are only cached on connections that outlive a single query, like
+	 * those inside a transaction or handed out by a connection pool. &nbsp;
+	 * Set to 0 to disable.
+	 * @param size
+	 * @return
+	 */
+	public Undoer setStatementCacheSize(final int size) {
+		final UUID uuid = UUID.randomUUID();
+		statementCacheSize.put(uuid, size);
+		return new Undoer() {
+			@Override
+			public void undo() {
+				statementCacheSize.remove(uuid);
+			}
+		};
+	}
+
+	/**
+	 * Sets the JDBC fetch size for select queries that don't set their own with
+	 * {@code Query.setFetchSize()}. &nbsp; See that method for how each database streams. &nbsp;
+	 * Set to 0 to use the driver's default.
+	 * @param rows
+	 * @return
+	 */
+	public Undoer setFetchSize(final int rows) {
+		final UUID uuid = UUID.randomUUID();
+		fetchSize.put(uuid, rows);
+		return new Undoer() {
+			@Override
+			public void undo() {
+				fetchSize.remove(uuid);
+			}
+		};
+	}
+
+	/**
+	 * Sets how many generated SQL strings are cached by query shape (LRU). &nbsp;
+	 * Queries that differ only in the values they compare against share one
+	 * cached string, so the select/from/where/order by clauses aren't rebuilt
+	 * every time they're run. &nbsp; Set to 0 to disable.
+	 * @param size
+	 * @return
+	 */
+	public Undoer setSqlCacheSize(final int size) {
+		final UUID uuid = UUID.randomUUID();
+		sqlCacheSize.put(uuid, size);
+		return new Undoer() {
+			@Override
+			public void undo() {
+				sqlCacheSize.remove(uuid);
+			}
+		};
+	}
+
+	/**
+	 * Sets how long (in millis) after this thread writes through a {@code MirroredDataSource}
+	 * its reads only go to mirrors known to have caught up with that write (or to the primary),
+	 * so it always reads its own writes. &nbsp; Writes are tracked per thread and
+	 * {@code DataSource}. &nbsp; See {@code MirroredDataSource.getMirroredConnection(since)} for
+	 * how mirrors are known to have caught up. &nbsp; Set to 0 to disable (the default).
+	 * @param millis
+	 * @return
+	 */
+	public Undoer setReadYourWritesWindow(final long millis) {
+		final UUID uuid = UUID.randomUUID();
+		readYourWritesWindow.put(uuid, millis);
+		return new Undoer() {
+			@Override
+			public void undo() {
+				readYourWritesWindow.remove(uuid);
+			}
+		};
+	}
+
 	/**
 	 * Allows you to undo any context change. &nbsp; By default will automatically undo
 	 * once this object is GCed, but this can be turned off by calling {@code setAutoUndo(false)}.
@@ -461,6 +721,19 @@ public class Context {
 		}
 	}
 
+	private static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+
+	private static final int DEFAULT_SQL_CACHE_SIZE = 1024;
+
+	private static final long WRITE_NOT_TIMED = -1;
+
+	// the system property is read once, as it's looked up on every write to a mirrored DataSource
+	private static final long DEFAULT_READ_YOUR_WRITES_WINDOW;
+	static {
+		final String prop = System.getProperty(Constants.PROPERTY_READ_YOUR_WRITES_WINDOW);
+		DEFAULT_READ_YOUR_WRITES_WINDOW = prop == null ? 0 : Long.parseLong(prop.trim());
+	}
+
 	private static Context vmContext = new Context();
 
 	private static Map<ThreadGroup,Context> threadGroupContexts =
@@ -482,6 +755,28 @@ public class Context {
 	private final Map<UUID,Boolean> enableSelectOptimizations =
 			Collections.synchronizedMap(new LinkedHashMap<UUID,Boolean>());
 
+	private final Map<UUID,Boolean> enableBackgroundPrefetch =
+			Collections.synchronizedMap(new LinkedHashMap<UUID,Boolean>());
+
+	private final Map<UUID,Boolean> enableBatchedLazyLoading =
+			Collections.synchronizedMap(new LinkedHashMap<UUID,Boolean>());
+
+	private final Map<UUID,Integer> statementCacheSize =
+			Collections.synchronizedMap(new LinkedHashMap<UUID,Integer>());
+
+	private final Map<UUID,Integer> sqlCacheSize =
+			Collections.synchronizedMap(new LinkedHashMap<UUID,Integer>());
+
+	private final Map<UUID,Integer> fetchSize =
+			Collections.synchronizedMap(new LinkedHashMap<UUID,Integer>());
+
+	private final Map<UUID,Long> readYourWritesWindow =
+			Collections.synchronizedMap(new LinkedHashMap<UUID,Long>());
+
+	// only used in thread contexts
+	private final Map<DataSource,Long> lastWrites =
+			Collections.synchronizedMap(new HashMap<DataSource,Long>());
+
 	private final Map<UUID,DataSource> defaultDataSource =
 			Collections.synchronizedMap(new LinkedHashMap<UUID,DataSource>());
 
@@ -65,6 +65,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 	private boolean onlySelectFromFirstTableAndJoins = true;
 	List<Union<T>> unions = null;
 	private Integer timeout = null;
+	private Integer fetchSize = null;
 
 	private TableInfo addTable(final Class<? extends Table> table) {
 		final String tableName = genTableName(table, usedTableNames);
@@ -134,6 +135,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 			unions = new ArrayList<Union<T>>(q.unions);
 		}
 		timeout = q.timeout;
+		fetchSize = q.fetchSize;
 	}
 
 	DBQuery(final Class<T> tableClass) {
@@ -301,7 +303,9 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		}
 		try {
 			if (ds.isWrapperFor(MirroredDataSource.class)) {
-				return new Tuple2<Connection,Boolean>(ds.unwrap(MirroredDataSource.class).getMirroredConnection(), true);
+				final MirroredDataSource mds = ds.unwrap(MirroredDataSource.class);
+				// read-your-writes: skip mirrors that may not have our last write yet
+				return new Tuple2<Connection,Boolean>(mds.getMirroredConnection(Context.getLastWrite(ds)), true);
 			}
 		} catch (final AbstractMethodError e) {
 			/* ignore - mysql doesn't implement this method */
@@ -321,6 +325,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		if (Context.inTransaction(ds)) {
 			return new Tuple2<Connection,Boolean>(Context.getConnection(ds), false);
 		}
+		Context.recordWrite(ds);
 		return new Tuple2<Connection,Boolean>(ds.getConnection(), true);
 	}
 
@@ -582,6 +587,72 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 				Collections.unmodifiableList(bindings));
 	}
 
+	/**
+	 * Returns a key describing everything the generated select SQL depends on except
+	 * the values bound in the where clause, which are added to {@code bindings} in
+	 * statement order. &nbsp; Two queries with equal shapes generate the same SQL.
+	 * @return null if this query's SQL can't be cached by shape (unions, explicit joins,
+	 * inner queries, temp tables, subquery conditions...)
+	 */
+	List<Object> getShape(final SqlContext context, final List<Object> bindings) {
+		if (context.inInnerQuery() || unions != null || !joins.isEmpty()) return null;
+		final List<Object> shape = new ArrayList<Object>();
+		shape.add(ofType);
+		shape.add(context.dbType);
+		shape.add(distinct);
+		shape.add(top);
+		shape.add(globallyAppliedSelectFunction);
+		shape.add(includeCrossInSelect);
+		shape.add(onlySelectFromFirstTableAndJoins);
+		shape.add(tableNameMap == null);
+		shape.add(deferSet);
+		// ordered, as the select columns are read back by position
+		shape.add(onlySet == null ? null : new ArrayList<Expression.Select<?>>(onlySet));
+		shape.add(groupBySet == null ? null : new ArrayList<Field<?>>(groupBySet));
+		shape.add(orderByExpressions);
+		final DataSource ds = getDataSource();
+		shape.add(tableInfos.size());
+		for (final TableInfo ti : tableInfos) {
+			if (!addShape(ti, ds, shape)) return null;
+		}
+		final List<Object> joinBindings = new ArrayList<Object>();
+		for (final List<JoinInfo> withJoins : Arrays.asList(joinsToOne, joinsToMany)) {
+			shape.add(withJoins.size());
+			for (final JoinInfo join : withJoins) {
+				shape.add(join.type);
+				if (!addShape(join.reffedTableInfo, ds, shape)) return null;
+				if (!addShape(join.reffingTableInfo, ds, shape)) return null;
+				if (!join.condition.getShape(shape, joinBindings)) return null;
+			}
+		}
+		if (!joinBindings.isEmpty()) return null;
+		List<Condition> conditions = this.conditions;
+		if (context.dbType==DB_TYPE.ORACLE && top>0 && joinsToMany.size()==0) {
+			conditions = conditions==null ? new ArrayList<Condition>() : new ArrayList<Condition>(conditions);
+			conditions.add(new Condition.Binary2(new SQLFunction.SQLLiteral("rownum"), "<=", top));
+		}
+		if (conditions!=null) {
+			shape.add(conditions.size());
+			for (final Condition condition : conditions) {
+				if (!condition.getShape(shape, bindings)) return null;
+			}
+		}
+		return shape;
+	}
+
+	private static boolean addShape(final TableInfo ti, final DataSource ds, final List<Object> shape) {
+		if (ti == null) {
+			shape.add(null);
+			return true;
+		}
+		if (ti.innerQuery != null || ti.dummyTable != null) return false;
+		shape.add(ti.tableClass);
+		shape.add(ti.tableName);
+		shape.add(ti.nameAutogenned);
+		shape.add(Context.getSchemaToUse(ds, Util.getSchemaName(ti.tableClass)));
+		return true;
+	}
+
 	private void initTableNameMap(final boolean bindTables) {
 		tableNameMap = new HashMap<String,Set<String>>();
 		for (final TableInfo ti : tableInfos) {
@@ -931,6 +1002,20 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		return ps;
 	}
 
+	/**
+	 * Like {@code createPS()}, but reuses a statement from the connection's
+	 * {@code StatementCache} if one was prepared with the same SQL.
+	 * Hand it back with {@code StatementCache.release()} when done.
+	 */
+	PreparedStatement createCachedPS(final String sql, final Connection conn)
+			throws SQLException {
+		final PreparedStatement ps = StatementCache.take(conn, sql);
+		if (ps == null) return createPS(sql, conn);
+		ps.clearParameters();
+		ps.setQueryTimeout(timeout==null ? 0 : timeout);
+		return ps;
+	}
+
 	List<String> getTableNameList(final SqlContext context) {
 		final DBQuery<?> rootQuery = context == null ? this : context.getRootQuery();
 		final DataSource ds = rootQuery.getDataSource();
@@ -939,10 +1024,7 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		final List<String> names = new ArrayList<String>();
 		for (final TableInfo ti : tableInfos) {
 			if (ti.dummyTable != null) {
-				String tblPrefix = "";
-				if (dbType==DB_TYPE.SQLSERVER) tblPrefix = "#";
-				if (dbType==DB_TYPE.DERBY) tblPrefix = "SESSION.";
-				names.add(tblPrefix + ti.dummyTable.name +" "+ ti.tableName);
+				names.add(ti.dummyTable.getTableName(dbType) +" "+ ti.tableName);
 			} else {
 				final String schema = Context.getSchemaToUse(ds, Util.getSchemaName(ti.tableClass));
 				final String noContextTableName = "".equals(schema) ? Util.getTableName(ti.tableClass) : schema+"."+Util.getTableName(ti.tableClass);
@@ -1502,13 +1584,20 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Iterable<Object[]> asIterableOfObjectArrays() {
+		return asIterableOfObjectArrays(false);
+	}
+
+	@Override
+	public Iterable<Object[]> asIterableOfObjectArrays(final boolean reuseArrays) {
 		final DBQuery<T> q = new DBQuery<T>(this);
 		q.onlySelectFromFirstTableAndJoins  = false;
 		q.includeCrossInSelect = true;
 		return new Iterable<Object[]>() {
 			@Override
 			public Iterator<Object[]> iterator() {
-				return new DBRowIterator<T>(q, false);
+				final DBRowIterator<T> i = new DBRowIterator<T>(q, false);
+				i.setReuseRowArrays(reuseArrays);
+				return i;
 			}
 		};
 	}
@@ -1699,20 +1788,66 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		return new DBQuery<Join<T,S>>(Join.class, this, alias.table, alias.alias, "inner join", condition);
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * The most rows {@code in(Collection)} will write out as an or of and-ed conditions
+	 * for a multi-column primary key (before switching to a temp table).
+	 */
+	static final int MAX_INLINE_COMPOSITE_IN = 64;
+
+	/**
+	 * Filters by primary key with whichever of these is cheapest for the set's size
+	 * and the database:  an inline {@code in (?,?,...)} list for small sets, a single
+	 * bound array ({@code = any(?)}) where the driver supports them, or a join against
+	 * a pooled temporary table for everything else.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Override
 	public Query<T> in(final Collection<T> set) {
 		final PK<T> pk = Util.getPK(ofType);
-		final TemporaryTableFactory.DummyTableWithName<T> tmp = TemporaryTableFactory.createTemporaryTable(ofType, pk.GET_FIELDS(), set);
-		final String aliasName = tmp.name.replace("NOSCO_", "tmp_");
+		final List<Field<?>> pkFields = pk.GET_FIELDS();
+		final DB_TYPE dbType = getDBType();
+		if (pkFields.size() == 1) {
+			final Field field = pkFields.get(0);
+			final Set<Object> values = new LinkedHashSet<Object>();
+			for (final T t : set) values.add(t.get(field));
+			// (not field.in(), which switches to a temp table for sets this size)
+			if (values.size() <= getMaxInlineIn(dbType)) return where(new Condition.In(field, " in ", values));
+			final String arrayType = Condition.InArray.getArrayType(dbType, field);
+			if (arrayType != null) return where(new Condition.InArray(field, arrayType, values));
+		} else if (set.size() <= MAX_INLINE_COMPOSITE_IN) {
+			if (set.isEmpty()) return where(Condition.FALSE);
+			final List<Condition> rows = new ArrayList<Condition>();
+			for (final T t : new LinkedHashSet<T>(set)) {
+				Condition row = null;
+				for (final Field field : pkFields) {
+					final Condition c = field.eq(t.get(field));
+					row = row == null ? c : row.and(c);
+				}
+				rows.add(row);
+			}
+			return where(rows.get(0).or(rows.subList(1, rows.size()).toArray(new Condition[0])));
+		}
+		final TemporaryTableFactory.DummyTableWithName<T> tmp = TemporaryTableFactory.createTemporaryTable(ofType, pkFields, set);
+		final String aliasName = "tmp_"+ tmp.batch;
 		final Table.__Alias<T> alias = new Table.__Alias<T>(tmp, aliasName);
 		Query<T> q = cross(alias);
-		for (@SuppressWarnings("rawtypes") final Field field : pk.GET_FIELDS()) {
+		q = q.where(TemporaryTableFactory.BATCH.from(aliasName).eq(tmp.batch));
+		for (final Field field : pkFields) {
 			q = q.where(field.eq(field.from(aliasName)));
 		}
 		return q;
 	}
 
+	/**
+	 * @return the most values {@code in(Collection)} will bind inline, leaving at least
+	 * half the database's bind parameters for the rest of the query
+	 */
+	static int getMaxInlineIn(final DB_TYPE dbType) {
+		final int maxBindParameters = dbType == null ? 0 : dbType.getMaxBindParameters();
+		// oracle caps in lists at 1000 expressions
+		return maxBindParameters > 0 ? Math.min(1000, maxBindParameters / 2) : 1000;
+	}
+
 	@Override
 	public Query<T> alsoSelect(final Collection<Expression.Select<?>> fields) {
 		final DBQuery<T> q = new DBQuery<T>(this);
@@ -1823,6 +1958,17 @@ class DBQuery<T extends Table> extends AbstractQuery<T> {
 		return q;
 	}
 
+	@Override
+	public Query<T> setFetchSize(int rows) {
+		final DBQuery<T> q = new DBQuery<T>(this);
+		q.fetchSize = rows;
+		return q;
+	}
+
+	int getFetchSize() {
+		return fetchSize == null ? Context.getFetchSize() : fetchSize;
+	}
+
 	@Override
 	public Query<T> orderBy(Expression.OrderBy<?>... obes) {
 		final DBQuery<T> q = new DBQuery<T>(this);
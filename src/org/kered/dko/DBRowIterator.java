@@ -11,10 +11,11 @@ import java.sql.SQLException;
 import java.sql.SQLRecoverableException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
@@ -27,6 +28,12 @@ import org.kered.dko.Tuple.Tuple2;
 class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[]> {
 
 	private static final int BATCH_SIZE = 2048;
+	private static final int MIN_BATCH_SIZE = 16;
+	// roughly how much memory a batch of prefetched rows should take up
+	private static final int BATCH_BYTES = 4 * 1024 * 1024;
+	// how many batches the background prefetch thread can get ahead
+	private static final int PREFETCH_BATCHES = 4;
+	private static final Object END_OF_ROWS = new Object();
 
 	@Override
 	protected void finalize() throws Throwable {
@@ -42,12 +49,17 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 	private PreparedStatement ps;
 	private ResultSet rs;
 	Select<?>[] selectedFields;
+	private final ColumnReader[] readers;
 	private Expression.Select<?>[] selectedBoundFields;
 	private Connection conn;
-	private final Queue<Object[]> nextRows = new LinkedList<Object[]>();
+	private final RowBuffer nextRows = new RowBuffer(BATCH_SIZE);
 	private boolean done = false;
 	Object[] lastFieldValues;
 	private boolean shouldCloseConnection = true;
+	private boolean cacheStatement = false;
+	private boolean restoreAutoCommit = false;
+	private Prefetcher prefetcher = null;
+	private String sql = null;
 	private SqlContext context = null;
 	DataSource ds = null;
 	final UsageMonitor<T> usageMonitor;
@@ -57,6 +69,7 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 	private final Constructor<T> joinConstructor = null;
 
 	private boolean finishedNatually = false;
+	private boolean exhausted = false;
 
 	DBRowIterator(final DBQuery<T> dbQuery) {
 		this(dbQuery, true);
@@ -74,15 +87,24 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		this.query = usageMonitor==null ? dbQuery : usageMonitor.getSelectOptimizedQuery();
 		final List<Select<?>> selectFieldsList = query.getSelectFields(false);
 		selectedFields = selectFieldsList.toArray(new Expression.Select<?>[0]);
+		readers = ColumnReader.forFields(selectedFields);
 		if (this.usageMonitor!=null) {
 			this.usageMonitor.setSelectedFields(selectedFields);
 		}
 		ds  = query.getDataSource();
 	}
 
+	/**
+	 * If true, the {@code Object[]}s returned by {@code next()} are recycled for later rows. &nbsp;
+	 * Each one is only valid until the following call to {@code next()}. &nbsp; Must be set
+	 * before iterating.
+	 */
+	void setReuseRowArrays(final boolean reuse) {
+		nextRows.setReuse(reuse);
+	}
+
 	void init() {
 		// old iterator method before merging
-		String sql = null;
 		try {
 			final Tuple2<Connection,Boolean> connInfo = DBQuery.getConnR(ds);
 			conn = connInfo.a;
@@ -92,17 +114,38 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 			sql = ret.a;
 			Util.log(sql, ret.b);
 			query._preExecute(context, conn);
-			ps = query.createPS(ret.a, conn);
-			if (context.dbType==DB_TYPE.DERBY && query.top>0 && query.joinsToMany.size()==0) {
-				ps.setMaxRows((int) query.top);
+			final int fetchSize = query.getFetchSize();
+			// streaming statements aren't cached, as their fetch settings would stick
+			cacheStatement = fetchSize <= 0 && StatementCache.isCacheable(conn, shouldCloseConnection);
+			ps = cacheStatement ? query.createCachedPS(sql, conn) : query.createPS(sql, conn);
+			if (fetchSize > 0) setFetchSize(fetchSize);
+			if (context.dbType==DB_TYPE.DERBY && query.joinsToMany.size()==0) {
+				// always set, as a cached statement may have been limited by a previous query
+				ps.setMaxRows(query.top>0 ? (int) query.top : 0);
 			}
 			query.setBindings(ps, ret.b);
 			ps.execute();
 			rs = ps.getResultSet();
 			done = false;
+			if (rs != null && shouldCloseConnection && Context.backgroundPrefetchEnabled()) {
+				// rows are handed across threads, so they can't be recycled
+				nextRows.setReuse(false);
+				prefetcher = new Prefetcher(rs, readers, sql);
+				prefetcher.start();
+			}
 		} catch (final SQLException e) {
 			log.severe(sql + "\n => " + e.getMessage());
 			e.printStackTrace();
+			try {
+				if (ps!=null && !ps.isClosed()) ps.close();
+			} catch (final SQLException e1) {
+				e1.printStackTrace();
+			}
+			try {
+				if (restoreAutoCommit) conn.setAutoCommit(true);
+			} catch (final SQLException e1) {
+				e1.printStackTrace();
+			}
 			try {
 				if (conn!=null && !conn.isClosed()) conn.close();
 			} catch (final SQLException e1) {
@@ -117,6 +160,27 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		initted  = true;
 	}
 
+	private void setFetchSize(final int fetchSize) throws SQLException {
+		if (context.dbType == DB_TYPE.MYSQL) {
+			// connector/j only streams results with this magic value
+			ps.setFetchSize(Integer.MIN_VALUE);
+		} else if (context.dbType == DB_TYPE.POSTGRES) {
+			// postgres ignores the fetch size (and reads everything) unless autocommit is off
+			if (conn.getAutoCommit()) {
+				Util.log("connection.setAutoCommit(false)", null);
+				conn.setAutoCommit(false);
+				restoreAutoCommit = true;
+			}
+			ps.setFetchSize(fetchSize);
+		} else {
+			try {
+				ps.setFetchSize(fetchSize);
+			} catch (final SQLException e) {
+				log.fine("fetch size not supported by this driver: "+ e);
+			}
+		}
+	}
+
 	protected String getSQL() {
 		return getSQL(new SqlContext(query)).a;
 	}
@@ -127,6 +191,12 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 
 	protected Tuple2<String,List<Object>> getSQL(final SqlContext context) {
 		selectedBoundFields = query.getSelectFields(true).toArray(new Expression.Select<?>[0]);
+		final List<Object> shapeBindings = new ArrayList<Object>();
+		final List<Object> shape = Context.getSqlCacheSize() > 0 ? query.getShape(context, shapeBindings) : null;
+		final String cachedSQL = SqlCache.get(shape);
+		if (cachedSQL != null) {
+			return new Tuple2<String,List<Object>>(cachedSQL, shapeBindings);
+		}
 		final StringBuffer sb = new StringBuffer();
 		final List<Object> bindings = new ArrayList<Object>();
 		appendSelectFromWhere(query, selectedBoundFields, context, sb, bindings);
@@ -188,6 +258,7 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		}
 
 		final String sql = sb.toString();
+		SqlCache.put(shape, shapeBindings, sql, bindings);
 		return new Tuple2<String,List<Object>>(sql, bindings);
 	}
 
@@ -227,7 +298,8 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 	public Object[] peek() {
 		if (!done && nextRows.isEmpty()) {
 			try {
-				readNextRows(BATCH_SIZE);
+				if (prefetcher != null) takePrefetchedRows();
+				else readNextRows(BATCH_SIZE);
 			} catch (final SQLException e) {
 				throw new RuntimeException(e);
 			}
@@ -239,27 +311,155 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		else return nextRows.peek();
 	}
 
-	private int readNextRows(final int max) throws SQLException {
+	private int readNextRows(final int maxRows) throws SQLException {
 		if (rs == null) return 0;
+		int max = maxRows;
 		int c = 0;
-		while (c < max) {
+		while (c < max && !nextRows.isFull()) {
 			if (!rs.next()) {
+				exhausted = true;
 				close();
 				//preFetchOtherJoins();
 				return c;
 			}
 			++c;
-			final Object[] nextRow = new Object[selectedFields.length];
-			for (int i=0; i<selectedFields.length; ++i) {
-				nextRow[i] = Util.getTypedValueFromRS(rs, i+1, selectedFields[i]);
-			}
-			nextRows.add(nextRow);
+			final Object[] nextRow = readRow(rs, readers, nextRows.add(readers.length));
+			if (c == 1) max = getBatchSize(nextRow, max);
 			if (usageMonitor!=null) ++usageMonitor.rowCount;
 		}
 		//preFetchOtherJoins();
 		return c;
 	}
 
+	private static Object[] readRow(final ResultSet rs, final ColumnReader[] readers, final Object[] row) throws SQLException {
+		for (int i=0; i<readers.length; ++i) {
+			row[i] = readers[i].read(rs, i+1);
+		}
+		return row;
+	}
+
+	/**
+	 * Sizes a batch by how wide the rows actually are.
+	 */
+	private static int getBatchSize(final Object[] firstRow, final int max) {
+		return Math.max(MIN_BATCH_SIZE, Math.min(max, BATCH_BYTES / estimateSize(firstRow)));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void takePrefetchedRows() throws SQLException {
+		final Object x = prefetcher.take();
+		if (x == END_OF_ROWS) {
+			exhausted = true;
+			close();
+		} else if (x instanceof SQLException) {
+			close();
+			throw (SQLException) x;
+		} else if (x instanceof Throwable) {
+			close();
+			throw new RuntimeException((Throwable) x);
+		} else {
+			for (final Object[] row : (List<Object[]>) x) {
+				nextRows.add(row);
+				if (usageMonitor!=null) ++usageMonitor.rowCount;
+			}
+		}
+	}
+
+	/**
+	 * Reads and decodes rows on a background thread, up to {@code PREFETCH_BATCHES}
+	 * batches ahead of the consumer. &nbsp; Hands over batches of rows, then either
+	 * {@code END_OF_ROWS} or whatever it threw. &nbsp; Doesn't reference the iterator,
+	 * so an abandoned iterator can still be finalized (and closed).
+	 */
+	private static class Prefetcher implements Runnable {
+
+		private final BlockingQueue<Object> batches = new ArrayBlockingQueue<Object>(PREFETCH_BATCHES);
+		private final Thread thread = new Thread(this, "DKO prefetch");
+		private volatile boolean stopped = false;
+		private final ResultSet rs;
+		private final ColumnReader[] readers;
+		private final String sql;
+
+		Prefetcher(final ResultSet rs, final ColumnReader[] readers, final String sql) {
+			this.rs = rs;
+			this.readers = readers;
+			this.sql = sql;
+		}
+
+		void start() {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				try {
+					boolean more = true;
+					while (more && !stopped) {
+						int max = BATCH_SIZE;
+						final List<Object[]> batch = new ArrayList<Object[]>();
+						while (batch.size() < max && (more = rs.next())) {
+							final Object[] row = readRow(rs, readers, new Object[readers.length]);
+							if (batch.isEmpty()) max = getBatchSize(row, max);
+							batch.add(row);
+						}
+						if (!batch.isEmpty()) put(batch);
+					}
+					if (!more) put(END_OF_ROWS);
+				} catch (final Throwable e) {
+					// errors caused by close() cancelling the query aren't interesting
+					if (!stopped) put(e);
+				}
+			} catch (final InterruptedException e) {
+				/* stopping */
+			}
+		}
+
+		/**
+		 * Blocks while the queue is full, giving up if the consumer stops us.
+		 */
+		private void put(final Object o) throws InterruptedException {
+			while (!stopped) {
+				if (batches.offer(o, 100, TimeUnit.MILLISECONDS)) return;
+			}
+		}
+
+		Object take() {
+			try {
+				return batches.take();
+			} catch (final InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Tells the thread to stop and waits for it to let go of the result set.
+		 * Cancel the statement first if it might be blocked reading.
+		 */
+		void stop() {
+			stopped = true;
+			batches.clear();
+			try {
+				thread.join(10 * 1000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (thread.isAlive()) log.warning("prefetch thread did not stop for: "+ sql);
+		}
+
+	}
+
+	private static int estimateSize(final Object[] row) {
+		int size = 16 + 8 * row.length;
+		for (final Object o : row) {
+			if (o instanceof String) size += 40 + 2 * ((String) o).length();
+			else if (o instanceof byte[]) size += 16 + ((byte[]) o).length;
+			else if (o != null) size += 16;
+		}
+		return size;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public boolean hasNext() {
@@ -276,8 +476,11 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 	@Override
 	public synchronized void close() {
 		if (done) return;
+		// only statements whose results were fully read go back in the cache
+		final boolean releaseStatement = cacheStatement && exhausted && ps!=null;
+		if (prefetcher != null) prefetcher.stopped = true;
 		try {
-			if (!finishedNatually && rs!=null && !rs.isClosed()) {
+			if (!finishedNatually && !exhausted && rs!=null && !rs.isClosed()) {
 				if (!"org.sqldroid.SQLDroidPreparedStatement".equals(ps.getClass().getName())) {
 					// SQLDroid doesn't implement cancel
 					ps.cancel();
@@ -293,6 +496,7 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 				throw e;
 			}
 		}
+		if (prefetcher != null) prefetcher.stop();
 		try {
 			if (rs!=null && !rs.isClosed()) rs.close();
 		} catch (final SQLException e2) {
@@ -305,7 +509,10 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 			}
 		}
 		try {
-			if (ps!=null && !ps.isClosed()) ps.close();
+			if (releaseStatement) {
+				StatementCache.release(conn, sql, ps);
+				ps = null;
+			} else if (ps!=null && !ps.isClosed()) ps.close();
 		} catch (final SQLException e1) {
 			e1.printStackTrace();
 		} catch (final AbstractMethodError e) {
@@ -320,6 +527,17 @@ class DBRowIterator<T extends Table> implements PeekableClosableIterator<Object[
 		} catch (final SQLException e1) {
 			e1.printStackTrace();
 		}
+		if (restoreAutoCommit) {
+			try {
+				// ends the read-only transaction the cursor ran in
+				conn.commit();
+				Util.log("connection.setAutoCommit(true)", null);
+				conn.setAutoCommit(true);
+			} catch (final SQLException e) {
+				e.printStackTrace();
+			}
+			restoreAutoCommit = false;
+		}
 		if (shouldCloseConnection) {
 			try {
 				if (conn!=null && !conn.isClosed()) conn.close();
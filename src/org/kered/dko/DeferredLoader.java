@@ -0,0 +1,141 @@
+package org.kered.dko;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+/**
+ * Groups objects read by the same query so deferred columns and FK references can be
+ * lazy loaded for all of them at once. &nbsp; When a deferred column (or an FK object not
+ * pre-loaded with {@code with()}) is first read on one object, it is loaded for every
+ * object in its group that hasn't fetched it yet, with one {@code IN (...)} query instead
+ * of one query per object.
+ * <p>
+ * Groups are capped at {@code BATCH_SIZE} objects, so long scans don't keep every
+ * object they've returned alive. &nbsp; Only simple (single column) primary and foreign
+ * keys are batched; everything else falls back to per-object loading.
+ *
+ * @author Derek Anderson
+ */
+class DeferredLoader {
+
+	static final int BATCH_SIZE = 256;
+
+	private final Class<? extends Table> cls;
+	private final DataSource ds;
+	private final List<Table> members = new ArrayList<Table>();
+
+	DeferredLoader(final Class<? extends Table> cls, final DataSource ds) {
+		this.cls = cls;
+		this.ds = ds;
+	}
+
+	boolean isFull() {
+		return members.size() >= BATCH_SIZE;
+	}
+
+	void add(final Table t) {
+		members.add(t);
+		t.__NOSCO_DEFERRED_LOADER = this;
+	}
+
+	/**
+	 * Loads this column for every object in the group that doesn't have it yet.
+	 * @return false if the column couldn't be batch loaded for {@code t}
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	synchronized boolean load(final Table t, final Field<?> field) {
+		final Field.PK<?> pk = Util.getPK(cls);
+		if (pk == null || pk.GET_FIELDS().size() != 1) return false;
+		final Field pkField = pk.GET_FIELDS().get(0);
+		if (field == pkField || field.TABLE != cls) return false;
+		final Map<Object,List<Table>> toLoad = new HashMap<Object,List<Table>>();
+		for (final Table member : members) {
+			if (member.__NOSCO_FETCHED_VALUES.get(field.INDEX)) continue;
+			if (!member.__NOSCO_FETCHED_VALUES.get(pkField.INDEX)) continue;
+			final Object key = member.get(pkField);
+			if (key == null) continue;
+			List<Table> tables = toLoad.get(key);
+			if (tables == null) {
+				tables = new ArrayList<Table>(1);
+				toLoad.put(key, tables);
+			}
+			tables.add(member);
+		}
+		final Object tKey = t.__NOSCO_FETCHED_VALUES.get(pkField.INDEX) ? t.get(pkField) : null;
+		if (tKey == null || !toLoad.containsKey(tKey)) return false;
+		final Query<? extends Table> q = QueryFactory.IT.getQuery(cls, ds)
+				.onlyFields(pkField, field).where(pkField.in(toLoad.keySet()));
+		for (final Table row : q) {
+			final List<Table> tables = toLoad.remove(row.get(pkField));
+			if (tables == null) continue;
+			final Object value = row.get((Field) field);
+			for (final Table member : tables) member.__NOSCO_PRIVATE_setFetchedValue(field, value);
+		}
+		// rows that have since been deleted read as null, same as loading them one at a time
+		for (final List<Table> tables : toLoad.values()) {
+			for (final Table member : tables) member.__NOSCO_PRIVATE_setFetchedValue(field, null);
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up the referenced rows of this FK for every object in the group
+	 * that hasn't fetched it yet.
+	 * @return false if the FK couldn't be batch loaded for {@code t}
+	 */
+	@SuppressWarnings("rawtypes")
+	synchronized boolean loadFK(final Table t, final Field.FK<?> fk) {
+		if (fk.referencing != cls) return false;
+		final Field[] referencing = fk.REFERENCING_FIELDS();
+		final Field[] referenced = fk.REFERENCED_FIELDS();
+		if (referencing.length != 1) return false;
+		final Field fkField = referencing[0];
+		final Field refField = referenced[0];
+		// may lazy load the column itself (for the whole group)
+		final Object tKey = t.get(fkField);
+		if (tKey == null) return false;
+		final Map<Object,List<Table>> toLoad = new HashMap<Object,List<Table>>();
+		for (final Table member : members) {
+			if (member.__NOSCO_FETCHED_VALUES.get(fk.INDEX)) continue;
+			if (!member.__NOSCO_FETCHED_VALUES.get(fkField.INDEX)) continue;
+			final Object key = member.get(fkField);
+			if (key == null) continue;
+			List<Table> tables = toLoad.get(key);
+			if (tables == null) {
+				tables = new ArrayList<Table>(1);
+				toLoad.put(key, tables);
+			}
+			tables.add(member);
+		}
+		if (!toLoad.containsKey(tKey)) return false;
+		try {
+			final Method setFK = cls.getDeclaredMethod("SET_FK", Field.FK.class, Object.class);
+			setFK.setAccessible(true);
+			@SuppressWarnings("unchecked")
+			final Query<? extends Table> q = QueryFactory.IT.getQuery(fk.referenced)
+					.where(refField.in(toLoad.keySet()));
+			for (final Table row : q) {
+				final List<Table> tables = toLoad.remove(row.get(refField));
+				if (tables == null) continue;
+				for (final Table member : tables) setFK.invoke(member, fk, row);
+			}
+			for (final List<Table> tables : toLoad.values()) {
+				for (final Table member : tables) setFK.invoke(member, fk, null);
+			}
+			return true;
+		} catch (final NoSuchMethodException e) {
+			return false;
+		} catch (final IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (final InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+}
@@ -1,14 +1,47 @@
 package org.kered.dko;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.sql.DataSource;
+
+import org.kered.dko.Constants.DB_TYPE;
+import org.kered.dko.Tuple.Tuple2;
 
 /**
  * This class offers diff logic. &nbsp; Let's assume you have two databases with identical
@@ -26,12 +59,15 @@ import java.util.Set;
  *  }}</pre>
  *
  * Note: It's very important these are sorted in ascending order by their natural
- * ordering!  &nbsp; You will get nonsensical diffs otherwise.
+ * ordering!  &nbsp; You will get nonsensical diffs otherwise. &nbsp; (If you can't sort them,
+ * use {@code unsortedDiff()}.)
  *
  * @author Derek Anderson
  */
 public class Diff {
 
+	private static final int DEFAULT_MAX_ROWS_IN_MEMORY = 100000;
+
 	/**
 	 * @deprecated renamed - use {@link #diff(Iterable<T>,Iterable<T>)} instead
 	 */
@@ -155,6 +191,103 @@ public class Diff {
 		return ret;
 	}
 
+	/**
+	 * Diffs two inputs that aren't sorted. &nbsp; Rows are matched up by primary key (by
+	 * {@code Table.equals()}). &nbsp; If {@code from} has no more than 100,000 rows it's held
+	 * in memory while {@code to} is streamed past it; otherwise both inputs are spilled to
+	 * hash partitioned temp files and diffed one partition at a time. &nbsp; Unlike
+	 * {@code diff()}, the changes don't come out in any particular order.
+	 * <p>
+	 * The temp files are deleted as the diff reads them. &nbsp; If you stop iterating before
+	 * the end you must close the iterator (it's a {@code java.io.Closeable}), or whatever
+	 * files haven't been read yet are left behind.
+	 * @param from an unsorted {@code Iterable}
+	 * @param to an unsorted {@code Iterable}
+	 * @return
+	 */
+	public static <T extends Table> Iterable<RowChange<T>> unsortedDiff(
+			final Iterable<T> from, final Iterable<T> to) {
+		return unsortedDiff(from, to, DEFAULT_MAX_ROWS_IN_MEMORY, 1);
+	}
+
+	/**
+	 * Diffs two inputs that aren't sorted, spilling to disk once {@code from} has more than
+	 * {@code maxRowsInMemory} rows. &nbsp; After spilling, each partition of {@code from} is
+	 * loaded into memory on its own (partitions that are still too big are re-partitioned),
+	 * so memory use stays around {@code maxRowsInMemory} rows per thread. &nbsp; As with
+	 * {@code unsortedDiff(from, to)}, close the iterator if you stop before the end.
+	 * @param from an unsorted {@code Iterable}
+	 * @param to an unsorted {@code Iterable}
+	 * @param maxRowsInMemory how many rows of {@code from} to hold in memory at once
+	 * @param threads how many partitions to diff in parallel
+	 * @return
+	 */
+	public static <T extends Table> Iterable<RowChange<T>> unsortedDiff(
+			final Iterable<T> from, final Iterable<T> to, final int maxRowsInMemory, final int threads) {
+		return unsortedDiff(from, to, maxRowsInMemory, threads, null);
+	}
+
+	/**
+	 * Same as {@code unsortedDiff(from, to, maxRowsInMemory, threads)}, but spills to
+	 * {@code tmpDir}.
+	 * @param from an unsorted {@code Iterable}
+	 * @param to an unsorted {@code Iterable}
+	 * @param maxRowsInMemory how many rows of {@code from} to hold in memory at once
+	 * @param threads how many partitions to diff in parallel
+	 * @param tmpDir where to put the temp files (null for the system default)
+	 * @return
+	 */
+	public static <T extends Table> Iterable<RowChange<T>> unsortedDiff(final Iterable<T> from,
+			final Iterable<T> to, final int maxRowsInMemory, final int threads, final File tmpDir) {
+		return new Iterable<RowChange<T>>() {
+			@Override
+			public Iterator<RowChange<T>> iterator() {
+				return new HashChangeIterator<T>(from, to, maxRowsInMemory, threads, tmpDir, false);
+			}
+		};
+	}
+
+	/**
+	 * Diffs a whole table between two databases by checksum, instead of streaming every row
+	 * of both into the JVM. &nbsp; Each database computes a row count and an aggregate
+	 * checksum over a range of primary keys. &nbsp; Ranges that match are skipped; ranges that
+	 * don't are split into smaller ranges (Merkle tree style) until they're small enough that
+	 * their rows are fetched and diffed normally. &nbsp; So two mostly identical tables are
+	 * diffed while moving little more than the rows that changed.
+	 * <p>
+	 * Both databases must be of the same type (so they compute identical checksums), and
+	 * the table must have a single column primary key. &nbsp; Checksums are supported on MySQL,
+	 * Postgres, SQL Server, Oracle and (embedded) HSQL; anything else falls back to a normal
+	 * streaming diff of the two tables sorted by primary key. &nbsp; The changes can be fed
+	 * directly into {@code Bulk.commitDiff()}.
+	 * @param cls
+	 * @param from
+	 * @param to
+	 * @return the changes needed to turn {@code from}'s table into {@code to}'s
+	 */
+	public static <T extends Table> Iterable<RowChange<T>> checksumDiff(final Class<T> cls,
+			final DataSource from, final DataSource to) {
+		return new Iterable<RowChange<T>>() {
+			@Override
+			public Iterator<RowChange<T>> iterator() {
+				return new RangeChangeIterator<T>(cls, from, to);
+			}
+		};
+	}
+
+	/**
+	 * Internal method - please do not use. &nbsp; The row hash function for HSQL
+	 * checksums, called from SQL.
+	 */
+	public static long __NOSCO_PRIVATE_crc32(final String s) {
+		final CRC32 crc = new CRC32();
+		try {
+			crc.update(s.getBytes("UTF-8"));
+		} catch (final UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return crc.getValue();
+	}
 
 	private static enum CHANGE_TYPE {
 		ADD, UPDATE, DELETE, UNCHANGED
@@ -210,44 +343,10 @@ public class Diff {
 					b = null;
 					return true;
 				} else {
-					Set<Field<?>> fields = null;
-					if (a.getClass().equals(b.getClass())) {
-						fields = fieldsForClass.get(a.getClass());
-						if (fields == null) {
-							fields = new LinkedHashSet<Field<?>>();
-							fields.addAll(Util.getFields(a.getClass()));
-							fieldsForClass.put(a.getClass(), fields);
-						}
-
-					} else {
-						fields = new LinkedHashSet<Field<?>>();
-						fields.addAll(Util.getFields(a.getClass()));
-						fields.addAll(Util.getFields(b.getClass()));
-					}
-					final Collection<FieldChange<T, ?>> diffs = new ArrayList<FieldChange<T, ?>>();
-					for (final Field<?> field : fields) {
-						final Object av = a.get(field);
-						final Object bv = b.get(field);
-						if (av == null ? bv != null : !av.equals(bv)) {
-							diffs.add(new FieldChange<T, Object>(
-									(Field<Object>) field, av, bv));
-						}
-					}
-					if (diffs.size() > 0) {
-						next = new RowChange<T>(CHANGE_TYPE.UPDATE, b, diffs);
-						a = null;
-						b = null;
-						return true;
-					} else {
-						if (emitUnchanged) {
-							next = new RowChange<T>(CHANGE_TYPE.UNCHANGED, a, null);
-							a = null;
-							b = null;
-							return true;
-						}
-					}
+					next = compareRows(a, b, fieldsForClass, emitUnchanged);
 					a = null;
 					b = null;
+					if (next != null) return true;
 				}
 			}
 		}
@@ -268,6 +367,736 @@ public class Diff {
 
 	}
 
+	/**
+	 * Diffs two unsorted inputs by hashing them on primary key (via {@code Table.equals()}
+	 * and {@code hashCode()}). &nbsp; If {@code from} fits in the memory budget it's loaded
+	 * into a hash table and {@code to} is streamed past it. &nbsp; Otherwise both inputs are
+	 * spilled to temp files, hash partitioned on primary key, and each partition is diffed
+	 * the same way. &nbsp; Partitions still too big for memory are split again with a
+	 * different hash. &nbsp; Each partition's files are deleted as soon as it's been read,
+	 * and whatever's left when the iterator is closed.
+	 */
+	private static class HashChangeIterator<T extends Table> implements ClosableIterator<RowChange<T>>, Closeable {
+
+		private static final int PARTITIONS = 64;
+		private static final int MAX_DEPTH = 4;
+		// forget back-references every so often, so the streams don't grow without bound
+		private static final int RESET_EVERY = 1000;
+
+		private final Iterable<T> from;
+		private final Iterable<T> to;
+		private final int maxRows;
+		private final int threads;
+		private final File tmpDir;
+		private final boolean emitUnchanged;
+		private boolean started = false;
+		private Iterator<RowChange<T>> current = null;
+		private final ArrayDeque<Partition> todo = new ArrayDeque<Partition>();
+		private ThreadPoolExecutor pool = null;
+		private final ArrayDeque<Future<List<RowChange<T>>>> running = new ArrayDeque<Future<List<RowChange<T>>>>();
+		// every partition whose files haven't been deleted yet
+		private final Set<Partition> live = Collections.synchronizedSet(new HashSet<Partition>());
+		private boolean closed = false;
+
+		private HashChangeIterator(final Iterable<T> from, final Iterable<T> to, final int maxRows,
+				final int threads, final File tmpDir, final boolean emitUnchanged) {
+			this.from = from;
+			this.to = to;
+			this.maxRows = Math.max(1, maxRows);
+			this.threads = threads;
+			this.tmpDir = tmpDir;
+			this.emitUnchanged = emitUnchanged;
+		}
+
+		private static class Partition {
+			final Set<Partition> live;
+			final int depth;
+			final File fromFile;
+			final File toFile;
+			ObjectOutputStream fromOut;
+			ObjectOutputStream toOut;
+			int fromCount = 0;
+			int toCount = 0;
+			Partition(final Set<Partition> live, final File dir, final int depth) throws IOException {
+				this.live = live;
+				this.depth = depth;
+				fromFile = File.createTempFile("dko_diff_", ".from", dir);
+				try {
+					toFile = File.createTempFile("dko_diff_", ".to", dir);
+				} catch (final IOException e) {
+					fromFile.delete();
+					throw e;
+				}
+				try {
+					fromOut = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(fromFile)));
+					toOut = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(toFile)));
+				} catch (final IOException e) {
+					delete();
+					throw e;
+				}
+				// only once there's something to clean up
+				live.add(this);
+			}
+			void writeFrom(final Table t) throws IOException {
+				write(fromOut, t, fromCount++);
+			}
+			void writeTo(final Table t) throws IOException {
+				write(toOut, t, toCount++);
+			}
+			void close() throws IOException {
+				try {
+					if (fromOut != null) fromOut.close();
+				} finally {
+					if (toOut != null) toOut.close();
+				}
+			}
+			void delete() {
+				try {
+					close();
+				} catch (final IOException e) {
+					// we're throwing them away anyway
+				}
+				fromFile.delete();
+				toFile.delete();
+				live.remove(this);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (closed) return false;
+			if (!started) {
+				started = true;
+				start();
+			}
+			while (current == null || !current.hasNext()) {
+				current = nextPartition();
+				if (current == null) {
+					close();
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public RowChange<T> next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Stops any partitions being diffed in the background and deletes every temp file
+		 * not yet read. &nbsp; Needed if the iterator isn't read to the end.
+		 */
+		@Override
+		public synchronized void close() {
+			if (closed) return;
+			closed = true;
+			if (pool != null) pool.shutdownNow();
+			for (final Future<List<RowChange<T>>> f : running) f.cancel(true);
+			running.clear();
+			todo.clear();
+			current = null;
+			final List<Partition> parts;
+			synchronized (live) {
+				parts = new ArrayList<Partition>(live);
+			}
+			for (final Partition p : parts) p.delete();
+		}
+
+		private void start() {
+			final Map<T,T> build = new LinkedHashMap<T,T>();
+			final Iterator<T> it = from.iterator();
+			while (it.hasNext() && build.size() < maxRows) {
+				final T t = it.next();
+				build.put(t, t);
+			}
+			if (!it.hasNext()) {
+				// the easy case - it all fits in memory
+				current = new ProbeIterator(build, to.iterator());
+				return;
+			}
+			final Partition[] parts = new Partition[PARTITIONS];
+			try {
+				for (int i=0; i<PARTITIONS; ++i) parts[i] = new Partition(live, tmpDir, 0);
+				for (final T t : build.values()) parts[partition(t, 0)].writeFrom(t);
+				build.clear();
+				while (it.hasNext()) {
+					final T t = it.next();
+					parts[partition(t, 0)].writeFrom(t);
+				}
+				for (final T t : to) parts[partition(t, 0)].writeTo(t);
+				for (final Partition p : parts) p.close();
+			} catch (final IOException e) {
+				for (final Partition p : parts) if (p != null) p.delete();
+				throw new RuntimeException(e);
+			}
+			for (final Partition p : parts) todo.add(p);
+			if (threads > 1) {
+				pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					int i = 0;
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread t = new Thread(r, "DKO diff "+ (i++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				// so abandoned diffs don't leave idle threads lying around
+				pool.allowCoreThreadTimeOut(true);
+			}
+		}
+
+		private Iterator<RowChange<T>> nextPartition() {
+			if (pool == null) {
+				final Partition p = todo.poll();
+				if (p == null) return null;
+				if (p.fromCount > maxRows && p.depth < MAX_DEPTH) {
+					for (final Partition child : split(p)) todo.push(child);
+					return Collections.<RowChange<T>>emptyList().iterator();
+				}
+				return probe(p);
+			}
+			// keep a few partitions in flight, but don't let finished ones pile up in memory
+			while (running.size() < threads * 2 && !todo.isEmpty()) {
+				final Partition p = todo.poll();
+				running.add(pool.submit(new Callable<List<RowChange<T>>>() {
+					@Override
+					public List<RowChange<T>> call() throws Exception {
+						final List<RowChange<T>> ret = new ArrayList<RowChange<T>>();
+						diffFully(p, ret);
+						return ret;
+					}
+				}));
+			}
+			final Future<List<RowChange<T>>> f = running.poll();
+			if (f == null) {
+				pool.shutdown();
+				return null;
+			}
+			try {
+				return f.get().iterator();
+			} catch (final InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (final ExecutionException e) {
+				close();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		private void diffFully(final Partition p, final List<RowChange<T>> ret) {
+			if (p.fromCount > maxRows && p.depth < MAX_DEPTH) {
+				for (final Partition child : split(p)) diffFully(child, ret);
+				return;
+			}
+			final Iterator<RowChange<T>> changes = probe(p);
+			while (changes.hasNext()) ret.add(changes.next());
+		}
+
+		private Partition[] split(final Partition p) {
+			final Partition[] parts = new Partition[PARTITIONS];
+			try {
+				for (int i=0; i<PARTITIONS; ++i) parts[i] = new Partition(live, tmpDir, p.depth + 1);
+				final Iterator<T> fromRows = new RowReader(p.fromFile, p.fromCount);
+				while (fromRows.hasNext()) {
+					final T t = fromRows.next();
+					parts[partition(t, p.depth + 1)].writeFrom(t);
+				}
+				final Iterator<T> toRows = new RowReader(p.toFile, p.toCount);
+				while (toRows.hasNext()) {
+					final T t = toRows.next();
+					parts[partition(t, p.depth + 1)].writeTo(t);
+				}
+				for (final Partition child : parts) child.close();
+				return parts;
+			} catch (final IOException e) {
+				for (final Partition child : parts) if (child != null) child.delete();
+				throw new RuntimeException(e);
+			} finally {
+				p.delete();
+			}
+		}
+
+		private Iterator<RowChange<T>> probe(final Partition p) {
+			final Map<T,T> build = new LinkedHashMap<T,T>();
+			try {
+				final Iterator<T> fromRows = new RowReader(p.fromFile, p.fromCount);
+				while (fromRows.hasNext()) {
+					final T t = fromRows.next();
+					build.put(t, t);
+				}
+			} catch (final IOException e) {
+				p.delete();
+				throw new RuntimeException(e);
+			}
+			p.fromFile.delete();
+			try {
+				return new ProbeIterator(build, new RowReader(p.toFile, p.toCount) {
+					@Override
+					void done() {
+						super.done();
+						p.delete();
+					}
+				});
+			} catch (final IOException e) {
+				p.delete();
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * A different (well mixed) hash at each depth, so re-splitting a partition actually
+		 * spreads it out.
+		 */
+		private static int partition(final Table t, final int depth) {
+			int h = t.hashCode() ^ (depth * 0x9e3779b9);
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return (h & Integer.MAX_VALUE) % PARTITIONS;
+		}
+
+		/**
+		 * Writes a row as its class and its fetched field values. &nbsp; (Table itself isn't
+		 * {@code Serializable}, so serializing the object directly would lose which fields
+		 * were fetched.)
+		 */
+		private static void write(final ObjectOutputStream out, final Table t, final int count)
+				throws IOException {
+			if (count % RESET_EVERY == 0) out.reset();
+			final List<Field<?>> fields = Util.getFields(t.getClass());
+			final BitSet fetched = t.__NOSCO_FETCHED_VALUES;
+			out.writeObject(t.getClass());
+			out.writeInt(fetched == null ? 0 : fetched.cardinality());
+			if (fetched == null) return;
+			for (int i=0; i<fields.size(); ++i) {
+				final Field<?> field = fields.get(i);
+				if (!fetched.get(field.INDEX)) continue;
+				out.writeInt(i);
+				out.writeObject(t.get(field));
+			}
+		}
+
+		private class RowReader implements Iterator<T> {
+			private final ObjectInputStream in;
+			private int remaining;
+			RowReader(final File file, final int count) throws IOException {
+				in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+				remaining = count;
+				if (remaining == 0) done();
+			}
+			@Override
+			public boolean hasNext() {
+				return remaining > 0;
+			}
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next() {
+				if (remaining <= 0) throw new NoSuchElementException();
+				try {
+					final Class<T> cls = (Class<T>) in.readObject();
+					final List<Field<?>> fields = Util.getFields(cls);
+					final int n = in.readInt();
+					final Field<?>[] fetched = new Field<?>[n];
+					final Object[] values = new Object[n];
+					for (int i=0; i<n; ++i) {
+						fetched[i] = fields.get(in.readInt());
+						values[i] = in.readObject();
+					}
+					if (--remaining == 0) done();
+					return Util.getFactory(cls).newInstance(fetched, values, 0, n);
+				} catch (final IOException e) {
+					done();
+					throw new RuntimeException(e);
+				} catch (final ClassNotFoundException e) {
+					done();
+					throw new RuntimeException(e);
+				}
+			}
+			void done() {
+				remaining = 0;
+				try {
+					in.close();
+				} catch (final IOException e) {
+					// nothing left to read anyway
+				}
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+
+		/**
+		 * Streams rows past a hash table of the other side, then emits whatever's left in
+		 * the hash table as deletes.
+		 */
+		private class ProbeIterator implements Iterator<RowChange<T>> {
+			private final Map<T,T> build;
+			private final Iterator<T> probe;
+			private Iterator<T> leftovers = null;
+			private RowChange<T> next = null;
+			private final Map<Class<?>, Set<Field<?>>> fieldsForClass = new HashMap<Class<?>, Set<Field<?>>>();
+			ProbeIterator(final Map<T,T> build, final Iterator<T> probe) {
+				this.build = build;
+				this.probe = probe;
+			}
+			@Override
+			public boolean hasNext() {
+				if (next != null) return true;
+				while (probe.hasNext()) {
+					final T b = probe.next();
+					final T a = build.remove(b);
+					next = a == null ? new RowChange<T>(CHANGE_TYPE.ADD, b, null)
+							: compareRows(a, b, fieldsForClass, emitUnchanged);
+					if (next != null) return true;
+				}
+				if (leftovers == null) leftovers = build.values().iterator();
+				if (leftovers.hasNext()) {
+					next = new RowChange<T>(CHANGE_TYPE.DELETE, leftovers.next(), null);
+					return true;
+				}
+				return false;
+			}
+			@Override
+			public RowChange<T> next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				final RowChange<T> tmp = next;
+				next = null;
+				return tmp;
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+
+	}
+
+	/**
+	 * Compares two versions of the same row field by field.
+	 * @return an {@code UPDATE}, an {@code UNCHANGED} (if asked for) or null
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends Table> RowChange<T> compareRows(final T a, final T b,
+			final Map<Class<?>, Set<Field<?>>> fieldsForClass, final boolean emitUnchanged) {
+		Set<Field<?>> fields = null;
+		if (a.getClass().equals(b.getClass())) {
+			fields = fieldsForClass.get(a.getClass());
+			if (fields == null) {
+				fields = new LinkedHashSet<Field<?>>();
+				fields.addAll(Util.getFields(a.getClass()));
+				fieldsForClass.put(a.getClass(), fields);
+			}
+
+		} else {
+			fields = new LinkedHashSet<Field<?>>();
+			fields.addAll(Util.getFields(a.getClass()));
+			fields.addAll(Util.getFields(b.getClass()));
+		}
+		final Collection<FieldChange<T, ?>> diffs = new ArrayList<FieldChange<T, ?>>();
+		for (final Field<?> field : fields) {
+			final Object av = a.get(field);
+			final Object bv = b.get(field);
+			if (av == null ? bv != null : !av.equals(bv)) {
+				diffs.add(new FieldChange<T, Object>(
+						(Field<Object>) field, av, bv));
+			}
+		}
+		if (diffs.size() > 0) return new RowChange<T>(CHANGE_TYPE.UPDATE, b, diffs);
+		if (emitUnchanged) return new RowChange<T>(CHANGE_TYPE.UNCHANGED, a, null);
+		return null;
+	}
+
+	/**
+	 * Walks the primary key space of a table on two databases, splitting ranges whose
+	 * checksums differ and diffing the rows of small mismatched ranges.
+	 */
+	private static class RangeChangeIterator<T extends Table> implements Iterator<RowChange<T>> {
+
+		// ranges with at most this many rows (on either side) are fetched and diffed
+		private static final int LEAF_SIZE = 1000;
+		private static final int FANOUT = 16;
+		private static final String NULL = "'~null~'";
+
+		private final Class<T> cls;
+		private final DataSource from;
+		private final DataSource to;
+		private Field<Object> pk = null;
+		private String checksum = null;
+		// {inclusive lower bound, exclusive upper bound}, with null meaning unbounded
+		private final ArrayDeque<Object[]> ranges = new ArrayDeque<Object[]>();
+		private Iterator<RowChange<T>> current = Collections.<RowChange<T>>emptyList().iterator();
+
+		@SuppressWarnings("unchecked")
+		RangeChangeIterator(final Class<T> cls, final DataSource from, final DataSource to) {
+			this.cls = cls;
+			this.from = from;
+			this.to = to;
+			final Field.PK<T> pks = Util.getPK(cls);
+			final DB_TYPE dbType = DB_TYPE.detect(from);
+			if (pks != null && pks.GET_FIELDS().size() == 1 && dbType == DB_TYPE.detect(to)) {
+				pk = (Field<Object>) pks.GET_FIELDS().get(0);
+				checksum = getChecksumSQL(dbType, Util.getFields(cls));
+			}
+			if (checksum == null) {
+				current = fullDiff();
+			} else {
+				ranges.push(new Object[] {null, null});
+			}
+		}
+
+		private Iterator<RowChange<T>> fullDiff() {
+			Query<T> a = QueryFactory.IT.getQuery(cls, from);
+			Query<T> b = QueryFactory.IT.getQuery(cls, to);
+			if (pk != null) {
+				a = a.orderBy(pk);
+				b = b.orderBy(pk);
+			}
+			return new ChangeIterator<T>(a.iterator(), b.iterator(), false);
+		}
+
+		/**
+		 * @return an expression summing a hash of every column, or null if unsupported
+		 */
+		private static String getChecksumSQL(final DB_TYPE dbType, final List<Field<?>> fields) {
+			final StringBuilder sb = new StringBuilder();
+			for (final Field<?> field : fields) {
+				final String col = field.getSQL(dbType);
+				// oracle and hsql concatenate the columns themselves, the rest take a list
+				if (sb.length() > 0) sb.append(dbType==DB_TYPE.ORACLE || dbType==DB_TYPE.HSQL ? " || '|' || " : ", ");
+				switch (dbType) {
+				case MYSQL: sb.append("coalesce(").append(col).append(", ").append(NULL).append(")"); break;
+				case POSTGRES: sb.append("coalesce(").append(col).append("::text, ").append(NULL).append(")"); break;
+				case ORACLE: sb.append("nvl(to_char(").append(col).append("), ").append(NULL).append(")"); break;
+				case HSQL: sb.append("coalesce(cast(").append(col).append(" as longvarchar), ").append(NULL).append(")"); break;
+				case SQLSERVER: sb.append(col); break;
+				default: return null;
+				}
+			}
+			switch (dbType) {
+			case MYSQL: return "sum(crc32(concat_ws('|', "+ sb +")))";
+			case POSTGRES: return "sum(('x' || substr(md5(concat_ws('|', "+ sb +")), 1, 8))::bit(32)::bigint)";
+			case ORACLE: return "sum(ora_hash("+ sb +"))";
+			case HSQL: return "sum(\"org.kered.dko.Diff.__NOSCO_PRIVATE_crc32\"("+ sb +"))";
+			case SQLSERVER: return "checksum_agg(binary_checksum("+ sb +"))";
+			default: return null;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!current.hasNext()) {
+				if (ranges.isEmpty()) return false;
+				try {
+					diff(ranges.pop());
+				} catch (final SQLException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return true;
+		}
+
+		private void diff(final Object[] range) throws SQLException {
+			final Object[] a;
+			final Object[] b;
+			try {
+				a = summarize(from, range);
+				b = summarize(to, range);
+			} catch (final SQLException e) {
+				// ie: a remote HSQL server can't call our hash function
+				if (range[0] != null || range[1] != null) throw e;
+				Util.log("checksum diff not supported, diffing every row: "+ e, null);
+				current = fullDiff();
+				return;
+			}
+			final long count = Math.max((Long) a[0], (Long) b[0]);
+			if (a[0].equals(b[0]) && (a[1]==null ? b[1]==null : a[1].equals(b[1]))) return;
+			final List<Object> splits = count > LEAF_SIZE ? split(range, count > (Long) a[0] ? to : from, a, b) : null;
+			if (splits == null || splits.isEmpty()) {
+				current = diffRows(range);
+				return;
+			}
+			// pushed last to first, so they're diffed in key order
+			for (int i=splits.size(); i>=0; --i) {
+				ranges.push(new Object[] {i==0 ? range[0] : splits.get(i-1), i==splits.size() ? range[1] : splits.get(i)});
+			}
+		}
+
+		private Condition getCondition(final Object[] range) {
+			Condition c = null;
+			if (range[0] != null) c = pk.gte(range[0]);
+			if (range[1] != null) c = c==null ? pk.lt(range[1]) : c.and(pk.lt(range[1]));
+			return c;
+		}
+
+		private Query<T> getQuery(final DataSource ds, final Object[] range) {
+			final Query<T> q = QueryFactory.IT.getQuery(cls, ds);
+			final Condition c = getCondition(range);
+			return c == null ? q : q.where(c);
+		}
+
+		/**
+		 * @return {count, checksum (as a string), min key, max key}
+		 */
+		private Object[] summarize(final DataSource ds, final Object[] range) throws SQLException {
+			final DB_TYPE dbType = DB_TYPE.detect(ds);
+			final String col = pk.getSQL(dbType);
+			final List<Object> bindings = new ArrayList<Object>(2);
+			final String sql = "select count(*), "+ checksum +", min("+ col +"), max("+ col +")"
+					+ getFromWhere(ds, dbType, range, bindings);
+			Util.log(sql, bindings);
+			final Tuple2<Connection, Boolean> connInfo = DBQuery.getConnR(ds);
+			try {
+				final PreparedStatement ps = connInfo.a.prepareStatement(sql);
+				try {
+					for (int i=0; i<bindings.size(); ++i) {
+						Util.setBindingWithTypeFixes(ps, i+1, bindings.get(i));
+					}
+					final ResultSet rs = ps.executeQuery();
+					rs.next();
+					final Object[] ret = {rs.getLong(1), rs.getString(2), rs.getObject(3), rs.getObject(4)};
+					rs.close();
+					return ret;
+				} finally {
+					ps.close();
+				}
+			} finally {
+				if (connInfo.b) connInfo.a.close();
+			}
+		}
+
+		/**
+		 * @return the key {@code offset} rows into this range (in key order), or null if
+		 * there isn't one
+		 */
+		private Object getKeyAt(final DataSource ds, final Object[] range, final long offset) throws SQLException {
+			final DB_TYPE dbType = DB_TYPE.detect(ds);
+			final String col = pk.getSQL(dbType);
+			final List<Object> bindings = new ArrayList<Object>(2);
+			final StringBuilder sb = new StringBuilder();
+			sb.append("select ").append(col).append(getFromWhere(ds, dbType, range, bindings));
+			sb.append(" order by ").append(col);
+			switch (dbType) {
+			case ORACLE:
+			case SQLSERVER: sb.append(" offset ").append(offset).append(" rows fetch next 1 rows only"); break;
+			default: sb.append(" limit 1 offset ").append(offset);
+			}
+			final String sql = sb.toString();
+			Util.log(sql, bindings);
+			final Tuple2<Connection, Boolean> connInfo = DBQuery.getConnR(ds);
+			try {
+				final PreparedStatement ps = connInfo.a.prepareStatement(sql);
+				try {
+					for (int i=0; i<bindings.size(); ++i) {
+						Util.setBindingWithTypeFixes(ps, i+1, bindings.get(i));
+					}
+					final ResultSet rs = ps.executeQuery();
+					final Object ret = rs.next() ? Util.getTypedValueFromRS(rs, 1, pk) : null;
+					rs.close();
+					return ret;
+				} finally {
+					ps.close();
+				}
+			} finally {
+				if (connInfo.b) connInfo.a.close();
+			}
+		}
+
+		/**
+		 * @return the " from ... where ..." clause selecting this range, adding its bindings
+		 */
+		private String getFromWhere(final DataSource ds, final DB_TYPE dbType, final Object[] range,
+				final List<Object> bindings) {
+			final String schema = Context.getSchemaToUse(ds, Util.getSchemaName(cls));
+			final String col = pk.getSQL(dbType);
+			final StringBuilder sb = new StringBuilder();
+			sb.append(" from ");
+			sb.append((schema==null || "".equals(schema) ? "" : schema + dbType.getDatabaseTableSeparator())
+					+ Util.getTableName(cls));
+			if (range[0] != null) {
+				sb.append(" where ").append(col).append(">=?");
+				bindings.add(range[0]);
+			}
+			if (range[1] != null) {
+				sb.append(bindings.isEmpty() ? " where " : " and ").append(col).append("<?");
+				bindings.add(range[1]);
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * @return the keys to split this range at
+		 */
+		private List<Object> split(final Object[] range, final DataSource ds, final Object[] a, final Object[] b)
+				throws SQLException {
+			final List<Object> splits = new ArrayList<Object>(FANOUT);
+			final Class<?> type = pk.TYPE;
+			if (type==Integer.class || type==Long.class || type==Short.class || type==Byte.class) {
+				// integer keys can be split arithmetically, without asking the database
+				final long lo = Math.min(a[2]==null ? Long.MAX_VALUE : ((Number) a[2]).longValue(),
+						b[2]==null ? Long.MAX_VALUE : ((Number) b[2]).longValue());
+				final long hi = Math.max(a[3]==null ? Long.MIN_VALUE : ((Number) a[3]).longValue(),
+						b[3]==null ? Long.MIN_VALUE : ((Number) b[3]).longValue());
+				if (hi <= lo) return splits;
+				// hi - lo can overflow a long, so the step is worked out in BigIntegers
+				final BigInteger max = BigInteger.valueOf(hi);
+				final BigInteger step = max.subtract(BigInteger.valueOf(lo))
+						.divide(BigInteger.valueOf(FANOUT)).add(BigInteger.ONE);
+				for (BigInteger bk=BigInteger.valueOf(lo).add(step); bk.compareTo(max)<=0; bk=bk.add(step)) {
+					final long k = bk.longValue();
+					if (type==Long.class) splits.add(k);
+					else if (type==Integer.class) splits.add((int) k);
+					else if (type==Short.class) splits.add((short) k);
+					else splits.add((byte) k);
+				}
+				return splits;
+			}
+			// otherwise split at quantiles of the bigger side's keys, sampled one key per split
+			final long count = (Long) (ds==from ? a[0] : b[0]);
+			final long every = count / FANOUT + 1;
+			for (long offset=every; offset<count; offset+=every) {
+				final Object key = getKeyAt(ds, range, offset);
+				if (key == null) break;
+				if (splits.isEmpty() || !key.equals(splits.get(splits.size()-1))) splits.add(key);
+			}
+			return splits;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private Iterator<RowChange<T>> diffRows(final Object[] range) {
+			final List<T> a = getQuery(from, range).asList();
+			final List<T> b = getQuery(to, range).asList();
+			// sorted here, as the databases may not collate keys the way compareTo() does
+			Collections.sort((List) a);
+			Collections.sort((List) b);
+			return new ChangeIterator<T>(a.iterator(), b.iterator(), false);
+		}
+
+		@Override
+		public RowChange<T> next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
 	/**
 	 * Represents a changed field between two versions of a row.
 	 *
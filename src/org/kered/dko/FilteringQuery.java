@@ -177,6 +177,7 @@ class FilteringQuery<T extends Table> extends AbstractQuery<T> implements Matryo
 		return new Iterator<T>() {
 
 			final Iterator<T> i = q.iterator();
+			final CompiledCondition predicate = CompiledCondition.compile(condition);
 			T next = null;
 			int count = 0;
 
@@ -186,7 +187,7 @@ class FilteringQuery<T extends Table> extends AbstractQuery<T> implements Matryo
 				if (top > -1 && count >= top) return false;
 				while (i.hasNext()) {
 					T candidate = i.next();
-					if (condition.matches(candidate)) {
+					if (predicate.matches(candidate)) {
 						next = candidate;
 						return true;
 					}
@@ -3,13 +3,18 @@ package org.kered.dko;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
 
@@ -19,6 +24,23 @@ import org.kered.dko.Field.FK;
 import org.kered.dko.Table.__Alias;
 import org.kered.dko.Table.__PrimaryKey;
 
+/**
+ * A query over a list of rows held in memory.
+ * <p>
+ * Repeated lookups by the same field are served from indexes over the rows: &nbsp; a hash
+ * index for {@code eq()} and {@code in()} conditions (and {@code get(pk)} and {@code mapBy()}),
+ * and a sorted one for range conditions and {@code orderBy()}. &nbsp; An index is built the
+ * second time its field is used (once isn't worth the cost of building one) and kept for the
+ * life of the query, so a query kept around as a cache turns its scans into lookups.
+ * <p>
+ * An index holds the field values its rows had when it was built. &nbsp; Rows found through
+ * one are still checked against their current values, so a row changed since then is never
+ * wrongly returned, but a lookup (or {@code orderBy()} or {@code mapBy()}) won't find a row
+ * by a value it was changed to. &nbsp; Treat the rows of a query used this way as read only,
+ * or call {@code toMemory()} after changing them for a query with new indexes.
+ *
+ * @author Derek Anderson
+ */
 class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 
 	List<T> cache = null;
@@ -27,6 +49,12 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 	private boolean loaded = false;
 	private boolean ordered = false;
 
+	private final Map<Field<?>,HashIndex> hashIndexes = new ConcurrentHashMap<Field<?>,HashIndex>();
+	private final Map<Field<?>,SortedIndex> sortedIndexes = new ConcurrentHashMap<Field<?>,SortedIndex>();
+	// how often each field has been looked up (-1 if it can't be indexed)
+	private final Map<Field<?>,Integer> hashLookups = new HashMap<Field<?>,Integer>();
+	private final Map<Field<?>,Integer> sortedLookups = new HashMap<Field<?>,Integer>();
+
 	InMemoryQuery(final Query<T> query) {
 		this(query, false);
 	}
@@ -83,16 +111,296 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 	public Query<T> where(final Condition... conditions) {
 		if (!loaded) load();
 		final InMemoryQuery<T> q = new InMemoryQuery<T>(this);
-		for (final T t : cache) {
-			boolean include = true;
-			for (final Condition c : conditions) {
-				include &= c.matches(t);
+		final List<Condition> conjuncts = new ArrayList<Condition>();
+		for (final Condition c : conditions) addConjuncts(c, conjuncts);
+		// look up the most selective indexable condition, then check the rest
+		Condition best = null;
+		int bestRank = NOT_INDEXABLE;
+		for (final Condition c : conjuncts) {
+			final int rank = getIndexRank(c);
+			if (rank < bestRank) {
+				best = c;
+				bestRank = rank;
+			}
+		}
+		final int[] positions = best == null ? null : lookup(best);
+		if (positions == null) {
+			final CompiledCondition predicate = CompiledCondition.compile(conjuncts);
+			for (final T t : cache) {
+				if (predicate.matches(t)) q.cache.add(t);
+			}
+		} else {
+			// the looked up condition too, in case a row has changed since it was indexed
+			final CompiledCondition predicate = CompiledCondition.compile(conjuncts);
+			for (final int i : positions) {
+				final T t = cache.get(i);
+				if (predicate.matches(t)) q.cache.add(t);
 			}
-			if (include) q.cache.add(t);
 		}
 		return q;
 	}
 
+	private static final int EQ = 0;
+	private static final int IN = 1;
+	private static final int RANGE = 2;
+	private static final int NOT_INDEXABLE = 3;
+
+	private static void addConjuncts(final Condition c, final List<Condition> conjuncts) {
+		if (c instanceof Condition.And) {
+			for (final Condition x : ((Condition.And) c).conditions) addConjuncts(x, conjuncts);
+		} else {
+			conjuncts.add(c);
+		}
+	}
+
+	private static int getIndexRank(final Condition c) {
+		if (c instanceof Condition.Binary) {
+			final Condition.Binary b = (Condition.Binary) c;
+			if (b.v == null) return NOT_INDEXABLE;
+			if ("=".equals(b.cmp)) return EQ;
+			if (Condition.compare(null, null, b.cmp) != Condition.NOT_COMPARED) return RANGE;
+		} else if (c instanceof Condition.In) {
+			final Condition.In in = (Condition.In) c;
+			if (!" in ".equals(in.cmp)) return NOT_INDEXABLE;
+			if (in.set != null) {
+				for (final Object v : in.set) {
+					if (v instanceof Field) return NOT_INDEXABLE;
+				}
+			}
+			return IN;
+		} else if (c instanceof Condition.InTmpTable) {
+			return IN;
+		}
+		return NOT_INDEXABLE;
+	}
+
+	/**
+	 * @return the positions in {@code cache} (in order) of the rows that might match,
+	 * or null if there's no index for this condition
+	 */
+	private int[] lookup(final Condition c) {
+		if (c instanceof Condition.Binary) {
+			final Condition.Binary b = (Condition.Binary) c;
+			if ("=".equals(b.cmp)) {
+				final HashIndex index = getHashIndex(b.field);
+				return index == null ? null : index.get(b.v);
+			}
+			final SortedIndex index = getSortedIndex(b.field);
+			return index == null ? null : index.range(b.cmp, b.v);
+		}
+		final Field<?> field;
+		final Collection<?> values;
+		if (c instanceof Condition.In) {
+			final Condition.In in = (Condition.In) c;
+			field = in.field;
+			values = in.set != null ? Arrays.asList(in.set) : in.set2;
+		} else {
+			final Condition.InTmpTable<?> in = (Condition.InTmpTable<?>) c;
+			field = in.field;
+			values = in.set;
+		}
+		final HashIndex index = getHashIndex(field);
+		if (index == null) return null;
+		final List<int[]> matches = new ArrayList<int[]>();
+		int size = 0;
+		for (final Object v : values instanceof Set ? values : new HashSet<Object>(values)) {
+			final int[] x = index.get(v);
+			matches.add(x);
+			size += x.length;
+		}
+		final int[] positions = new int[size];
+		int i = 0;
+		for (final int[] x : matches) {
+			System.arraycopy(x, 0, positions, i, x.length);
+			i += x.length;
+		}
+		Arrays.sort(positions);
+		return positions;
+	}
+
+	private HashIndex getHashIndex(final Field<?> field) {
+		HashIndex index = hashIndexes.get(field);
+		if (index != null) return index;
+		synchronized (hashLookups) {
+			index = hashIndexes.get(field);
+			if (index != null) return index;
+			if (!isUsedBefore(hashLookups, field)) return null;
+			index = new HashIndex(cache, field);
+			hashIndexes.put(field, index);
+			return index;
+		}
+	}
+
+	private SortedIndex getSortedIndex(final Field<?> field) {
+		SortedIndex index = sortedIndexes.get(field);
+		if (index != null) return index;
+		synchronized (sortedLookups) {
+			index = sortedIndexes.get(field);
+			if (index != null) return index;
+			if (!isUsedBefore(sortedLookups, field)) return null;
+			index = SortedIndex.create(cache, field);
+			if (index == null) sortedLookups.put(field, -1);
+			else sortedIndexes.put(field, index);
+			return index;
+		}
+	}
+
+	private static boolean isUsedBefore(final Map<Field<?>,Integer> lookups, final Field<?> field) {
+		final Integer n = lookups.get(field);
+		if (n == null) {
+			lookups.put(field, 1);
+			return false;
+		}
+		return n > 0;
+	}
+
+	/**
+	 * The positions in {@code cache} of each value of a field.
+	 */
+	private static class HashIndex {
+
+		private static final int[] NONE = new int[0];
+		// in the order each value was first seen
+		final Map<Object,int[]> positions = new LinkedHashMap<Object,int[]>();
+
+		HashIndex(final List<? extends Table> cache, final Field<?> field) {
+			final Map<Object,List<Integer>> tmp = new LinkedHashMap<Object,List<Integer>>();
+			for (int i=0; i<cache.size(); ++i) {
+				final Object v = cache.get(i).get(field);
+				List<Integer> list = tmp.get(v);
+				if (list == null) {
+					list = new ArrayList<Integer>(1);
+					tmp.put(v, list);
+				}
+				list.add(i);
+			}
+			for (final Map.Entry<Object,List<Integer>> e : tmp.entrySet()) {
+				final List<Integer> list = e.getValue();
+				final int[] x = new int[list.size()];
+				for (int i=0; i<x.length; ++i) x[i] = list.get(i);
+				positions.put(e.getKey(), x);
+			}
+		}
+
+		int[] get(final Object v) {
+			final int[] x = positions.get(v);
+			return x == null ? NONE : x;
+		}
+
+	}
+
+	/**
+	 * The positions in {@code cache} ordered by a field's value (ties in their original
+	 * order), with the rows where it's null kept aside.
+	 */
+	private static class SortedIndex {
+
+		final Object[] values;
+		final int[] positions;
+		final int[] nulls;
+
+		private SortedIndex(final Object[] values, final int[] positions, final int[] nulls) {
+			this.values = values;
+			this.positions = positions;
+			this.nulls = nulls;
+		}
+
+		/**
+		 * @return null if the field's values aren't comparable
+		 */
+		static SortedIndex create(final List<? extends Table> cache, final Field<?> field) {
+			final List<Integer> nonNull = new ArrayList<Integer>(cache.size());
+			final List<Integer> nulls = new ArrayList<Integer>();
+			final Object[] all = new Object[cache.size()];
+			for (int i=0; i<all.length; ++i) {
+				all[i] = cache.get(i).get(field);
+				if (all[i] == null) nulls.add(i);
+				else if (all[i] instanceof Comparable) nonNull.add(i);
+				else return null;
+			}
+			final Integer[] sorted = nonNull.toArray(new Integer[nonNull.size()]);
+			try {
+				// a stable sort, so ties stay in their original order
+				Arrays.sort(sorted, new Comparator<Integer>() {
+					@SuppressWarnings({ "unchecked", "rawtypes" })
+					@Override
+					public int compare(final Integer a, final Integer b) {
+						return ((Comparable) all[a]).compareTo(all[b]);
+					}
+				});
+			} catch (final ClassCastException e) {
+				return null;
+			}
+			final Object[] values = new Object[sorted.length];
+			final int[] positions = new int[sorted.length];
+			for (int i=0; i<sorted.length; ++i) {
+				positions[i] = sorted[i];
+				values[i] = all[sorted[i]];
+			}
+			final int[] nullPositions = new int[nulls.size()];
+			for (int i=0; i<nullPositions.length; ++i) nullPositions[i] = nulls.get(i);
+			return new SortedIndex(values, positions, nullPositions);
+		}
+
+		/**
+		 * @return the positions (in order) of the values in range
+		 */
+		int[] range(final String cmp, final Object v) {
+			int from = 0;
+			int to = values.length;
+			if (">".equals(cmp)) from = bound(v, true);
+			if (">=".equals(cmp)) from = bound(v, false);
+			if ("<".equals(cmp)) to = bound(v, false);
+			if ("<=".equals(cmp)) to = bound(v, true);
+			final int[] ret = Arrays.copyOfRange(positions, from, Math.max(from, to));
+			Arrays.sort(ret);
+			return ret;
+		}
+
+		/**
+		 * @return the index of the first value greater than (or if not {@code inclusive},
+		 * greater than or equal to) v
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private int bound(final Object v, final boolean inclusive) {
+			int lo = 0;
+			int hi = values.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				final int c = ((Comparable) values[mid]).compareTo(v);
+				if (c < 0 || (inclusive && c == 0)) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * @return every position, ordered by value (nulls sort last, as in {@code orderBy()})
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		int[] ordered(final boolean ascending) {
+			final int[] ret = new int[positions.length + nulls.length];
+			if (ascending) {
+				System.arraycopy(positions, 0, ret, 0, positions.length);
+				System.arraycopy(nulls, 0, ret, positions.length, nulls.length);
+				return ret;
+			}
+			System.arraycopy(nulls, 0, ret, 0, nulls.length);
+			int k = nulls.length;
+			// runs of equal values reversed, but each run kept in its original order
+			int end = values.length;
+			while (end > 0) {
+				int start = end - 1;
+				while (start > 0 && ((Comparable) values[start-1]).compareTo(values[end-1]) == 0) --start;
+				System.arraycopy(positions, start, ret, k, end - start);
+				k += end - start;
+				end = start;
+			}
+			return ret;
+		}
+
+	}
+
 	@Override
 	public long count() throws SQLException {
 		if (!loaded) load();
@@ -109,6 +417,17 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 		ordered = true;
 		if (!loaded) load();
 		final InMemoryQuery<T> q = new InMemoryQuery<T>(this);
+		if (obes.length == 1) {
+			final Field<?> f = obes[0] instanceof Field ? (Field<?>) obes[0]
+					: obes[0] instanceof Field.OrderByField ? ((Field.OrderByField<?>) obes[0]).underlying : null;
+			final SortedIndex index = f == null ? null : getSortedIndex(f);
+			if (index != null) {
+				final boolean ascending = obes[0] instanceof Field
+						|| ((Field.OrderByField<?>) obes[0]).direction==DIRECTION.ASCENDING;
+				for (final int i : index.ordered(ascending)) q.cache.add(cache.get(i));
+				return q;
+			}
+		}
 		q.cache.addAll(cache);
 		Collections.sort(q.cache, new Comparator<T>() {
 			@SuppressWarnings({ "unchecked", "rawtypes" })
@@ -222,7 +541,12 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 
 	@Override
 	public Query<T> toMemory() {
-		return this;
+		// the same rows, with new indexes over their current values
+		if (!loaded) load();
+		final InMemoryQuery<T> q = new InMemoryQuery<T>(this);
+		q.cache.addAll(cache);
+		q.ordered = ordered;
+		return q;
 	}
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
@@ -260,9 +584,25 @@ class InMemoryQuery<T extends Table> extends AbstractQuery<T> {
 	public T get(final __PrimaryKey<T> pk) {
 		if (!loaded) load();
 		if (cache==null || cache.size() == 0) return null;
+		// an and of eq()s, so where() looks it up by the first key field
 		return get(Util.getPK(cache.get(0)).eq(pk));
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public <S> Map<S, T> mapBy(final Field<S> byField) throws SQLException {
+		if (!loaded) load();
+		final HashIndex index = getHashIndex(byField);
+		if (index == null) return super.mapBy(byField);
+		final Map<S, T> ret = new LinkedHashMap<S, T>();
+		for (final Map.Entry<Object,int[]> e : index.positions.entrySet()) {
+			// the last row with each value wins, as when scanning
+			final int[] positions = e.getValue();
+			ret.put((S) e.getKey(), cache.get(positions[positions.length-1]));
+		}
+		return ret;
+	}
+
 	@Override
 	public Query<T> use(final Connection conn) {
 		// do nothing
@@ -636,8 +636,13 @@ public interface Query<T extends Table> extends Iterable<T> {
 
 	/**
 	 * Evaluates the given query into memory and returns to you a new query backed by
-	 * this in-memory store. &nbsp; (does nothing if this is already an in-memory
-	 * query.
+	 * this in-memory store. &nbsp; (If this is already an in-memory query, returns a new
+	 * one over the same objects.)
+	 * <p>
+	 * Fields looked up repeatedly are indexed, and an index is a snapshot of its rows'
+	 * values. &nbsp; If you change the objects the query returns, lookups by the changed
+	 * fields (and {@code orderBy()} and {@code mapBy()}) may miss them, so call
+	 * {@code toMemory()} on the in-memory query to get one indexed by their new values.
 	 * @return
 	 */
 	public Query<T> toMemory();
@@ -658,6 +663,25 @@ public interface Query<T extends Table> extends Iterable<T> {
 	 */
 	public Iterable<T> snapshot(File f);
 
+	/**
+	 * Like {@code snapshot()}, but stored in DKO's own compact, column oriented file format
+	 * instead of a SQLite database. &nbsp; Much faster to write and to read back, but only
+	 * readable by DKO. &nbsp; The returned {@code Iterable} is a {@code java.io.Closeable};
+	 * close it when you're done with it to delete its temp file.
+	 * @return
+	 */
+	public Iterable<T> columnarSnapshot();
+
+	/**
+	 * Like {@code snapshot(f)}, but stored in DKO's own compact, column oriented file format
+	 * instead of a SQLite database. &nbsp; Much faster to write and to read back, but only
+	 * readable by DKO. &nbsp; If {@code f} is a directory, close the returned {@code Iterable}
+	 * (a {@code java.io.Closeable}) when you're done with it to delete the temp file created
+	 * there.
+	 * @return
+	 */
+	public Iterable<T> columnarSnapshot(File f);
+
 	/**
 	 * Turns a query into an "exists" subquery. &nbsp; Example:
 	 * <pre><code>select * from A where exists (select * from B where b.a_id = a.id)</code></pre>
@@ -689,6 +713,16 @@ public interface Query<T extends Table> extends Iterable<T> {
 	 */
 	public Iterable<Object[]> asIterableOfObjectArrays();
 
+	/**
+	 * Same as {@code asIterableOfObjectArrays()}, but if {@code reuseArrays} is true the
+	 * returned {@code Object[]}s are recycled for later rows. &nbsp; Each array is only
+	 * valid until the next call to {@code next()}, so copy out anything you want to keep. &nbsp;
+	 * Useful when streaming very large result sets.
+	 * @param reuseArrays
+	 * @return
+	 */
+	public Iterable<Object[]> asIterableOfObjectArrays(boolean reuseArrays);
+
 	/**
 	 * Returns this query as a special field object which can then be passed into some other query's
 	 * alsoSelect(Field...) method.  Once the outer query returns you a row object you can use this
@@ -960,6 +994,19 @@ public interface Query<T extends Table> extends Iterable<T> {
 	 */
 	public Query<T> setQueryTimeout(int seconds);
 
+	/**
+	 * Sets the JDBC fetch size (the number of rows the driver pulls from the database at a time)
+	 * so large results are streamed instead of read into memory all at once. &nbsp;
+	 * MySQL only streams row by row, so any positive value turns that on. &nbsp; (the connection
+	 * can't run other statements until the results are read or closed) &nbsp; Postgres only
+	 * streams through a cursor when autocommit is off, so outside of a transaction autocommit
+	 * is turned off while the results are read and restored afterward. &nbsp;
+	 * Defaults to {@code Context.setFetchSize()}. &nbsp; 0 uses the driver's default.
+	 * @param rows
+	 * @return
+	 */
+	public Query<T> setFetchSize(int rows);
+
 	/**
 	 * Group by the following fields.
 	 * @param fields
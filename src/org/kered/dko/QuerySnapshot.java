@@ -104,6 +104,7 @@ class QuerySnapshot<T extends Table> implements Iterable<T> {
 			Connection conn = null;
 			private ResultSet rs = null;
 			private Statement stmt = null;
+			private final ColumnReader[] readers = ColumnReader.forFields(fields);
 			{
 				try {
 					conn = ds.getConnection();
@@ -120,10 +121,9 @@ class QuerySnapshot<T extends Table> implements Iterable<T> {
 				if (next!=null) return next;
 				try {
 					if (!rs.next()) return null;
-					int leftSize = fields.size();
-					next = new Object[leftSize];
-					for (int i=0; i<leftSize; ++i) {
-						next[i] = Util.getTypedValueFromRS(rs, i+1, fields.get(i));
+					next = new Object[readers.length];
+					for (int i=0; i<readers.length; ++i) {
+						next[i] = readers[i].read(rs, i+1);
 					}
 					return next;
 				} catch (SQLException e) {
@@ -0,0 +1,101 @@
+package org.kered.dko;
+
+/**
+ * An array-backed ring buffer of rows, used as the prefetch queue in {@code DBRowIterator}. &nbsp;
+ * It starts small and grows (by doubling) up to its capacity.
+ * <p>
+ * When {@code reuse} is on, row arrays stay in their slots after they're polled and are
+ * handed back out by {@code add()} to be overwritten, so a steady stream of rows allocates
+ * nothing. &nbsp; The most recently polled row is never overwritten before the next
+ * {@code poll()}, so a consumer can always compare the row it just took with {@code peek()}.
+ *
+ * @author Derek Anderson
+ */
+class RowBuffer {
+
+	private static final int INITIAL_SIZE = 16;
+
+	private final int capacity;
+	private Object[][] slots;
+	private int head = 0;
+	private int size = 0;
+	private boolean reuse = false;
+
+	RowBuffer(final int capacity) {
+		this.capacity = capacity;
+		this.slots = new Object[Math.min(INITIAL_SIZE, capacity)][];
+	}
+
+	void setReuse(final boolean reuse) {
+		this.reuse = reuse;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return true if no more rows can be added until some are polled
+	 */
+	boolean isFull() {
+		// in reuse mode one slot is held back for the last polled row
+		return size + (reuse ? 1 : 0) >= capacity;
+	}
+
+	/**
+	 * Appends a row to the end of the buffer and returns it for the caller to fill in.
+	 * @param width the number of columns in the row
+	 */
+	Object[] add(final int width) {
+		if (isFull()) throw new IllegalStateException("row buffer is full");
+		if (size + (reuse ? 1 : 0) >= slots.length) grow();
+		final int tail = (head + size) % slots.length;
+		Object[] row = slots[tail];
+		if (!reuse || row == null || row.length != width) {
+			row = new Object[width];
+			slots[tail] = row;
+		}
+		++size;
+		return row;
+	}
+
+	/**
+	 * Appends an already filled in row to the end of the buffer.
+	 */
+	void add(final Object[] row) {
+		if (isFull()) throw new IllegalStateException("row buffer is full");
+		if (size + (reuse ? 1 : 0) >= slots.length) grow();
+		slots[(head + size) % slots.length] = row;
+		++size;
+	}
+
+	Object[] peek() {
+		return size == 0 ? null : slots[head];
+	}
+
+	Object[] poll() {
+		if (size == 0) return null;
+		final Object[] row = slots[head];
+		if (!reuse) slots[head] = null;
+		head = (head + 1) % slots.length;
+		--size;
+		return row;
+	}
+
+	void clear() {
+		slots = new Object[Math.min(INITIAL_SIZE, capacity)][];
+		head = 0;
+		size = 0;
+	}
+
+	private void grow() {
+		final Object[][] bigger = new Object[Math.min(slots.length * 2, capacity)][];
+		// only live rows are carried over, so the last polled row can't be handed out again
+		for (int i=0; i<size; ++i) {
+			bigger[i] = slots[(head + i) % slots.length];
+		}
+		slots = bigger;
+		head = 0;
+	}
+
+}
@@ -17,6 +17,7 @@ class SelectAsMapIterable<T extends Table> implements Iterable<Map<Field<?>, Obj
 	@Override
 	public Iterator<Map<Field<?>, Object>> iterator() {
 		final DBRowIterator<T> i = new DBRowIterator<T>(query, false);
+		i.setReuseRowArrays(true);
 		i.init();
 		final List<Field<?>> fields = query.getSelectFields();
 		return new Iterator<Map<Field<?>, Object>>() {
@@ -4,6 +4,7 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -32,12 +33,14 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 	private final DBQuery<T> query;
 	private T next;
 	private Select<?>[] selectedFields;
-	private final Map<Class<? extends Table>,Constructor<? extends Table>> constructors =
-			new HashMap<Class<? extends Table>, Constructor<? extends Table>>();
+	private final Map<Class<? extends Table>,Table.__Factory<? extends Table>> factories =
+			new HashMap<Class<? extends Table>,Table.__Factory<? extends Table>>();
 	private final Map<Class<? extends Table>,Method> fkToOneSetMethods =
 			new HashMap<Class<? extends Table>,Method>();
 	private final Map<FK<?>,Method> fkToManySetMethods =
 			new HashMap<FK<?>,Method>();
+	private Boolean[] batchLazyLoads;
+	private DeferredLoader[] deferredLoaders;
 	private boolean done = false;
 	Object[] lastFieldValues;
 	private DataSource ds = null;
@@ -67,6 +70,8 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 
 	SelectFromOAI(final DBQuery<T> dbQuery, final boolean useWarnings) {
 		final DBRowIterator<T> dbRowIterator = new DBRowIterator<T>(dbQuery, useWarnings);
+		// row values are copied into table objects, so the arrays themselves can be recycled
+		dbRowIterator.setReuseRowArrays(true);
 		src = dbRowIterator;
 		ds = dbRowIterator.ds;
 		query = dbRowIterator.query;
@@ -97,13 +102,13 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 		}
 		try {
 			final List<TableInfo> tableInfos = query.getAllTableInfos();
+			batchLazyLoads = new Boolean[tableInfos.size()];
+			deferredLoaders = new DeferredLoader[tableInfos.size()];
+			if (ds == null || !Context.batchedLazyLoadingEnabled()) Arrays.fill(batchLazyLoads, false);
 			for (final TableInfo tableInfo : tableInfos) {
 				if (tableInfo.end > extraFieldsStartAt) extraFieldsStartAt = tableInfo.end;
 				if (tableInfo.tableClass.getName().startsWith("org.nosco.TmpTableBuilder")) continue;
-				final Constructor<? extends Table> constructor = tableInfo.tableClass.getDeclaredConstructor(
-						new Expression.Select[0].getClass(), new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
-				constructor.setAccessible(true);
-				constructors.put(tableInfo.tableClass, constructor);
+				factories.put(tableInfo.tableClass, Util.getFactory(tableInfo.tableClass));
 				try {
 					final Method setFKMethod  = tableInfo.tableClass.getDeclaredMethod(
 							"SET_FK", Field.FK.class, Object.class);
@@ -142,6 +147,12 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 		}
 	}
 
+	private boolean hasDeferredFields(final TableInfo ti) {
+		if (ti.tableClass.getName().startsWith("org.nosco.TmpTableBuilder")) return false;
+		final int selected = Math.min(ti.end, selectedFields.length) - ti.start;
+		return selected < Util.getFields(ti.tableClass).size();
+	}
+
 	DBQuery<T> getUnderlyingQuery() {
 		return query;
 	}
@@ -191,10 +202,20 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 						newObjectThisRow[i] = false;
 					} else {
 						if (Util.notAllNull(fieldValues, ti.start, ti.end)) {
-							final Table t = constructors.get(ti.tableClass)
+							final Table t = factories.get(ti.tableClass)
 									.newInstance(selectedFields, fieldValues, ti.start, ti.end);
 							t.__NOSCO_USAGE_MONITOR = usageMonitor;
 							t.__NOSCO_ORIGINAL_DATA_SOURCE = ds;
+							if (batchLazyLoads[i] == null) {
+								batchLazyLoads[i] = hasDeferredFields(ti) || t.FKS().length > 0;
+							}
+							if (batchLazyLoads[i]) {
+								// remember siblings so deferred columns and FKs can be lazy loaded in batches
+								if (deferredLoaders[i] == null || deferredLoaders[i].isFull()) {
+									deferredLoaders[i] = new DeferredLoader(ti.tableClass, ds);
+								}
+								deferredLoaders[i].add(t);
+							}
 							if (i==0 && extraFieldsStartAt < fieldValues.length) {
 								for (int j=extraFieldsStartAt; j<fieldValues.length; ++j) {
 									t.set((Select)this.selectedFields[j], fieldValues[j]);
@@ -255,10 +276,6 @@ class SelectFromOAI<T extends Table> implements ClosableIterator<T> {
 			e.printStackTrace();
 			close();
 			throw new RuntimeException(e);
-		} catch (final InstantiationException e) {
-			e.printStackTrace();
-			close();
-			throw new RuntimeException(e);
 		}
 		final boolean hasNext = next != null;
 		if (!hasNext) close();
@@ -237,6 +237,7 @@ class SoftJoin<T extends Table> extends AbstractQuery<T> {
 		return new ClosableIterator<T>() {
 
 			Iterator<? extends Table> qXi = qXa.iterator();
+			final CompiledCondition predicate = CompiledCondition.compile(condition);
 			Iterator<? extends Table> qYi = qYa.iterator();
 			boolean matchedqX = false;
 			boolean matchedqY = false;
@@ -266,7 +267,7 @@ class SoftJoin<T extends Table> extends AbstractQuery<T> {
 						} else if (!matchedqY && qYo==null) {
 							matchedqY = true;
 						} else {
-							matches &= condition.matches(t);
+							matches &= predicate.matches(t);
 							if (matches) {
 								matchedqX = true;
 								matchedqY = true;
@@ -0,0 +1,56 @@
+package org.kered.dko;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Caches the select SQL generated for a query by its shape (see {@code DBQuery.getShape()}),
+ * so queries that only differ in the values they compare against skip rebuilding
+ * the select/from/where/order by clauses. &nbsp; The bound values are still read fresh
+ * from each query.
+ *
+ * @author Derek Anderson
+ */
+class SqlCache {
+
+	@SuppressWarnings("serial")
+	private static final Map<List<Object>,String> cache = Collections.synchronizedMap(
+			new LinkedHashMap<List<Object>,String>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(final Entry<List<Object>,String> eldest) {
+					return size() > Context.getSqlCacheSize();
+				}
+			});
+
+	private SqlCache() {}
+
+	/**
+	 * @return the cached SQL for this shape, or null
+	 */
+	static String get(final List<Object> shape) {
+		if (shape == null) return null;
+		return cache.get(shape);
+	}
+
+	/**
+	 * Caches the SQL generated for this shape. &nbsp; The full set of bindings generated
+	 * with the SQL must be the same as the bindings collected with the shape, otherwise
+	 * some other part of the query depends on bound values and it isn't cached.
+	 */
+	static void put(final List<Object> shape, final List<Object> shapeBindings,
+			final String sql, final List<Object> bindings) {
+		if (shape == null) return;
+		if (Context.getSqlCacheSize() <= 0) return;
+		if (shapeBindings.size() != bindings.size()) return;
+		for (int i=0; i<bindings.size(); ++i) {
+			final Object a = shapeBindings.get(i);
+			final Object b = bindings.get(i);
+			if (a != b && (a == null || !a.equals(b))) return;
+		}
+		cache.put(shape, sql);
+	}
+
+}
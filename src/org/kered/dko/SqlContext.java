@@ -54,7 +54,7 @@ class SqlContext {
 
 	String getFullTableName(final TableInfo ti) {
 		if (ti.dummyTable != null) {
-			return dbType==Constants.DB_TYPE.SQLSERVER ? "#"+ti.dummyTable.name : ti.dummyTable.name;
+			return ti.dummyTable.getTableName(dbType);
 		}
 		return getFullTableName(ti.tableClass);
 	}
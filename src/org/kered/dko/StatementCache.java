@@ -0,0 +1,166 @@
+package org.kered.dko;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import org.kered.dko.datasource.UnClosableConnection;
+
+/**
+ * Caches {@code PreparedStatement}s per connection, keyed by their SQL text. &nbsp;
+ * Statements are checked out with {@code take()} and handed back with {@code release()},
+ * so two open iterators running the same SQL on the same connection never share one.
+ * <p>
+ * Only connections that outlive a single query are cached (connections inside a
+ * transaction, or {@code UnClosableConnection}s handed out by a pool). &nbsp; Both the number
+ * of statements per connection and the number of tracked connections are bounded, with
+ * the least recently used entries closed first.
+ *
+ * @author Derek Anderson
+ */
+class StatementCache {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.StatementCache");
+
+	private static final int MAX_CONNECTIONS = 64;
+
+	@SuppressWarnings("serial")
+	private static final Map<Connection,StatementCache> caches = Collections.synchronizedMap(
+			new LinkedHashMap<Connection,StatementCache>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(final Entry<Connection,StatementCache> eldest) {
+					if (size() <= MAX_CONNECTIONS) return false;
+					eldest.getValue().closeAll();
+					return true;
+				}
+			});
+
+	private final LinkedHashMap<String,PreparedStatement> statements =
+			new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true);
+
+	private StatementCache() {}
+
+	/**
+	 * @param conn
+	 * @param willBeClosed true if the caller is going to close the connection after this query
+	 * @return true if statements prepared on this connection should be cached
+	 */
+	static boolean isCacheable(final Connection conn, final boolean willBeClosed) {
+		if (conn == null) return false;
+		if (Context.getStatementCacheSize() <= 0) return false;
+		return !willBeClosed || conn instanceof UnClosableConnection;
+	}
+
+	/**
+	 * Checks a statement for this SQL out of the cache.
+	 * @return the cached statement, or null if there wasn't one
+	 */
+	static PreparedStatement take(final Connection conn, final String sql) {
+		final Connection key = getKey(conn);
+		final StatementCache cache = caches.get(key);
+		if (cache == null) return null;
+		if (isClosed(key)) {
+			caches.remove(key);
+			return null;
+		}
+		synchronized (cache) {
+			final PreparedStatement ps = cache.statements.remove(sql);
+			if (ps == null || isClosed(ps)) return null;
+			return ps;
+		}
+	}
+
+	/**
+	 * Returns a statement to the cache. &nbsp; If the cache is full the least
+	 * recently used statement is closed. &nbsp; If another statement with the same SQL has
+	 * already been returned, this one is closed instead.
+	 */
+	static void release(final Connection conn, final String sql, final PreparedStatement ps) {
+		final int maxSize = Context.getStatementCacheSize();
+		if (maxSize <= 0) {
+			close(ps);
+			return;
+		}
+		final Connection key = getKey(conn);
+		StatementCache cache;
+		synchronized (caches) {
+			cache = caches.get(key);
+			if (cache == null) {
+				cache = new StatementCache();
+				caches.put(key, cache);
+			}
+		}
+		final List<PreparedStatement> toClose = new ArrayList<PreparedStatement>();
+		synchronized (cache) {
+			if (cache.statements.containsKey(sql)) {
+				toClose.add(ps);
+			} else {
+				cache.statements.put(sql, ps);
+			}
+			while (cache.statements.size() > maxSize) {
+				final Entry<String, PreparedStatement> eldest = cache.statements.entrySet().iterator().next();
+				cache.statements.remove(eldest.getKey());
+				toClose.add(eldest.getValue());
+			}
+		}
+		for (final PreparedStatement x : toClose) close(x);
+	}
+
+	/**
+	 * Closes and forgets all the statements cached for this connection.
+	 * Call before really closing a connection.
+	 */
+	static void clear(final Connection conn) {
+		if (conn == null) return;
+		final StatementCache cache = caches.remove(getKey(conn));
+		if (cache != null) cache.closeAll();
+	}
+
+	private synchronized void closeAll() {
+		for (final PreparedStatement ps : statements.values()) close(ps);
+		statements.clear();
+	}
+
+	private static Connection getKey(Connection conn) {
+		// pools and single-threaded datasources hand out new wrappers around the same connection
+		while (conn instanceof UnClosableConnection) {
+			conn = ((UnClosableConnection) conn).getUnderlyingConnection();
+		}
+		return conn;
+	}
+
+	private static boolean isClosed(final Connection conn) {
+		try {
+			return conn.isClosed();
+		} catch (final SQLException e) {
+			return true;
+		}
+	}
+
+	private static boolean isClosed(final PreparedStatement ps) {
+		try {
+			return ps.isClosed();
+		} catch (final SQLException e) {
+			return true;
+		} catch (final AbstractMethodError e) {
+			// pre-jdbc4 driver
+			return false;
+		}
+	}
+
+	private static void close(final PreparedStatement ps) {
+		try {
+			if (!isClosed(ps)) ps.close();
+		} catch (final SQLException e) {
+			log.fine("could not close cached statement: "+ e);
+		}
+	}
+
+}
@@ -75,6 +75,8 @@ public abstract class Table {
 	@SuppressWarnings("rawtypes")
 	UsageMonitor __NOSCO_USAGE_MONITOR = null;
 
+	DeferredLoader __NOSCO_DEFERRED_LOADER = null;
+
 	/**
 	 * Returns true if the object has been modified
 	 * @return true if the object has been modified
@@ -297,6 +299,20 @@ public abstract class Table {
 		public V value();
 	}
 
+	/**
+	 * Builds table objects from rows of selected values. &nbsp; Generated classes expose one
+	 * as {@code __NOSCO_FACTORY}, so rows can be turned into objects without going through
+	 * reflection.
+	 *
+	 * @author Derek Anderson
+	 *
+	 * @param <S>
+	 */
+	public static interface __Factory<S extends Table> {
+		@SuppressWarnings("rawtypes")
+		S newInstance(Expression.Select[] fields, Object[] objects, int start, int end);
+	}
+
 	@Override
 	public int hashCode() {
 	    final int prime = 31;
@@ -384,6 +400,35 @@ public abstract class Table {
 		if (__NOSCO_USAGE_MONITOR!=null) __NOSCO_USAGE_MONITOR.__NOSCO_PRIVATE_accessedColumnCallback(table, field);
 	}
 
+	/**
+	 * Please do not use.
+	 * @return true if the deferred field was loaded (along with the same field of the
+	 * other objects read by the same query)
+	 */
+	protected boolean __NOSCO_PRIVATE_loadDeferred(final Field<?> field) {
+		return __NOSCO_DEFERRED_LOADER != null && __NOSCO_DEFERRED_LOADER.load(this, field);
+	}
+
+	/**
+	 * Please do not use.
+	 * @return true if the FK object was loaded (along with the same FK of the
+	 * other objects read by the same query)
+	 */
+	protected boolean __NOSCO_PRIVATE_loadFK(final Field.FK<?> fk) {
+		return __NOSCO_DEFERRED_LOADER != null && __NOSCO_DEFERRED_LOADER.loadFK(this, fk);
+	}
+
+	/**
+	 * Sets a value read from the database, without marking it as updated.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void __NOSCO_PRIVATE_setFetchedValue(final Field field, final Object value) {
+		final boolean wasUpdated = __NOSCO_UPDATED_VALUES != null && __NOSCO_UPDATED_VALUES.get(field.INDEX);
+		set(field, value);
+		if (!wasUpdated && __NOSCO_UPDATED_VALUES != null) __NOSCO_UPDATED_VALUES.clear(field.INDEX);
+		__NOSCO_FETCHED_VALUES.set(field.INDEX);
+	}
+
 	String TABLE_NAME(final SqlContext sqlContext) {
 		return Util.getTableName(this.getClass());
 	}
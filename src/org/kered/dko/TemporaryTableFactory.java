@@ -2,24 +2,31 @@ package org.kered.dko;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
 import org.kered.dko.Constants.DB_TYPE;
 import org.kered.dko.Field.FK;
 import org.kered.dko.Field.PK;
+import org.kered.dko.datasource.UnClosableConnection;
 
 class TemporaryTableFactory {
 
 	static class DummyTableWithName<T extends Table> extends Table {
 
-		final String name = "NOSCO_"+ Math.round(Math.random() * Integer.MAX_VALUE);
+		final String name;
+		final int batch = nextBatch.incrementAndGet();
 		Class<T> cls = null;
 		private List<Field<?>> fields = null;
 		private Collection<T> set = null;
@@ -29,13 +36,17 @@ class TemporaryTableFactory {
 
 		@SuppressWarnings("unused")
 		protected DummyTableWithName(final Field[] _fields, final Object[] _objects, final int _start, final int _end) {
-			// TODO Auto-generated method stub
+			this.name = null;
 		}
 
 		public DummyTableWithName(final Class<T> cls, final List<Field<?>> fields, final Collection<T> set) {
 			this.cls = cls;
 			this.fields = fields;
 			this.set = set;
+			// tables are pooled by their columns
+			final StringBuilder sb = new StringBuilder();
+			for (final Field<?> field : fields) sb.append(field.NAME).append(' ').append(field.SQL_TYPE).append(',');
+			this.name = "NOSCO_IN_"+ Integer.toHexString(sb.toString().hashCode());
 		}
 
 		public static String _SCHEMA_NAME = null;
@@ -133,120 +144,141 @@ class TemporaryTableFactory {
 
 		@Override
 		protected void __NOSCO_PRIVATE_preExecute(final SqlContext context, final Connection conn) throws SQLException {
-			Statement stmt = null;
-			PreparedStatement ps = null;
-			try {
-				stmt = conn.createStatement();
-				final StringBuffer sqlSb = new StringBuffer();
-				String tableName = (context.dbType==Constants.DB_TYPE.SQLSERVER ? "#" : "") + name;
-				if (context.dbType==Constants.DB_TYPE.DERBY) tableName = "SESSION."+tableName;
-				String fluff = "";
-				if (context.dbType==Constants.DB_TYPE.SQLSERVER) fluff = "TEMPORARY ";
-				if (context.dbType==Constants.DB_TYPE.ORACLE || context.dbType==Constants.DB_TYPE.DERBY) fluff = "GLOBAL TEMPORARY ";
-				String create = context.dbType==Constants.DB_TYPE.DERBY ? "DECLARE " : "CREATE ";
-				sqlSb.append(create+ fluff +"TABLE "+ tableName + "(");
-				final List<String> placeholders = new ArrayList<String>();
-				for (int i=0; i<fields.size(); ++i) {
-					final Field<?> field = fields.get(i);
-					placeholders.add("?");
-					sqlSb.append(field.NAME);
-					sqlSb.append(" ");
-					sqlSb.append(field.SQL_TYPE);
-					if (context.dbType==Constants.DB_TYPE.MYSQL && "varchar".equals(field.SQL_TYPE.toLowerCase())) {
-						sqlSb.append("(4096)");
-					}
-					if (context.dbType==Constants.DB_TYPE.DERBY && "varchar".equals(field.SQL_TYPE.toLowerCase())) {
-						sqlSb.append("(32672)");
-					}
-					if (i < fields.size()-1) sqlSb.append(", ");
+			final String tableName = getTableName(context.dbType);
+			final PooledTable table = getPooledTable(conn, tableName);
+			if (!table.created) {
+				create(context.dbType, conn, tableName);
+				// a table created in a transaction may yet be rolled back
+				synchronized (pools) {
+					table.created = !isDDLTransactional(context.dbType) || conn.getAutoCommit();
 				}
-				sqlSb.append(")");
-				if (context.dbType==Constants.DB_TYPE.ORACLE || context.dbType==Constants.DB_TYPE.DERBY) {
-					sqlSb.append(" ON COMMIT PRESERVE ROWS");
-				}
-				if (context.dbType==Constants.DB_TYPE.DERBY) {
-					sqlSb.append(" NOT LOGGED");
-				}
-				final String sql = sqlSb.toString();
-				Util.log(sql, null);
-				stmt.execute(sql);
-				String sqlInsert = "insert into "+ tableName +" values ("+ Util.join(",", placeholders) +")";
-				Util.log(sqlInsert, null);
-				ps = conn.prepareStatement(sqlInsert);
+			}
+			synchronized (pools) {
+				final Integer refs = table.batches.get(batch);
+				table.batches.put(batch, refs==null ? 1 : refs+1);
+				// already loaded for an execution of this query still running on this connection
+				if (refs != null) return;
+			}
+			final List<String> placeholders = new ArrayList<String>();
+			placeholders.add("?");
+			for (int i=0; i<fields.size(); ++i) placeholders.add("?");
+			final String sqlInsert = "insert into "+ tableName +" values ("+ Util.join(",", placeholders) +")";
+			Util.log(sqlInsert, null);
+			final PreparedStatement ps = conn.prepareStatement(sqlInsert);
+			try {
 				int i = 0;
-				int added = 0;
-				for (final T t : set) {
+				for (final T t : new LinkedHashSet<T>(set)) {
 					++i;
+					ps.setInt(1, batch);
 					for (int j=0; j<fields.size(); ++j) {
 						final Field<?> field = fields.get(j);
 						final Object o = t.get(field);
-						Util.setBindingWithTypeFixes(ps, j+1, o);
+						Util.setBindingWithTypeFixes(ps, j+2, o);
 					}
 					ps.addBatch();
-					if (i%64 == 0) {
-						for (int x : ps.executeBatch()) {
-							if (context.dbType==DB_TYPE.ORACLE && x==-2) {
-								// from oracle's docs:  a value of -2 indicates that a element was processed 
-								// successfully, but that the number of effected rows is unknown.
-								x = 1;
-							}
-							added += x;
-						}
-					}
+					if (i%INSERT_BATCH_SIZE == 0) ps.executeBatch();
 				}
-				if (i%64 != 0) {
-					for (int x : ps.executeBatch()) {
-						if (context.dbType==DB_TYPE.ORACLE && x==-2) {
-							// from oracle's docs:  a value of -2 indicates that a element was processed 
-							// successfully, but that the number of effected rows is unknown.
-							x = 1;
-						}
-						added += x;
-					}
-				}
-//				ResultSet rs = stmt.executeQuery("select count(1) from "+ tableName);
-//				while (rs.next()) {
-//					System.err.println("tmp table "+ tableName +" has "+ rs.getLong(1) +" rows");
-//				}
-//				rs.close();
-				//System.out.println("added "+ added);
+				if (i%INSERT_BATCH_SIZE != 0) ps.executeBatch();
 			} catch (final SQLException e) {
+				try {
+					__NOSCO_PRIVATE_postExecute(context, conn);
+				} catch (final SQLException e1) {
+					e1.printStackTrace();
+				}
 				throw e;
 			} finally {
 				try {
-					if (stmt!=null && !stmt.isClosed()) stmt.close();
+					if (!ps.isClosed()) ps.close();
 				} catch (final SQLException e) {
 					e.printStackTrace();
 				}
+			}
+		}
+
+		@Override
+		protected void __NOSCO_PRIVATE_postExecute(final SqlContext context, final Connection conn) throws SQLException {
+			final String tableName = getTableName(context.dbType);
+			final PooledTable table = getPooledTable(conn, tableName);
+			final boolean truncate;
+			synchronized (pools) {
+				final Integer refs = table.batches.get(batch);
+				if (refs == null) return;
+				if (refs > 1) {
+					table.batches.put(batch, refs-1);
+					return;
+				}
+				table.batches.remove(batch);
+				truncate = table.batches.isEmpty() && isTruncateTransactional(context.dbType);
+			}
+			final String sql = truncate ? "TRUNCATE TABLE "+ tableName
+					: "delete from "+ tableName +" where "+ BATCH.NAME +"=?";
+			Util.log(sql, truncate ? null : Collections.<Object>singletonList(batch));
+			final PreparedStatement ps = conn.prepareStatement(sql);
+			try {
+				if (!truncate) ps.setInt(1, batch);
+				ps.execute();
+			} finally {
 				try {
-					if (ps!=null && !ps.isClosed()) ps.close();
+					if (!ps.isClosed()) ps.close();
 				} catch (final SQLException e) {
 					e.printStackTrace();
 				}
 			}
 		}
-		@Override
-		protected void __NOSCO_PRIVATE_postExecute(final SqlContext context, final Connection conn) throws SQLException {
-			Statement stmt = null;
-			String tableName = (context.dbType==Constants.DB_TYPE.SQLSERVER ? "#" : "") + name;
-			if (context.dbType==Constants.DB_TYPE.DERBY) tableName = "SESSION."+tableName;
-			try {
-				stmt = conn.createStatement();
-				if (context.dbType==DB_TYPE.ORACLE) {
-					// oracle requires a TRUNCATE before a drop for tmp tables, otherwise you get:
-					// ORA-14452: attempt to create, alter or drop an index on temporary table already in use
-					final String sql = "TRUNCATE TABLE "+ tableName;
-					Util.log(sql, null);
-					stmt.execute(sql);
+
+		String getTableName(final DB_TYPE dbType) {
+			if (dbType==DB_TYPE.SQLSERVER) return "#"+ name;
+			if (dbType==DB_TYPE.DERBY) return "SESSION."+ name;
+			return name;
+		}
+
+		/**
+		 * Creates this table on the connection, if it's not already there.
+		 */
+		private void create(final DB_TYPE dbType, final Connection conn, final String tableName) throws SQLException {
+			final StringBuffer columns = new StringBuffer();
+			columns.append("(").append(BATCH.NAME).append(" integer");
+			for (final Field<?> field : fields) {
+				columns.append(", ").append(field.NAME).append(" ").append(field.SQL_TYPE);
+				if (dbType==DB_TYPE.MYSQL && "varchar".equals(field.SQL_TYPE.toLowerCase())) {
+					columns.append("(4096)");
+				}
+				if (dbType==DB_TYPE.DERBY && "varchar".equals(field.SQL_TYPE.toLowerCase())) {
+					columns.append("(32672)");
 				}
-				final String sql = "DROP TABLE "+ tableName;
-				Util.log(sql, null);
+				if (dbType==DB_TYPE.HSQL && "varchar".equals(field.SQL_TYPE.toLowerCase())) {
+					columns.append("(32768)");
+				}
+			}
+			columns.append(")");
+			String sql;
+			if (dbType==DB_TYPE.SQLSERVER) {
+				sql = "IF OBJECT_ID('tempdb.."+ tableName +"') IS NULL CREATE TABLE "+ tableName + columns;
+			} else if (dbType==DB_TYPE.ORACLE) {
+				sql = "CREATE GLOBAL TEMPORARY TABLE "+ tableName + columns +" ON COMMIT PRESERVE ROWS";
+			} else if (dbType==DB_TYPE.DERBY) {
+				sql = "DECLARE GLOBAL TEMPORARY TABLE "+ tableName + columns +" ON COMMIT PRESERVE ROWS NOT LOGGED";
+			} else if (dbType==DB_TYPE.HSQL) {
+				sql = "DECLARE LOCAL TEMPORARY TABLE "+ tableName + columns +" ON COMMIT PRESERVE ROWS";
+			} else if (dbType==DB_TYPE.SQLITE3) {
+				sql = "CREATE TEMP TABLE IF NOT EXISTS "+ tableName + columns;
+			} else {
+				sql = "CREATE TEMPORARY TABLE IF NOT EXISTS "+ tableName + columns;
+			}
+			Util.log(sql, null);
+			final Statement stmt = conn.createStatement();
+			try {
 				stmt.execute(sql);
 			} catch (final SQLException e) {
-				throw e;
+				// oracle's temp table definitions are global, hsql and derby have no "if not exists"
+				if (!(dbType==DB_TYPE.ORACLE && e.getErrorCode()==955)
+						&& !(dbType==DB_TYPE.DERBY && "X0Y32".equals(e.getSQLState()))
+						&& !(dbType==DB_TYPE.HSQL && "42504".equals(e.getSQLState()))) {
+					throw e;
+				}
 			} finally {
 				try {
-					if (stmt!=null && !stmt.isClosed()) stmt.close();
+					if (!stmt.isClosed()) stmt.close();
 				} catch (final SQLException e) {
 					e.printStackTrace();
 				}
@@ -255,6 +287,64 @@ class TemporaryTableFactory {
 
 	}
 
+	/**
+	 * Rows loaded per batch into a temp table.
+	 */
+	static final int INSERT_BATCH_SIZE = 1024;
+
+	/**
+	 * The column in every temp table telling which {@code in()} a row belongs to, so one
+	 * pooled table can serve several queries on the same connection at once.
+	 */
+	static final Field<Integer> BATCH = new Field<Integer>("dko_batch", Integer.class);
+
+	private static final AtomicInteger nextBatch = new AtomicInteger();
+
+	private static class PooledTable {
+		boolean created = false;
+		// the batches loaded, and how many executions are using each
+		final Map<Integer,Integer> batches = new HashMap<Integer,Integer>();
+	}
+
+	/**
+	 * The temp tables created on each (real) connection. &nbsp; They're kept around for
+	 * the life of the connection and emptied between uses, rather than created and
+	 * dropped around every query.
+	 */
+	private static final Map<Connection,Map<String,PooledTable>> pools = new WeakHashMap<Connection,Map<String,PooledTable>>();
+
+	private static PooledTable getPooledTable(Connection conn, final String tableName) {
+		// pools and single-threaded datasources hand out new wrappers around the same connection
+		while (conn instanceof UnClosableConnection) {
+			conn = ((UnClosableConnection) conn).getUnderlyingConnection();
+		}
+		synchronized (pools) {
+			Map<String,PooledTable> tables = pools.get(conn);
+			if (tables == null) {
+				tables = new HashMap<String,PooledTable>();
+				pools.put(conn, tables);
+			}
+			PooledTable table = tables.get(tableName);
+			if (table == null) {
+				table = new PooledTable();
+				tables.put(tableName, table);
+			}
+			return table;
+		}
+	}
+
+	private static boolean isDDLTransactional(final DB_TYPE dbType) {
+		return dbType==DB_TYPE.POSTGRES || dbType==DB_TYPE.SQLSERVER || dbType==DB_TYPE.DERBY
+				|| dbType==DB_TYPE.SQLITE3;
+	}
+
+	/**
+	 * @return true if {@code TRUNCATE} doesn't commit the current transaction
+	 */
+	private static boolean isTruncateTransactional(final DB_TYPE dbType) {
+		return dbType==DB_TYPE.POSTGRES || dbType==DB_TYPE.SQLSERVER || dbType==DB_TYPE.HSQL;
+	}
+
 	@SuppressWarnings("unchecked")
 	static <T extends Table> DummyTableWithName createTemporaryTable(final Class<T> cls, final List<Field<?>> fields, final Collection<T> set) {
 		return new DummyTableWithName<T>(cls, fields, set);
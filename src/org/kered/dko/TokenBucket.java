@@ -0,0 +1,50 @@
+package org.kered.dko;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter. &nbsp; Tokens (rows, bytes...) refill continuously at
+ * {@code rate} per second, up to a tenth of a second's worth of burst. &nbsp; Taking more
+ * tokens than are available sleeps just long enough to pay back the difference, so
+ * throughput stays smooth instead of stalling and bursting.
+ *
+ * @author Derek Anderson
+ */
+class TokenBucket {
+
+	private final double rate;
+	private final double capacity;
+	private double tokens;
+	private long last = System.nanoTime();
+
+	/**
+	 * @param rate tokens per second
+	 */
+	TokenBucket(final double rate) {
+		if (rate <= 0) throw new IllegalArgumentException("rate must be positive: "+ rate);
+		this.rate = rate;
+		this.capacity = Math.max(1, rate / 10);
+		this.tokens = capacity;
+	}
+
+	/**
+	 * Takes {@code n} tokens, sleeping until they've been earned if need be.
+	 * @throws InterruptedException
+	 */
+	synchronized void acquire(final double n) throws InterruptedException {
+		refill();
+		tokens -= n;
+		if (tokens < 0) {
+			TimeUnit.NANOSECONDS.sleep((long) (-tokens / rate * 1e9));
+			// oversleeping is paid back by the refill, up to the burst capacity
+			refill();
+		}
+	}
+
+	private void refill() {
+		final long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - last) / 1e9 * rate);
+		last = now;
+	}
+
+}
@@ -5,13 +5,13 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.sql.Blob;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashSet;
@@ -77,54 +77,7 @@ public class Util {
 
 	@SuppressWarnings("unchecked")
 	static <S> S getTypedValueFromRS(final ResultSet rs, final int i, final Expression.Select<S> field) throws SQLException {
-		final Class<S> type = field instanceof Field ? ((Field<S>)field).TYPE : field.getType();
-		if (type==Byte.class || type==byte.class) {
-			final Byte v = Byte.valueOf(rs.getByte(i));
-			return (S) (rs.wasNull() ? null : v);
-		}
-		if (type==Double.class || type==double.class) {
-			final Double v = Double.valueOf(rs.getDouble(i));
-			return (S) (rs.wasNull() ? null : v);
-		}
-		if (type==Float.class || type==float.class) {
-			final Float v = Float.valueOf(rs.getFloat(i));
-			return (S) (rs.wasNull() ? null : v);
-		}
-		if (type==Integer.class || type==int.class) {
-			final Integer v = Integer.valueOf(rs.getInt(i));
-			return (S) (rs.wasNull() ? null : v);
-		}
-		if (type==Long.class || type==long.class) {
-			final Long v = Long.valueOf(rs.getLong(i));
-			return (S) (rs.wasNull() ? null : v);
-		}
-		if (type==Short.class || type==short.class) {
-			final Short v = Short.valueOf(rs.getShort(i));
-			return (S) (rs.wasNull() ? null : v);
-		}
-		if (type==Boolean.class || type==boolean.class) {
-			final Boolean v = Boolean.valueOf(rs.getBoolean(i));
-			return (S) (rs.wasNull() ? null : v);
-		}
-		if (type==Character.class || type==char.class) {
-			final String s = rs.getString(i);
-			if (s != null && s.length() > 0) return (S) Character.valueOf(s.charAt(0));
-			else return null;
-		}
-		if (type==String.class) {
-			return (S) rs.getString(i);
-		}
-		if (type == Blob.class) {
-			final Blob blob = rs.getBlob(i);
-			return (S) blob;
-		}
-		if (type == Timestamp.class) {
-			final Timestamp ts = rs.getTimestamp(i);
-			return (S) ts;
-		}
-		Object o = rs.getObject(i);
-		if (o instanceof Short) o = ((Short)o).intValue();
-		return (S) o;
+		return (S) ColumnReader.forField(field).read(rs, i);
 	}
 
 	/**
@@ -183,6 +136,46 @@ public class Util {
 		return fields;
 	}
 
+	static Map<Class<?>,Table.__Factory<?>> knownClassFactories = new ConcurrentHashMap<Class<?>,Table.__Factory<?>>();
+	@SuppressWarnings("unchecked")
+	static <T extends Table> Table.__Factory<T> getFactory(final Class<T> t) {
+		Table.__Factory<T> factory = (Table.__Factory<T>) knownClassFactories.get(t);
+		if (factory==null) {
+			try {
+				factory = (Table.__Factory<T>) t.getField("__NOSCO_FACTORY").get(null);
+			} catch (final Exception e) {
+				log.fine(e.toString() +" --- DKO class "+ t.getSimpleName()
+						+" has no generated factory.  falling back to reflection...");
+				factory = getReflectiveFactory(t);
+			}
+			knownClassFactories.put(t, factory);
+		}
+		return factory;
+	}
+
+	private static <T extends Table> Table.__Factory<T> getReflectiveFactory(final Class<T> t) {
+		try {
+			final Constructor<T> constructor = t.getDeclaredConstructor(
+					new Expression.Select[0].getClass(), new Object[0].getClass(), Integer.TYPE, Integer.TYPE);
+			constructor.setAccessible(true);
+			return new Table.__Factory<T>() {
+				@Override
+				@SuppressWarnings("rawtypes")
+				public T newInstance(final Expression.Select[] fields, final Object[] objects, final int start, final int end) {
+					try {
+						return constructor.newInstance(fields, objects, start, end);
+					} catch (final InvocationTargetException e) {
+						throw new RuntimeException(e.getCause());
+					} catch (final Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		} catch (final NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	static boolean deepEqual(final Object[] path, final Object[] path2) {
 		if (path == null && path2 == null) return true;
 		if (path == path2) return true;
@@ -526,12 +519,33 @@ public class Util {
 			}
 		}
 		else if (o instanceof Blob) ps.setBlob(i, (Blob) o);
+		else if (o instanceof SQLArray) {
+			final SQLArray array = (SQLArray) o;
+			ps.setArray(i, ps.getConnection().createArrayOf(array.type, array.values));
+		}
 		else if (o != null && "org.codehaus.groovy.runtime.GStringImpl".equals(o.getClass().getName())) {
 			ps.setObject(i, o.toString());
 		}
 		else ps.setObject(i, o);
 	}
 
+	/**
+	 * A binding for a whole array of values (as in {@code x = any(?)}). &nbsp; The
+	 * {@code java.sql.Array} needs a connection, so it's only made when it's bound.
+	 */
+	static class SQLArray {
+		final String type;
+		final Object[] values;
+		SQLArray(final String type, final Object[] values) {
+			this.type = type;
+			this.values = values;
+		}
+		@Override
+		public String toString() {
+			return type +"["+ values.length +"]";
+		}
+	}
+
 	static String[] collateTypes = {"char", "varchar", "text", "nchar", "nvarchar", "ntext"};
 	public static boolean isCollateType(String type) {
 		type = type.toLowerCase();
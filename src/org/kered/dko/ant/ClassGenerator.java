@@ -516,8 +516,13 @@ class ClassGenerator {
 		br.write("\"fields.length != objects.length => \"+ _fields.length +\" != \"+ _objects.length");
 		br.write(" +\"\");\n");
 		br.write("\t\tfor (int _i=_start; _i<_end; ++_i) {\n");
+		// jump straight to the column by its index instead of comparing against every field
+		br.write("\t\t\tif (!(_fields[_i] instanceof org.kered.dko.Field)) continue;\n");
+		br.write("\t\t\tswitch (((org.kered.dko.Field)_fields[_i]).INDEX) {\n");
+		int caseIndex = 0;
 		for (final String column : columns.keySet()) {
-			br.write("\t\t\tif (_fields[_i]=="+ getFieldName(column) +") {\n");
+			br.write("\t\t\tcase "+ caseIndex++ +":\n");
+			br.write("\t\t\t\tif (_fields[_i]!="+ getFieldName(column) +") continue;\n");
 			br.write("\t\t\t\t"+ getInstanceFieldName(column) +" = ");
 			final String assignment = convertToActualType(schema, table, column,
 					columns.getString(column),
@@ -526,10 +531,18 @@ class ClassGenerator {
 			br.write(";\n");
 			br.write("\t\t\t\t__NOSCO_FETCHED_VALUES.set("+ getFieldName(column) +".INDEX);\n");
 			br.write("\t\t\t\tcontinue;\n");
-			br.write("\t\t\t}\n");
 		}
+		br.write("\t\t\t}\n");
 		br.write("\t\t}\n\t}\n\n");
 
+		br.write("\tpublic static final org.kered.dko.Table.__Factory<"+ className +"> __NOSCO_FACTORY =\n");
+		br.write("\t\t\tnew org.kered.dko.Table.__Factory<"+ className +">() {\n");
+		br.write("\t\t@SuppressWarnings(\"rawtypes\")\n");
+		br.write("\t\tpublic "+ className +" newInstance(final org.kered.dko.Expression.Select[] _fields, final Object[] _objects, final int _start, final int _end) {\n");
+		br.write("\t\t\treturn new "+ className +"(_fields, _objects, _start, _end);\n");
+		br.write("\t\t}\n");
+		br.write("\t};\n\n");
+
 		// write abstract method impls
 		br.write("\tpublic final static String _SCHEMA_NAME = \""+ schema +"\";\n");
 		br.write("\tpublic final static String _TABLE_NAME= \""+ table +"\";\n\n");
@@ -690,7 +703,8 @@ class ClassGenerator {
 			br.write("\t */\n");
 			br.write("\tpublic "+ cls +" get"+ getInstanceMethodName(column) +"() {\n");
 			br.write("\t\t\t__NOSCO_PRIVATE_accessedColumnCallback(this, "+ getFieldName(column) +");\n");
-			br.write("\t\tif (!__NOSCO_FETCHED_VALUES.get("+ getFieldName(column) +".INDEX) && __NOSCO_ORIGINAL_DATA_SOURCE!=null) {\n");
+			br.write("\t\tif (!__NOSCO_FETCHED_VALUES.get("+ getFieldName(column) +".INDEX) && __NOSCO_ORIGINAL_DATA_SOURCE!=null\n");
+			br.write("\t\t\t\t&& !__NOSCO_PRIVATE_loadDeferred("+ getFieldName(column) +")) {\n");
 			br.write("\t\t\tfinal "+ className +" _tmp = ALL.use(__NOSCO_ORIGINAL_DATA_SOURCE).onlyFields(");
 			br.write(getFieldName(column)+")");
 			for (final String pk : pkSet) {
@@ -749,10 +763,12 @@ class ClassGenerator {
 			br.write("\tpublic "+ referencedTableClassName +" get"+ methodName +"() {\n");
 			final String fkName = genFKName(fk.columns.keySet(), referencedTable);
 			br.write("\t\tif (!__NOSCO_FETCHED_VALUES.get("+ fkName +".INDEX)) {\n");
-			br.write("\t\t\t"+ cachedObjectName +" = "+ referencedTableClassName +".ALL");
+			br.write("\t\t\tif (!__NOSCO_PRIVATE_loadFK("+ fkName +")) {\n");
+			br.write("\t\t\t\t"+ cachedObjectName +" = "+ referencedTableClassName +".ALL");
 			br.write(".where("+ referencedTableClassName +"."+ getFieldName(fk.columns.values()) +".eq(get"+ Util.underscoreToCamelCase(fk.columns.keySet(), true) +"()))");
 			br.write(".getTheOnly();\n");
-			br.write("\t\t\t__NOSCO_FETCHED_VALUES.set("+ fkName +".INDEX);\n");
+			br.write("\t\t\t\t__NOSCO_FETCHED_VALUES.set("+ fkName +".INDEX);\n");
+			br.write("\t\t\t}\n");
 			br.write("\t\t\t__NOSCO_PRIVATE_accessedFkCallback(this, "+ fkName +");\n");
 			br.write("\t\t}\n");
 			br.write("\t\treturn "+ cachedObjectName +";\n\t}\n\n");
@@ -0,0 +1,387 @@
+package org.kered.dko.datasource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A thread safe, bounded connection pool wrapping another DataSource. &nbsp;
+ * Connections are handed out as {@code UnClosableConnection}s that go back into the
+ * pool when closed.
+ * <p>
+ * At most {@code maxSize} connections are open at once. &nbsp; Callers of {@code getConnection()}
+ * beyond that wait (first come, first served) up to {@code timeout} millis, after which an
+ * {@code SQLException} is thrown. &nbsp; Idle connections are kept in a lock-free queue, are
+ * validated before being reused if they've sat idle for a while, and are closed once they've
+ * been idle longer than {@code setMaxIdleTime()} or open longer than {@code setMaxLifetime()}.
+ * <p>
+ * {@code getConnection(username, password)} isn't pooled; it passes straight through to the
+ * underlying DataSource.
+ *
+ * @author Derek Anderson
+ */
+public class ConnectionPoolingDataSource implements MatryoshkaDataSource {
+
+	private static final Logger log = Logger.getLogger("org.kered.dko.datasource.ConnectionPoolingDataSource");
+
+	public static final long DEFAULT_TIMEOUT = 30 * 1000;
+	public static final long DEFAULT_MAX_IDLE_TIME = 10 * 60 * 1000;
+	public static final long DEFAULT_MAX_LIFETIME = 30 * 60 * 1000;
+
+	// connections idle for less than this are assumed to still be good
+	private static final long VALIDATE_AFTER_IDLE = 1000;
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+	private static final long EVICTION_INTERVAL = 1000;
+
+	private final DataSource ds;
+	private final int maxSize;
+	private final long timeout;
+	private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+	private long maxLifetime = DEFAULT_MAX_LIFETIME;
+
+	private final Semaphore permits;
+	private final Queue<Pooled> idle = new ConcurrentLinkedQueue<Pooled>();
+	private volatile boolean closed = false;
+	private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+	// metrics
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong borrowNanos = new AtomicLong();
+	private final AtomicLong maxBorrowNanos = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong closedCount = new AtomicLong();
+
+	/**
+	 * @param ds
+	 * @param maxSize the most connections to have open at once
+	 */
+	public ConnectionPoolingDataSource(final DataSource ds, final int maxSize) {
+		this(ds, maxSize, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param ds
+	 * @param maxSize the most connections to have open at once
+	 * @param timeout how long to wait for a connection to free up (in millis)
+	 */
+	public ConnectionPoolingDataSource(final DataSource ds, final int maxSize, final long timeout) {
+		if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1: "+ maxSize);
+		this.ds = ds;
+		this.maxSize = maxSize;
+		this.timeout = timeout;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Connections idle in the pool longer than this are closed. &nbsp; Default: 10 minutes
+	 * @param millis
+	 */
+	public void setMaxIdleTime(final long millis) {
+		this.maxIdleTime = millis;
+	}
+
+	/**
+	 * Connections open longer than this are closed the next time they're returned
+	 * to the pool. &nbsp; Default: 30 minutes
+	 * @param millis
+	 */
+	public void setMaxLifetime(final long millis) {
+		this.maxLifetime = millis;
+	}
+
+	private static class Pooled {
+		final Connection conn;
+		final long created = System.currentTimeMillis();
+		volatile long lastUsed = created;
+		Pooled(final Connection conn) {
+			this.conn = conn;
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (closed) throw new SQLException("connection pool has been closed");
+		final long start = System.nanoTime();
+		waiters.incrementAndGet();
+		try {
+			if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				timeoutCount.incrementAndGet();
+				throw new SQLException("timed out after "+ timeout +"ms waiting for one of "
+						+ maxSize +" pooled connections");
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted waiting for a pooled connection");
+		} finally {
+			waiters.decrementAndGet();
+		}
+		try {
+			Pooled p;
+			while ((p = idle.poll()) != null) {
+				final long now = System.currentTimeMillis();
+				if (!expired(p, now) && (now - p.lastUsed < VALIDATE_AFTER_IDLE || isValid(p.conn))) break;
+				destroy(p);
+			}
+			if (p == null) {
+				p = new Pooled(ds.getConnection());
+				createdCount.incrementAndGet();
+			}
+			active.incrementAndGet();
+			recordBorrow(System.nanoTime() - start);
+			return wrap(p);
+		} catch (final SQLException e) {
+			permits.release();
+			throw e;
+		} catch (final RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private Connection wrap(final Pooled p) {
+		final AtomicBoolean returned = new AtomicBoolean(false);
+		return new UnClosableConnection(p.conn, new UnClosableConnection.CloseListener() {
+			@Override
+			public void wasClosed(final UnClosableConnection c) {
+				// a second close() of the same borrowed connection is ignored
+				if (returned.compareAndSet(false, true)) giveBack(p);
+			}
+		});
+	}
+
+	private void giveBack(final Pooled p) {
+		active.decrementAndGet();
+		try {
+			final long now = System.currentTimeMillis();
+			// (time spent borrowed doesn't count as idle)
+			if (closed || now - p.created > maxLifetime || !reset(p.conn)) {
+				destroy(p);
+			} else {
+				p.lastUsed = now;
+				idle.offer(p);
+			}
+		} finally {
+			permits.release();
+		}
+		evictIdle();
+	}
+
+	/**
+	 * Rolls back anything left uncommitted, so the next borrower starts clean.
+	 * @return false if the connection is unusable
+	 */
+	private static boolean reset(final Connection conn) {
+		try {
+			if (conn.isClosed()) return false;
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+			return true;
+		} catch (final SQLException e) {
+			log.fine("dropping pooled connection: "+ e);
+			return false;
+		}
+	}
+
+	private boolean expired(final Pooled p, final long now) {
+		return now - p.created > maxLifetime || now - p.lastUsed > maxIdleTime;
+	}
+
+	private static boolean isValid(final Connection conn) {
+		try {
+			return conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (final SQLException e) {
+			return false;
+		} catch (final AbstractMethodError e) {
+			// pre-jdbc4 driver
+			try {
+				return !conn.isClosed();
+			} catch (final SQLException e1) {
+				return false;
+			}
+		}
+	}
+
+	private void destroy(final Pooled p) {
+		closedCount.incrementAndGet();
+		try {
+			p.conn.close();
+		} catch (final SQLException e) {
+			log.fine("could not close pooled connection: "+ e);
+		}
+	}
+
+	/**
+	 * Closes connections that have sat idle too long. &nbsp; Runs at most once a second.
+	 */
+	private void evictIdle() {
+		final long now = System.currentTimeMillis();
+		final long last = lastEviction.get();
+		if (now - last < EVICTION_INTERVAL || !lastEviction.compareAndSet(last, now)) return;
+		for (final Pooled p : idle) {
+			if (expired(p, now) && idle.remove(p)) destroy(p);
+		}
+	}
+
+	private void recordBorrow(final long nanos) {
+		borrowCount.incrementAndGet();
+		borrowNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxBorrowNanos.get())) {
+			if (maxBorrowNanos.compareAndSet(max, nanos)) break;
+		}
+	}
+
+	/**
+	 * Closes all idle connections, and all borrowed connections as they're returned. &nbsp;
+	 * Further calls to {@code getConnection()} will fail.
+	 */
+	public void close() {
+		closed = true;
+		Pooled p;
+		while ((p = idle.poll()) != null) destroy(p);
+	}
+
+	/**
+	 * @return the number of connections currently borrowed
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * @return the number of open connections waiting in the pool
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return the number of threads waiting for a connection
+	 */
+	public int getWaiterCount() {
+		return waiters.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	/**
+	 * @return the average time {@code getConnection()} took (in nanos)
+	 */
+	public long getAverageBorrowNanos() {
+		final long count = borrowCount.get();
+		return count == 0 ? 0 : borrowNanos.get() / count;
+	}
+
+	/**
+	 * @return the longest time {@code getConnection()} took (in nanos)
+	 */
+	public long getMaxBorrowNanos() {
+		return maxBorrowNanos.get();
+	}
+
+	/**
+	 * @return the number of calls to {@code getConnection()} that timed out
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * @return the number of underlying connections opened
+	 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * @return the number of underlying connections closed
+	 */
+	public long getClosedCount() {
+		return closedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionPoolingDataSource[active="+ getActiveCount() +", idle="+ getIdleCount()
+				+", waiters="+ getWaiterCount() +", max="+ maxSize +", borrows="+ getBorrowCount()
+				+", avgBorrowNanos="+ getAverageBorrowNanos() +", maxBorrowNanos="+ getMaxBorrowNanos()
+				+", timeouts="+ getTimeoutCount() +"]";
+	}
+
+	@Override
+	public Connection getConnection(final String username, final String password) throws SQLException {
+		return ds.getConnection(username, password);
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return ds.getLogWriter();
+	}
+
+	@Override
+	public void setLogWriter(final PrintWriter out) throws SQLException {
+		ds.setLogWriter(out);
+	}
+
+	@Override
+	public void setLoginTimeout(final int seconds) throws SQLException {
+		ds.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return ds.getLoginTimeout();
+	}
+
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+		return ds.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+		return ds.isWrapperFor(iface);
+	}
+
+	@Override
+	public DataSource getPrimaryUnderlying() {
+		return ds;
+	}
+
+	@Override
+	public Collection<DataSource> getAllUnderlying() {
+		final Collection<DataSource> ret = new ArrayList<DataSource>(1);
+		ret.add(ds);
+		return ret;
+	}
+
+	//@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+}
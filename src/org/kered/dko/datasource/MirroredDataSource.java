@@ -2,12 +2,19 @@ package org.kered.dko.datasource;
 
 import java.io.PrintWriter;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
@@ -16,20 +23,374 @@ import javax.sql.DataSource;
 /**
  * This class wraps other {@code javax.sql.DataSource} instances.  It usually passes
  * through calls to the primary, but if {@code getMirroredConnection()}
- * is called a random mirror is used instead.
+ * is called a mirror is used instead.
+ * <p>
+ * Which mirror is decided by a {@code Strategy} (by default the one with the fewest
+ * connections currently checked out). &nbsp; Each mirror has a circuit breaker: &nbsp; after
+ * {@code setFailureThreshold()} failures in a row it isn't used again until
+ * {@code setCircuitBreakerCooldown()} has passed, after which a single connection is let through
+ * to try it. &nbsp; {@code startHealthChecks()} probes every mirror in the background (which
+ * also closes circuits as soon as a mirror comes back), and {@code setReplicationLagQuery()}
+ * takes mirrors that have fallen too far behind out of rotation until they catch up.
+ * <p>
+ * If no mirror is usable the primary is used. &nbsp; Per mirror metrics are available
+ * from {@code getMirrors()}.
+ * <p>
+ * {@code getMirroredConnection(since)} only uses mirrors known to have caught up with
+ * everything written to the primary before {@code since}, which lets a thread read its own
+ * writes (see {@code Context.setReadYourWritesWindow()}). &nbsp; How far a mirror has caught up
+ * is only known from its replication lag, so without {@code setReplicationLagQuery()} those
+ * reads all go to the primary.
  *
  * @author Derek Anderson
  */
 public class MirroredDataSource implements MatryoshkaDataSource {
 
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	public static final long DEFAULT_CIRCUIT_BREAKER_COOLDOWN = 30 * 1000;
+
+	// how much each new latency sample counts toward the moving average
+	private static final double EWMA_WEIGHT = 0.2;
+	private static final int PROBE_TIMEOUT_SECONDS = 5;
+
+	private static final Random random = new Random();
+
 	private final DataSource primary;
 	private DataSource[] mirrors;
+	private final Mirror[] stats;
 	private static final Logger log = Logger.getLogger("org.kered.dko.datasource.MirroredDataSource");
 
+	private volatile Strategy strategy = LEAST_OUTSTANDING;
+	private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private volatile long cooldown = DEFAULT_CIRCUIT_BREAKER_COOLDOWN;
+	private volatile String validationQuery = null;
+	private volatile String lagQuery = null;
+	private volatile long maxLagMillis = -1;
+	private Thread healthCheck = null;
+	private final AtomicLong primaryFallbacks = new AtomicLong();
+	private final AtomicLong primaryConsistentReads = new AtomicLong();
+
+	/**
+	 * Picks which mirror to connect to.
+	 */
+	public static interface Strategy {
+		/**
+		 * @param candidates the mirrors currently usable (never empty)
+		 * @return one of the candidates
+		 */
+		public Mirror choose(List<Mirror> candidates);
+	}
+
+	/**
+	 * Picks a mirror at random.
+	 */
+	public static final Strategy RANDOM = new Strategy() {
+		@Override
+		public Mirror choose(final List<Mirror> candidates) {
+			return candidates.get(random.nextInt(candidates.size()));
+		}
+	};
+
+	/**
+	 * Picks the mirror with the fewest connections checked out (ties are broken randomly).
+	 */
+	public static final Strategy LEAST_OUTSTANDING = new LowestScore() {
+		@Override
+		double score(final Mirror m) {
+			return m.getOutstanding();
+		}
+	};
+
+	/**
+	 * Picks the mirror with the lowest moving average latency, weighted by the number of
+	 * connections it already has checked out. &nbsp; Latency is measured by the health checks
+	 * (see {@code checkHealth()} and {@code startHealthChecks()}), so without them every mirror
+	 * scores the same. &nbsp; Mirrors not yet measured are tried first.
+	 */
+	public static final Strategy EWMA_LATENCY = new LowestScore() {
+		@Override
+		double score(final Mirror m) {
+			final double latency = m.getLatencyNanos();
+			return latency < 0 ? 0 : latency * (m.getOutstanding() + 1);
+		}
+	};
+
+	/**
+	 * Picks a mirror at random, in proportion to {@code Mirror.setWeight()}.
+	 */
+	public static final Strategy WEIGHTED = new Strategy() {
+		@Override
+		public Mirror choose(final List<Mirror> candidates) {
+			double total = 0;
+			for (final Mirror m : candidates) total += m.getWeight();
+			if (total <= 0) return RANDOM.choose(candidates);
+			double r = random.nextDouble() * total;
+			for (final Mirror m : candidates) {
+				r -= m.getWeight();
+				if (r < 0) return m;
+			}
+			return candidates.get(candidates.size() - 1);
+		}
+	};
+
+	private static abstract class LowestScore implements Strategy {
+		abstract double score(Mirror m);
+		@Override
+		public Mirror choose(final List<Mirror> candidates) {
+			Mirror best = null;
+			double bestScore = 0;
+			int ties = 0;
+			for (final Mirror m : candidates) {
+				final double score = score(m);
+				if (best == null || score < bestScore) {
+					best = m;
+					bestScore = score;
+					ties = 1;
+				} else if (score == bestScore && random.nextInt(++ties) == 0) {
+					best = m;
+				}
+			}
+			return best;
+		}
+	}
+
+	public static enum CircuitState {
+		/** in use */
+		CLOSED,
+		/** failing - not used until the cooldown has passed */
+		OPEN,
+		/** cooled down - the next connection will decide whether it closes or opens again */
+		HALF_OPEN
+	}
+
+	/**
+	 * One of the mirrors, with its routing state and metrics.
+	 */
+	public class Mirror {
+
+		private final DataSource ds;
+		private volatile double weight = 1;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+		private double latency = -1;
+		// zero while the circuit is closed
+		private volatile long openUntil = 0;
+		private final AtomicBoolean trial = new AtomicBoolean(false);
+		private volatile long lag = -1;
+		private volatile long caughtUpTo = -1;
+		private volatile boolean lagging = false;
+
+		private Mirror(final DataSource ds) {
+			this.ds = ds;
+		}
+
+		public DataSource getDataSource() {
+			return ds;
+		}
+
+		/**
+		 * Used by the {@code WEIGHTED} strategy. &nbsp; Default: 1
+		 * @param weight
+		 */
+		public void setWeight(final double weight) {
+			if (weight < 0) throw new IllegalArgumentException("weight can't be negative: "+ weight);
+			this.weight = weight;
+		}
+
+		public double getWeight() {
+			return weight;
+		}
+
+		/**
+		 * @return the number of connections currently checked out
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		/**
+		 * @return the number of connections asked for
+		 */
+		public long getRequestCount() {
+			return requests.get();
+		}
+
+		/**
+		 * @return the number of failed connections and health checks
+		 */
+		public long getFailureCount() {
+			return failures.get();
+		}
+
+		public int getConsecutiveFailures() {
+			return consecutiveFailures.get();
+		}
+
+		/**
+		 * @return the moving average of how long a health check (connecting and running the
+		 * validation query) takes, in nanos, or -1 if not yet measured
+		 */
+		public synchronized double getLatencyNanos() {
+			return latency;
+		}
+
+		/**
+		 * @return how far behind the primary the last health check found this mirror (in millis),
+		 * or -1 if unknown
+		 */
+		public long getReplicationLagMillis() {
+			return lag;
+		}
+
+		/**
+		 * @return the time (in millis) up to which everything written to the primary is known to
+		 * be on this mirror, as of the last health check, or -1 if unknown
+		 */
+		public long getCaughtUpTo() {
+			return caughtUpTo;
+		}
+
+		/**
+		 * @return true if this mirror is out of rotation for being too far behind
+		 */
+		public boolean isLagging() {
+			return lagging;
+		}
+
+		public CircuitState getCircuitState() {
+			final long until = openUntil;
+			if (until == 0) return CircuitState.CLOSED;
+			return System.currentTimeMillis() < until ? CircuitState.OPEN : CircuitState.HALF_OPEN;
+		}
+
+		private boolean isAvailable(final long now) {
+			if (lagging) return false;
+			final long until = openUntil;
+			return until == 0 || (now >= until && !trial.get());
+		}
+
+		/**
+		 * @return false if the circuit is open, or half open with a trial connection already under way
+		 */
+		private boolean tryAcquire(final long now) {
+			final long until = openUntil;
+			if (until == 0) return true;
+			return now >= until && trial.compareAndSet(false, true);
+		}
+
+		private Connection connect() throws SQLException {
+			requests.incrementAndGet();
+			final Connection conn;
+			try {
+				conn = ds.getConnection();
+			} catch (final SQLException e) {
+				failed(e);
+				throw e;
+			} catch (final RuntimeException e) {
+				failed(e);
+				throw e;
+			}
+			succeeded();
+			outstanding.incrementAndGet();
+			final AtomicBoolean returned = new AtomicBoolean(false);
+			return new UnClosableConnection(conn, new UnClosableConnection.CloseListener() {
+				@Override
+				public void wasClosed(final UnClosableConnection c) {
+					// a second close() of the same connection is ignored
+					if (!returned.compareAndSet(false, true)) return;
+					outstanding.decrementAndGet();
+					try {
+						c.closeUnderlying();
+					} catch (final SQLException e) {
+						log.fine("could not close connection to "+ ds +": "+ e);
+					}
+				}
+			});
+		}
+
+		private void probe() {
+			final long now = System.currentTimeMillis();
+			final long start = System.nanoTime();
+			Connection conn = null;
+			try {
+				requests.incrementAndGet();
+				conn = ds.getConnection();
+				final String validationQuery = MirroredDataSource.this.validationQuery;
+				if (validationQuery == null) {
+					if (!isValid(conn)) throw new SQLException("connection is not valid");
+				} else {
+					query(conn, validationQuery);
+				}
+				recordLatency(System.nanoTime() - start);
+				final String lagQuery = MirroredDataSource.this.lagQuery;
+				if (lagQuery != null) {
+					final Number seconds = query(conn, lagQuery);
+					lag = seconds == null ? -1 : Math.round(seconds.doubleValue() * 1000);
+					caughtUpTo = lag < 0 ? -1 : now - lag;
+					final boolean wasLagging = lagging;
+					lagging = maxLagMillis >= 0 && lag > maxLagMillis;
+					if (lagging && !wasLagging) {
+						log.warning(ds +" is "+ lag +"ms behind - taking it out of rotation");
+					} else if (!lagging && wasLagging) {
+						log.info(ds +" has caught up - putting it back in rotation");
+					}
+				}
+				succeeded();
+			} catch (final SQLException e) {
+				failed(e);
+			} catch (final RuntimeException e) {
+				failed(e);
+			} finally {
+				if (conn != null) {
+					try {
+						conn.close();
+					} catch (final SQLException e) {
+						log.fine("could not close connection to "+ ds +": "+ e);
+					}
+				}
+			}
+		}
+
+		private synchronized void recordLatency(final long nanos) {
+			latency = latency < 0 ? nanos : latency + EWMA_WEIGHT * (nanos - latency);
+		}
+
+		private void succeeded() {
+			consecutiveFailures.set(0);
+			if (openUntil != 0) {
+				openUntil = 0;
+				log.info(ds +" is back - closing its circuit");
+			}
+			trial.set(false);
+		}
+
+		private void failed(final Exception e) {
+			log.warning("could not connect to "+ ds +": "+ e.toString());
+			failures.incrementAndGet();
+			final int n = consecutiveFailures.incrementAndGet();
+			// a failed trial reopens the circuit straight away
+			if (n >= failureThreshold || openUntil != 0) {
+				if (openUntil == 0) log.warning(ds +" failed "+ n +" times in a row - opening its circuit");
+				openUntil = System.currentTimeMillis() + cooldown;
+			}
+			trial.set(false);
+		}
+
+		@Override
+		public String toString() {
+			return "[Mirror "+ ds +" state="+ getCircuitState() +", outstanding="+ getOutstanding()
+					+", requests="+ getRequestCount() +", failures="+ getFailureCount()
+					+", latencyNanos="+ Math.round(getLatencyNanos()) +", lagMillis="+ lag
+					+ (lagging ? " (lagging)" : "") +"]";
+		}
+	}
+
 	/**
      * This class usually passes
      * through calls to the primary, but if {@code getMirroredConnection()}
-     * is called a random mirror is used instead.
+     * is called a mirror is used instead.
 	 * @param primary
 	 * @param mirrors
 	 */
@@ -37,6 +398,129 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 		this.primary = primary;
 		if (mirrors == null) this.mirrors = new DataSource[0];
 		else this.mirrors = mirrors;
+		this.stats = new Mirror[this.mirrors.length];
+		for (int i=0; i<stats.length; ++i) stats[i] = new Mirror(this.mirrors[i]);
+	}
+
+	/**
+	 * Default: {@code LEAST_OUTSTANDING}
+	 * @param strategy
+	 */
+	public void setStrategy(final Strategy strategy) {
+		if (strategy == null) throw new NullPointerException("strategy");
+		this.strategy = strategy;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * How many failures in a row open a mirror's circuit. &nbsp; Default: 3
+	 * @param failures
+	 */
+	public void setFailureThreshold(final int failures) {
+		if (failures < 1) throw new IllegalArgumentException("failure threshold must be at least 1: "+ failures);
+		this.failureThreshold = failures;
+	}
+
+	/**
+	 * How long an open circuit waits before trying its mirror again. &nbsp; Default: 30 seconds
+	 * @param millis
+	 */
+	public void setCircuitBreakerCooldown(final long millis) {
+		this.cooldown = millis;
+	}
+
+	/**
+	 * The query health checks run on each mirror. &nbsp; If null (the default)
+	 * {@code Connection.isValid()} is used.
+	 * @param sql
+	 */
+	public void setValidationQuery(final String sql) {
+		this.validationQuery = sql;
+	}
+
+	/**
+	 * Has health checks measure each mirror's replication lag, and take mirrors
+	 * more than {@code maxLagMillis} behind out of rotation until they catch up. &nbsp;
+	 * The query should return how far behind the mirror is in seconds (or null if unknown);
+	 * for instance on PostgreSQL:
+	 * <pre>  select extract(epoch from now() - pg_last_xact_replay_timestamp())</pre>
+	 * @param sql null to stop checking
+	 * @param maxLagMillis -1 to only measure it
+	 */
+	public void setReplicationLagQuery(final String sql, final long maxLagMillis) {
+		this.lagQuery = sql;
+		this.maxLagMillis = maxLagMillis;
+		if (sql == null) {
+			for (final Mirror m : stats) {
+				m.lagging = false;
+				m.lag = -1;
+				m.caughtUpTo = -1;
+			}
+		}
+	}
+
+	/**
+	 * Checks the health of every mirror now (opening or closing their circuits, and
+	 * measuring their replication lag if {@code setReplicationLagQuery()} was called).
+	 */
+	public void checkHealth() {
+		for (final Mirror m : stats) m.probe();
+	}
+
+	/**
+	 * Starts a background thread calling {@code checkHealth()} every so often. &nbsp;
+	 * Call {@code stopHealthChecks()} when you're done with this DataSource.
+	 * @param intervalMillis
+	 */
+	public synchronized void startHealthChecks(final long intervalMillis) {
+		stopHealthChecks();
+		healthCheck = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					checkHealth();
+					try {
+						Thread.sleep(intervalMillis);
+					} catch (final InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "DKO mirror health check");
+		healthCheck.setDaemon(true);
+		healthCheck.start();
+	}
+
+	public synchronized void stopHealthChecks() {
+		if (healthCheck == null) return;
+		healthCheck.interrupt();
+		healthCheck = null;
+	}
+
+	/**
+	 * @return the mirrors (in the order they were given), with their metrics
+	 */
+	public List<Mirror> getMirrors() {
+		return Collections.unmodifiableList(Arrays.asList(stats));
+	}
+
+	/**
+	 * @return the number of calls to {@code getMirroredConnection()} that fell back to the
+	 * primary because no mirror was usable
+	 */
+	public long getPrimaryFallbackCount() {
+		return primaryFallbacks.get();
+	}
+
+	/**
+	 * @return the number of calls to {@code getMirroredConnection(since)} sent to the
+	 * primary because no usable mirror was known to have caught up
+	 */
+	public long getPrimaryConsistentReadCount() {
+		return primaryConsistentReads.get();
 	}
 
 	@Override
@@ -61,6 +545,8 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 
 	@Override
 	public boolean isWrapperFor(final Class<?> arg0) throws SQLException {
+		// so DBQuery finds this class when it isn't wrapped in anything else
+		if (arg0.isInstance(this)) return true;
 		if (primary.getClass().equals(arg0)) return true;
 		return primary.isWrapperFor(arg0);
 	}
@@ -68,6 +554,7 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> T unwrap(final Class<T> arg0) throws SQLException {
+		if (arg0.isInstance(this)) return (T) this;
 		if (primary.getClass().equals(arg0)) return (T) primary;
 		return primary.unwrap(arg0);
 	}
@@ -78,27 +565,51 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 	}
 
 	/**
-	 * Returns a connection from a randomly selected mirror. &nbsp;
-	 * Feel free to override this method to implement other
-	 * load balancing stratigies in your own code.
+	 * Returns a connection from a mirror picked by the current {@code Strategy}, skipping
+	 * mirrors whose circuits are open or that are lagging. &nbsp; If none can be connected to
+	 * the primary is used.
 	 * @return
 	 * @throws SQLException
 	 */
 	public Connection getMirroredConnection() throws SQLException {
-		// for now we randomly select the mirror
-		// TODO: implement other strategies
+		return getMirroredConnection(-1);
+	}
+
+	/**
+	 * Like {@code getMirroredConnection()}, but only uses mirrors known to have caught up
+	 * with everything written to the primary before {@code since}. &nbsp; If none have,
+	 * the primary is used.
+	 * @param since a time (in millis), or -1 for any mirror
+	 * @return
+	 * @throws SQLException
+	 */
+	public Connection getMirroredConnection(final long since) throws SQLException {
 		if (mirrors.length == 0) return getConnection();
-		final Random random = new Random();
-		final int i = random.nextInt(mirrors.length);
-		for (int j=0; j<mirrors.length; ++j) {
-			final DataSource mirror = mirrors[(i+j)%mirrors.length];
+		final long now = System.currentTimeMillis();
+		final List<Mirror> candidates = new ArrayList<Mirror>(stats.length);
+		boolean usable = false;
+		for (final Mirror m : stats) {
+			if (!m.isAvailable(now)) continue;
+			usable = true;
+			if (since < 0 || m.caughtUpTo >= since) candidates.add(m);
+		}
+		if (usable && candidates.isEmpty()) {
+			primaryConsistentReads.incrementAndGet();
+			return getConnection();
+		}
+		final Strategy strategy = this.strategy;
+		while (!candidates.isEmpty()) {
+			final Mirror m = strategy.choose(candidates);
+			if (m == null) break;
+			candidates.remove(m);
+			if (!m.tryAcquire(now)) continue;
 			try {
-				return mirror.getConnection();
+				return m.connect();
 			} catch (final SQLException e) {
 				// db down - try another
-				log.warning("could not connect to "+ mirror +": "+ e.toString());
 			}
 		}
+		primaryFallbacks.incrementAndGet();
 		try {
 			return primary.getConnection();
 		} catch (final SQLException e) {
@@ -108,6 +619,31 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 				+ Arrays.asList(mirrors) +" or the primary: "+ primary);
 	}
 
+	private static boolean isValid(final Connection conn) throws SQLException {
+		try {
+			return conn.isValid(PROBE_TIMEOUT_SECONDS);
+		} catch (final AbstractMethodError e) {
+			// pre-jdbc4 driver
+			return !conn.isClosed();
+		}
+	}
+
+	/**
+	 * @return the first column of the first row
+	 */
+	private static Number query(final Connection conn, final String sql) throws SQLException {
+		final Statement stmt = conn.createStatement();
+		try {
+			stmt.setQueryTimeout(PROBE_TIMEOUT_SECONDS);
+			final ResultSet rs = stmt.executeQuery(sql);
+			if (!rs.next()) return null;
+			final double v = rs.getDouble(1);
+			return rs.wasNull() ? null : v;
+		} finally {
+			stmt.close();
+		}
+	}
+
 	@Override
 	public Connection getConnection(final String arg0, final String arg1)
 			throws SQLException {
@@ -117,7 +653,7 @@ public class MirroredDataSource implements MatryoshkaDataSource {
 	@Override
 	public String toString() {
 		return "[MirroredDataSource primary="+ primary +" mirrors="
-				+ Util.join(",", mirrors) +"]";
+				+ Util.join(",", stats) +"]";
 	}
 
 	public DataSource getPrimaryDataSource() {
@@ -0,0 +1,330 @@
+package performance;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.kered.dko.Bulk;
+import org.kered.dko.CSV;
+import org.kered.dko.Condition;
+import org.kered.dko.Context;
+import org.kered.dko.Context.Undoer;
+import org.kered.dko.Diff;
+import org.kered.dko.Diff.RowChange;
+import org.kered.dko.Join;
+import org.kered.dko.Query;
+import org.kered.dko.unittest.nosco_test_jpetstore.Category;
+import org.kered.dko.unittest.nosco_test_jpetstore.Item;
+import org.kered.dko.unittest.nosco_test_jpetstore.Product;
+
+/**
+ * Times DKO's hot paths (SQL generation, row decoding, object assembly, bulk writes,
+ * in-memory joins, diffs, snapshots and CSV) against an in-memory HSQL copy of the jpetstore
+ * unit test database, padded out with {@code ROWS} extra items.
+ * <p>
+ * Each benchmark is warmed up, then timed over {@code RUNS} runs, and the median and
+ * best runs are reported. &nbsp; Pass benchmark names on the command line to only run
+ * those. &nbsp; Run with {@code ant performance-test-hsql}.
+ *
+ * @author Derek Anderson
+ */
+public class HotPathBenchmarks {
+
+	final static int ROWS = 10000;
+	final static int WARMUP_RUNS = 5;
+	final static int RUNS = 20;
+
+	static interface Benchmark {
+		/**
+		 * @return the number of operations (rows, objects, statements) done
+		 */
+		long run() throws Exception;
+	}
+
+	private final DataSource ds;
+	private final List<String> only;
+
+	HotPathBenchmarks(final DataSource ds, final List<String> only) {
+		this.ds = ds;
+		this.only = only;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final DataSource ds = createHSQLDB();
+		Context.getVMContext().setDataSource(ds).setAutoUndo(false);
+		// measure the library, not the usage monitor
+		Context.getVMContext().enableUsageWarnings(false).setAutoUndo(false);
+		new HotPathBenchmarks(ds, Arrays.asList(args)).runAll();
+	}
+
+	static DataSource createHSQLDB() throws Exception {
+		final JDBCDataSource ds = new JDBCDataSource();
+		ds.setDatabase("jdbc:hsqldb:mem:benchmarks");
+		ds.setUser("sa");
+		final Connection conn = ds.getConnection();
+		final Statement stmt = conn.createStatement();
+		for (final String file : new String[] {"deps/jpetstore/hsql/jpetstore-hsqldb-schema.sql",
+				"deps/jpetstore/hsql/jpetstore-hsqldb-dataload.sql"}) {
+			for (String sql : readFileToString(new File(file)).split(";")) {
+				sql = sql.trim();
+				if (sql.length() == 0) continue;
+				stmt.execute(sql);
+			}
+			conn.commit();
+		}
+		stmt.close();
+		conn.close();
+		return ds;
+	}
+
+	private static String readFileToString(final File file) throws IOException {
+		final FileReader reader = new FileReader(file);
+		final StringBuffer sb = new StringBuffer();
+		int chars;
+		final char[] buf = new char[1024];
+		while ((chars = reader.read(buf)) > 0) {
+			sb.append(buf, 0, chars);
+		}
+		reader.close();
+		return sb.toString();
+	}
+
+	void runAll() throws Exception {
+		final String productId = Product.ALL.first().getProductid();
+		final List<Item> newItems = new ArrayList<Item>(ROWS);
+		for (int i=0; i<ROWS; ++i) {
+			final Item item = new Item();
+			item.setItemid(String.format("B-%06d", i));
+			item.setProductid(productId);
+			item.setListprice(i / 100.0);
+			newItems.add(item);
+		}
+		new Bulk(ds).insertAll(newItems);
+		final long itemCount = Item.ALL.count();
+		System.err.println("benchmarking over "+ itemCount +" items");
+
+		final Query<Item> q = Item.ALL.where(Item.LISTPRICE.gt(10.0).and(Item.PRODUCTID.eq(productId)))
+				.orderBy(Item.ITEMID);
+		final Constructor<?> dbRowIterator = Class.forName("org.kered.dko.DBRowIterator")
+				.getDeclaredConstructor(Class.forName("org.kered.dko.DBQuery"));
+		dbRowIterator.setAccessible(true);
+		final Constructor<?> sqlContext = Class.forName("org.kered.dko.SqlContext")
+				.getDeclaredConstructor(Class.forName("org.kered.dko.DBQuery"));
+		sqlContext.setAccessible(true);
+		final Method getSQL = dbRowIterator.getDeclaringClass()
+				.getDeclaredMethod("getSQL", sqlContext.getDeclaringClass());
+		getSQL.setAccessible(true);
+		final Benchmark sqlGeneration = new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				for (int i=0; i<10000; ++i) {
+					// a fresh query each time, as a cached iterator would skip the work
+					final Query<Item> q2 = Item.ALL.where(Item.LISTPRICE.gt((double) i)
+							.and(Item.PRODUCTID.eq(productId))).orderBy(Item.ITEMID);
+					getSQL.invoke(dbRowIterator.newInstance(q2), sqlContext.newInstance(q2));
+				}
+				return 10000;
+			}
+		};
+		// with the sql cache off, so the sql is really generated every time
+		final Undoer noSqlCache = Context.getThreadContext().setSqlCacheSize(0);
+		try {
+			time("sqlGeneration", sqlGeneration);
+		} finally {
+			noSqlCache.undo();
+		}
+		time("sqlGenerationCached", sqlGeneration);
+
+		time("rowDecoding", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				for (final Object[] row : Item.ALL.asIterableOfObjectArrays()) {
+					if (row != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		time("objectAssembly", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				for (final Item item : Item.ALL) {
+					if (item != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		time("objectAssemblyWithFK", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				for (final Item item : Item.ALL.with(Item.FK_PRODUCTID_PRODUCT, Product.FK_CATEGORY)) {
+					if (item.getProductidFK().getCategoryFK() != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		time("filteredQuery", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				return q.asList().size();
+			}
+		});
+
+		final Bulk bulk = new Bulk(ds);
+		time("bulkUpdateAll", new Benchmark() {
+			int run = 0;
+			@Override
+			public long run() throws Exception {
+				++run;
+				for (final Item item : newItems) item.setAttr1("run "+ run);
+				return bulk.updateAll(newItems);
+			}
+		});
+
+		time("bulkDeleteAndInsertAll", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				bulk.deleteAll(newItems);
+				return bulk.insertAll(newItems);
+			}
+		});
+
+		final Condition on = Item.PRODUCTID.eq(Product.PRODUCTID);
+		time("localJoin", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				for (final Join<Item, Product> j : Item.ALL.toMemory().leftJoin(Product.class, on)) {
+					if (j.r != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		final Class<?> joinType = Class.forName("org.kered.dko.Constants$JOIN_TYPE");
+		final Constructor<?> softJoin = Class.forName("org.kered.dko.SoftJoin").getDeclaredConstructor(
+				joinType, Class.class, Class.class, Class.class, Condition.class);
+		softJoin.setAccessible(true);
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final Object left = Enum.valueOf((Class<Enum>) joinType, "LEFT");
+		time("softJoin", new Benchmark() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				final Query<Join<Category, Product>> join = (Query<Join<Category, Product>>) softJoin.newInstance(
+						left, Join.class, Category.class, Product.class, Product.CATEGORY.eq(Category.CATID));
+				for (final Join<Category, Product> j : join) {
+					if (j.l != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		final List<Item> from = Item.ALL.asList();
+		Collections.sort(from);
+		final List<Item> to = new ArrayList<Item>(from.size());
+		for (int i=0; i<from.size(); ++i) {
+			final Item item = new Item(from.get(i));
+			if (i % 10 == 0) item.setAttr2("changed");
+			to.add(item);
+		}
+		time("diff", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				for (final RowChange<Item> change : Diff.diff(from, to)) {
+					if (change != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		time("snapshot", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				for (final Item item : Item.ALL.snapshot()) {
+					if (item != null) ++c;
+				}
+				return c;
+			}
+		});
+
+		time("columnarSnapshot", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				final Iterable<Item> snapshot = Item.ALL.columnarSnapshot();
+				try {
+					for (final Item item : snapshot) {
+						if (item != null) ++c;
+					}
+				} finally {
+					((Closeable) snapshot).close();
+				}
+				return c;
+			}
+		});
+
+		final File csv = File.createTempFile("dko_benchmark_", ".csv");
+		csv.deleteOnExit();
+		time("csvWrite", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				CSV.write(Item.ALL, csv);
+				return itemCount;
+			}
+		});
+
+		// its own input, so it can be run without csvWrite
+		final File csvIn = File.createTempFile("dko_benchmark_in_", ".csv");
+		csvIn.deleteOnExit();
+		CSV.write(Item.ALL, csvIn);
+		time("csvRead", new Benchmark() {
+			@Override
+			public long run() throws Exception {
+				long c = 0;
+				for (final Item item : CSV.read(Item.class, csvIn)) {
+					if (item != null) ++c;
+				}
+				return c;
+			}
+		});
+	}
+
+	private void time(final String name, final Benchmark b) throws Exception {
+		if (!only.isEmpty() && !only.contains(name)) return;
+		long ops = 0;
+		for (int i=0; i<WARMUP_RUNS; ++i) b.run();
+		final long[] runs = new long[RUNS];
+		for (int i=0; i<RUNS; ++i) {
+			final long start = System.nanoTime();
+			ops = b.run();
+			runs[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(runs);
+		final double median = runs[RUNS/2] / 1e6;
+		final double best = runs[0] / 1e6;
+		System.err.println(String.format("%-24s median %9.2fms  best %9.2fms  %12.0f ops/sec",
+				name, median, best, ops / (median / 1000)));
+	}
+
+}
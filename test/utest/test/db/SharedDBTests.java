@@ -4,18 +4,24 @@ import static org.kered.dko.SQLFunction.CONCAT;
 import static org.kered.dko.SQLFunction.DATEADD;
 import static org.kered.dko.SQLFunction.COUNT;
 
+import java.io.Closeable;
 import java.io.File;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -34,6 +40,7 @@ import org.kered.dko.Context;
 import org.kered.dko.Context.Undoer;
 import org.kered.dko.Diff;
 import org.kered.dko.Diff.RowChange;
+import org.kered.dko.Expression;
 import org.kered.dko.Field;
 import org.kered.dko.Field.Tag;
 import org.kered.dko.Join;
@@ -41,6 +48,8 @@ import org.kered.dko.Query;
 import org.kered.dko.QueryFactory;
 import org.kered.dko.Table;
 import org.kered.dko.datasource.ConnectionCountingDataSource;
+import org.kered.dko.datasource.ConnectionPoolingDataSource;
+import org.kered.dko.datasource.UnClosableConnection;
 import org.kered.dko.unittest.nosco_test_jpetstore.Account;
 import org.kered.dko.unittest.nosco_test_jpetstore.Category;
 import org.kered.dko.unittest.nosco_test_jpetstore.Inventory;
@@ -412,17 +421,26 @@ public class SharedDBTests extends TestCase {
 
     public void testWriteCSV() throws Exception {
 		printTestName();
-    	CSV.write(Item.ALL, new java.io.File("bin/items.csv"));
+    	final File f = File.createTempFile("dko_items_", ".csv");
+    	try {
+    		CSV.write(Item.ALL, f);
+    	} finally {
+    		f.delete();
+    	}
     }
 
     public void testReadCSV() throws Exception {
 		printTestName();
     	final List<Item> as = Item.ALL.asList();
-    	final File f = new File("bin/items.csv");
-    	CSV.write(as, f);
+    	final File f = File.createTempFile("dko_items_", ".csv");
     	final List<Item> bs = new ArrayList<Item>();
-    	for (final Item x : CSV.read(Item.class, f)) {
-    		bs.add(x);
+    	try {
+    		CSV.write(as, f);
+    		for (final Item x : CSV.read(Item.class, f)) {
+    			bs.add(x);
+    		}
+    	} finally {
+    		f.delete();
     	}
     	assertEquals(as.size(), bs.size());
     	Collections.sort(as);
@@ -1179,4 +1197,704 @@ public class SharedDBTests extends TestCase {
 		}
 	}
 
+	public void testStatementCacheInTransaction() throws SQLException {
+		printTestName();
+		// more rows than fit in one batch, so a loop over them keeps its statement open
+		final String productId = Item.ALL.first().getProductid();
+		final List<Item> items = new ArrayList<Item>();
+		for (int i=0; i<2100; ++i) {
+			items.add(new Item().setItemid(String.format("test-%04d", i)).setProductid(productId));
+		}
+		new Bulk(ds).insertAll(items);
+		final PrepareCountingDS pcds = new PrepareCountingDS(ds);
+		final Undoer undoer = Context.getThreadContext().setStatementCacheSize(2);
+		Context.getThreadContext().startTransaction(pcds);
+		try {
+			for (final String id : new String[] {"EST-1", "EST-10", "EST-1", "EST-20"}) {
+				assertEquals(id, Item.ALL.use(pcds).get(Item.ITEMID.eq(id)).getItemid());
+				assertEquals(1, Supplier.ALL.use(pcds).where(Supplier.SUPPID.eq(1)).asList().size());
+			}
+			// each sql is prepared once and reused after that
+			assertEquals(2, pcds.prepared);
+			// the same sql open twice at once must not share a statement
+			final Query<Item> q = Item.ALL.use(pcds).where(Item.ITEMID.like("test-%"));
+			int count = 0;
+			for (final Item outer : q) {
+				assertNotNull(outer.getItemid());
+				if (count++ == 0) assertEquals(items.size(), q.asList().size());
+			}
+			assertEquals(items.size(), count);
+			assertEquals(4, pcds.prepared);
+			// once they're both done one of them is kept for next time
+			assertEquals(items.size(), q.asList().size());
+			assertEquals(4, pcds.prepared);
+			// a full cache evicts the least recently used statement
+			Context.getThreadContext().setStatementCacheSize(1);
+			for (final String id : new String[] {"EST-1", "EST-10"}) {
+				assertEquals(id, Item.ALL.use(pcds).get(Item.ITEMID.eq(id)).getItemid());
+				assertEquals(1, Supplier.ALL.use(pcds).where(Supplier.SUPPID.eq(1)).asList().size());
+			}
+			assertEquals(8, pcds.prepared);
+		} finally {
+			Context.getThreadContext().commitTransaction(pcds);
+			undoer.undo();
+			Item.ALL.where(Item.ITEMID.like("test-%")).delete();
+		}
+	}
+
+	/**
+	 * Counts the statements prepared on its connections.
+	 */
+	private static class PrepareCountingDS extends PassThruDS {
+
+		volatile int prepared = 0;
+
+		PrepareCountingDS(final DataSource ds) {
+			super(ds);
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			final Connection conn = super.getConnection();
+			return (Connection) Proxy.newProxyInstance(SharedDBTests.class.getClassLoader(),
+					new Class<?>[] {Connection.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+					if ("prepareStatement".equals(method.getName())) ++prepared;
+					return SlowBatchDS.call(conn, method, args);
+				}
+			});
+		}
+	}
+
+	public void testSqlCacheByShape() throws SQLException {
+		printTestName();
+		// same shapes with different values, plus shapes that only differ in ways that change the sql
+		for (final String id : new String[] {"EST-1", "EST-10", "EST-1"}) {
+			assertEquals(id, Item.ALL.get(Item.ITEMID.eq(id)).getItemid());
+			assertEquals(id, Item.ALL.where(Item.ITEMID.eq(id)).with(Item.FK_PRODUCTID_PRODUCT).first().getItemid());
+		}
+		assertEquals(1, Item.ALL.where(Item.ITEMID.in("EST-1")).count());
+		assertEquals(2, Item.ALL.where(Item.ITEMID.in("EST-1", "EST-10")).asList().size());
+		assertEquals(1, Item.ALL.where(Item.ITEMID.in("EST-1")).asList().size());
+		assertEquals(1, Item.ALL.where(Item.ITEMID.eq("EST-1").or(Item.ITEMID.eq("NONE"))).asList().size());
+		assertEquals(2, Item.ALL.where(Item.ITEMID.eq("EST-1").or(Item.ITEMID.eq("EST-10"))).asList().size());
+		assertEquals(0, Item.ALL.where(Item.ITEMID.eq("EST-1").and(Item.ITEMID.eq("EST-10"))).asList().size());
+		assertEquals(Item.ALL.count(), Item.ALL.where(Item.ITEMID.isNotNull()).asList().size());
+		assertEquals(0, Item.ALL.where(Item.ITEMID.isNull()).asList().size());
+		final List<Item> items = Item.ALL.orderBy(Item.ITEMID.desc()).limit(2).asList();
+		assertEquals(2, items.size());
+		assertEquals(items.get(1).getItemid(), Item.ALL.orderBy(Item.ITEMID.desc()).limit(2).asList().get(1).getItemid());
+		assertEquals(3, Item.ALL.orderBy(Item.ITEMID.desc()).limit(3).asList().size());
+		// the same fields in a different order select the columns in a different order
+		final Item a = Item.ALL.onlyFields(Item.ITEMID, Item.PRODUCTID).where(Item.ITEMID.eq("EST-1")).first();
+		final Item b = Item.ALL.onlyFields(Item.PRODUCTID, Item.ITEMID).where(Item.ITEMID.eq("EST-1")).first();
+		assertEquals("EST-1", a.getItemid());
+		assertEquals("EST-1", b.getItemid());
+		assertEquals(a.getProductid(), b.getProductid());
+	}
+
+	public void testReusedRowArrays() throws SQLException {
+		printTestName();
+		final Set<String> expected = new HashSet<String>();
+		for (final Item item : Item.ALL) expected.add(item.getItemid());
+		final int idIndex = Item.ALL.getSelectFields().indexOf(Item.ITEMID);
+		final Set<String> ids = new HashSet<String>();
+		for (final Object[] row : Item.ALL.asIterableOfObjectArrays(true)) {
+			ids.add((String) row[idIndex]);
+		}
+		assertEquals(expected, ids);
+	}
+
+	public void testFetchSize() throws SQLException {
+		printTestName();
+		final long count = Item.ALL.count();
+		assertEquals(count, Item.ALL.setFetchSize(3).asList().size());
+		final Undoer undoer = Context.getThreadContext().setFetchSize(5);
+		try {
+			assertEquals(count, Item.ALL.asList().size());
+			assertEquals(count, Item.ALL.with(Item.FK_PRODUCTID_PRODUCT).asList().size());
+		} finally {
+			undoer.undo();
+		}
+	}
+
+	public void testBackgroundPrefetch() throws SQLException {
+		printTestName();
+		final List<Item> expected = Item.ALL.orderBy(Item.ITEMID).asList();
+		final Undoer undoer = Context.getThreadContext().enableBackgroundPrefetch(true);
+		try {
+			final List<Item> items = Item.ALL.orderBy(Item.ITEMID).asList();
+			assertEquals(expected.size(), items.size());
+			for (int i=0; i<items.size(); ++i) {
+				assertEquals(expected.get(i).getItemid(), items.get(i).getItemid());
+			}
+			assertEquals(expected.size(), Item.ALL.with(Item.FK_PRODUCTID_PRODUCT).asList().size());
+			// closing early has to stop the background reader
+			assertEquals(1, Item.ALL.limit(1).asList().size());
+			int count = 0;
+			for (final Object[] row : Item.ALL.asIterableOfObjectArrays()) {
+				assertNotNull(row);
+				++count;
+			}
+			assertEquals(expected.size(), count);
+		} finally {
+			undoer.undo();
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	public void testGeneratedFactory() throws SQLException {
+		printTestName();
+		// Product.CATEGORY shares its index with Item.ATTR1, and must not be mistaken for it
+		final Expression.Select[] fields = {Item.SUPPLIER, Product.CATEGORY, Item.ITEMID, Item.LISTPRICE};
+		final Object[] values = {3, "FISH", "EST-1", 16.5};
+		final Item item = Item.__NOSCO_FACTORY.newInstance(fields, values, 0, fields.length);
+		assertEquals("EST-1", item.getItemid());
+		assertEquals(Integer.valueOf(3), item.getSupplier());
+		assertEquals(Double.valueOf(16.5), item.getListprice());
+		assertNull(item.getAttr1());
+		final Item fromDb = Item.ALL.where(Item.ITEMID.eq("EST-1")).getTheOnly();
+		assertEquals(fromDb.getListprice(), Item.ALL.onlyFields(Item.ITEMID, Item.LISTPRICE)
+				.where(Item.ITEMID.eq("EST-1")).getTheOnly().getListprice());
+	}
+
+	public void testBatchedDeferredLoading() throws SQLException {
+		printTestName();
+		final Map<String,Double> prices = new HashMap<String,Double>();
+		for (final Item item : Item.ALL) prices.put(item.getItemid(), item.getListprice());
+		final List<Item> items = Item.ALL.use(ccds).deferFields(Item.LISTPRICE).asList();
+		assertEquals(1, ccds.getCount());
+		for (final Item item : items) {
+			assertEquals(prices.get(item.getItemid()), item.getListprice());
+			assertFalse(item.dirty());
+		}
+		// the first lazy load fetched the column for all its siblings
+		assertEquals(2, ccds.getCount());
+	}
+
+	public void testBatchedFKLoading() throws SQLException {
+		printTestName();
+		final Map<String,String> names = new HashMap<String,String>();
+		for (final Item item : Item.ALL.with(Item.FK_PRODUCTID_PRODUCT)) {
+			names.put(item.getItemid(), item.getProductidFK().getName());
+		}
+		final Undoer u = Context.getVMContext().setDataSource(ccds);
+		try {
+			final List<Item> items = Item.ALL.asList();
+			for (final Item item : items) {
+				assertEquals(names.get(item.getItemid()), item.getProductidFK().getName());
+			}
+			// one query for the items, one for all their products
+			assertEquals(2, ccds.getCount());
+		} finally {
+			u.undo();
+		}
+		final Undoer off = Context.getThreadContext().enableBatchedLazyLoading(false);
+		try {
+			for (final Item item : Item.ALL) {
+				assertEquals(names.get(item.getItemid()), item.getProductidFK().getName());
+			}
+		} finally {
+			off.undo();
+		}
+	}
+
+	public void testConnectionPool() throws Exception {
+		printTestName();
+		final ConnectionPoolingDataSource pool = new ConnectionPoolingDataSource(ds, 2, 100);
+		try {
+			final long count = Item.ALL.count();
+			assertEquals(count, Item.ALL.use(pool).count());
+			assertEquals(count, Item.ALL.use(pool).asList().size());
+			assertEquals(0, pool.getActiveCount());
+			final Connection c1 = pool.getConnection();
+			final Connection c2 = pool.getConnection();
+			assertEquals(2, pool.getActiveCount());
+			try {
+				pool.getConnection();
+				fail("pool should be exhausted");
+			} catch (final SQLException e) {
+				assertEquals(1, pool.getTimeoutCount());
+			}
+			c1.close();
+			c1.close();
+			assertEquals(1, pool.getActiveCount());
+			assertEquals(1, pool.getIdleCount());
+			final Connection c3 = pool.getConnection();
+			assertEquals(2, pool.getCreatedCount());
+			c2.close();
+			c3.close();
+			assertEquals(0, pool.getActiveCount());
+			// a connection held longer than the max idle time still goes back into the pool
+			pool.setMaxIdleTime(50);
+			final long created = pool.getCreatedCount();
+			final Connection c4 = pool.getConnection();
+			Thread.sleep(100);
+			c4.close();
+			final Connection c5 = pool.getConnection();
+			assertSame(((UnClosableConnection) c4).getUnderlyingConnection(),
+					((UnClosableConnection) c5).getUnderlyingConnection());
+			assertEquals(created, pool.getCreatedCount());
+			c5.close();
+		} finally {
+			pool.close();
+		}
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(pool.getCreatedCount(), pool.getClosedCount());
+	}
+
+	public void testBulkMultiRowInsert() throws SQLException {
+		printTestName();
+		final String productId = Product.ALL.first().getProductid();
+		final Query<Item> them = Item.ALL.where(Item.ITEMID.like("test-%"));
+		them.delete();
+		final List<Item> items = new ArrayList<Item>();
+		// not a multiple of the rows per statement, so the tail goes in one row at a time
+		for (int i=0; i<150; ++i) {
+			items.add(new Item().setItemid("test-"+ i).setProductid(productId).setAttr1("a"+ i));
+		}
+		final Bulk bulk = new Bulk(ds).setMultiRowInsert(true);
+		assertEquals(items.size(), bulk.insertAll(items));
+		assertEquals(items.size(), them.count());
+		assertEquals("a42", them.where(Item.ITEMID.eq("test-42")).first().getAttr1());
+		// rejected rows are still found one at a time
+		final List<Item> more = new ArrayList<Item>(items.subList(0, 70));
+		for (final Item item : more) item.setAttr1("b");
+		assertEquals(more.size(), bulk.insertOrUpdateAll(more));
+		assertEquals("b", them.where(Item.ITEMID.eq("test-42")).first().getAttr1());
+		assertEquals(items.size(), them.count());
+		them.delete();
+	}
+
+	public void testBulkParallel() throws SQLException {
+		printTestName();
+		final String productId = Product.ALL.first().getProductid();
+		final Query<Item> them = Item.ALL.where(Item.ITEMID.like("test-%"));
+		them.delete();
+		final List<Item> items = new ArrayList<Item>();
+		for (int i=0; i<500; ++i) {
+			items.add(new Item().setItemid("test-"+ i).setProductid(productId));
+		}
+		final Bulk bulk = new Bulk(ds, 16).setParallelism(4);
+		final long[] lastStatus = {0};
+		assertEquals(items.size(), bulk.insertAll(items, new Bulk.StatusCallback() {
+			@Override
+			public void call(final long count) {
+				assertTrue(count >= lastStatus[0]);
+				lastStatus[0] = count;
+			}
+		}, 0));
+		assertEquals(items.size(), them.count());
+		for (final Item item : items) item.setAttr1("parallel");
+		assertEquals(items.size(), bulk.updateAll(items));
+		assertEquals(items.size(), them.where(Item.ATTR1.eq("parallel")).count());
+		assertEquals(items.size(), bulk.deleteAll(items));
+		assertEquals(0, them.count());
+	}
+
+	public void testBulkParallelFailure() throws Exception {
+		printTestName();
+		final String productId = Product.ALL.first().getProductid();
+		final Query<Item> them = Item.ALL.where(Item.ITEMID.like("test-%"));
+		them.delete();
+		new Item().setItemid("test-250").setProductid(productId).insert();
+		final List<Item> items = new ArrayList<Item>();
+		for (int i=0; i<500; ++i) {
+			items.add(new Item().setItemid("test-"+ i).setProductid(productId));
+		}
+		// one writer fails on the duplicate key - the others have to stop too
+		final Throwable[] thrown = {null};
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					new Bulk(ds, 16).setParallelism(2).insertAll(items);
+				} catch (final Throwable e) {
+					thrown[0] = e;
+				}
+			}
+		};
+		t.start();
+		t.join(30 * 1000);
+		assertFalse("parallel insert hung after a writer failed", t.isAlive());
+		assertTrue(thrown[0] instanceof SQLException);
+		them.delete();
+	}
+
+	public void testBulkNativeUpsert() throws SQLException {
+		printTestName();
+		final Query<Category> them = Category.ALL.where(Category.CATID.like("test-%"));
+		them.delete();
+		new Category().setCatid("test-1").setName("old1").insert();
+		new Category().setCatid("test-2").setName("old2").insert();
+		final List<Category> categories = them.orderBy(Category.CATID).asList();
+		categories.get(0).setName("new1");
+		categories.get(1).setDescn("descn2");
+		categories.add(new Category().setCatid("test-3").setName("new3"));
+		final Bulk bulk = new Bulk(ds).setNativeUpsert(true);
+		assertEquals(3, bulk.insertOrUpdateAll(categories));
+		assertEquals(3, them.count());
+		assertEquals("new1", them.where(Category.CATID.eq("test-1")).first().getName());
+		final Category c2 = them.where(Category.CATID.eq("test-2")).first();
+		assertEquals("old2", c2.getName());
+		assertEquals("descn2", c2.getDescn());
+		assertEquals("new3", them.where(Category.CATID.eq("test-3")).first().getName());
+		// an existing row with nothing to update still counts
+		assertEquals(1, bulk.insertOrUpdateAll(Collections.singletonList(new Category().setCatid("test-1"))));
+		assertEquals("new1", them.where(Category.CATID.eq("test-1")).first().getName());
+		them.delete();
+	}
+
+	public void testBulkRejectsInBatch() throws SQLException {
+		printTestName();
+		final String productId = Product.ALL.first().getProductid();
+		final Query<Item> them = Item.ALL.where(Item.ITEMID.like("test-%"));
+		them.delete();
+		final int[] existing = {0, 3, 4, 40, 63};
+		for (final int i : existing) {
+			new Item().setItemid("test-"+ i).setProductid(productId).setAttr1("old").insert();
+		}
+		final List<Item> items = new ArrayList<Item>();
+		for (int i=0; i<64; ++i) {
+			items.add(new Item().setItemid("test-"+ i).setProductid(productId).setAttr1("new"));
+		}
+		final Bulk bulk = new Bulk(ds, 64);
+		assertEquals(items.size(), bulk.insertOrUpdateAll(items));
+		assertEquals(items.size(), them.count());
+		assertEquals(items.size(), them.where(Item.ATTR1.eq("new")).count());
+		them.delete();
+	}
+
+	public void testBulkAdaptiveBatchSizeAndRateLimit() throws SQLException {
+		printTestName();
+		final String productId = Product.ALL.first().getProductid();
+		final Query<Item> them = Item.ALL.where(Item.ITEMID.like("test-%"));
+		them.delete();
+		final List<Item> items = new ArrayList<Item>();
+		for (int i=0; i<300; ++i) {
+			items.add(new Item().setItemid("test-"+ i).setProductid(productId));
+		}
+		final SlowBatchDS slow = new SlowBatchDS(ds);
+		final Bulk bulk = new Bulk(slow, 4).setAdaptiveBatchSize(256).setRateLimit(1000);
+		final long start = System.currentTimeMillis();
+		assertEquals(items.size(), bulk.insertAll(items));
+		// 300 rows at 1000/sec, less the 100 row burst
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertEquals(items.size(), them.count());
+		// the batches grew past the initial 4 rows, but not past the max
+		assertTrue(slow.largestBatch > 4);
+		assertTrue(slow.largestBatch <= 256);
+		them.delete();
+		// an interruption stops the load, rather than turning the rate limit off
+		Thread.currentThread().interrupt();
+		final long inserted = new Bulk(ds).setRateLimit(1000).insertAll(items);
+		assertTrue(Thread.interrupted());
+		assertTrue(inserted < items.size());
+		assertEquals(inserted, them.count());
+		them.delete();
+	}
+
+	/**
+	 * Records the largest batch executed, and adds a fixed cost to every batch
+	 * (so bigger batches are always faster).
+	 */
+	private static class SlowBatchDS extends PassThruDS {
+
+		volatile int largestBatch = 0;
+
+		SlowBatchDS(final DataSource ds) {
+			super(ds);
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			final Connection conn = super.getConnection();
+			return (Connection) Proxy.newProxyInstance(SharedDBTests.class.getClassLoader(),
+					new Class<?>[] {Connection.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+					final Object ret = call(conn, method, args);
+					return ret instanceof PreparedStatement ? slow((PreparedStatement) ret) : ret;
+				}
+			});
+		}
+
+		private PreparedStatement slow(final PreparedStatement ps) {
+			return (PreparedStatement) Proxy.newProxyInstance(SharedDBTests.class.getClassLoader(),
+					new Class<?>[] {PreparedStatement.class}, new InvocationHandler() {
+				private int rows = 0;
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+					if ("addBatch".equals(method.getName())) ++rows;
+					if ("executeBatch".equals(method.getName())) {
+						largestBatch = Math.max(largestBatch, rows);
+						rows = 0;
+						Thread.sleep(2);
+					}
+					return call(ps, method, args);
+				}
+			});
+		}
+
+		private static Object call(final Object o, final Method method, final Object[] args) throws Throwable {
+			try {
+				return method.invoke(o, args);
+			} catch (final InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	public void testUnsortedDiff() throws Exception {
+		printTestName();
+		final List<Item> from = Item.ALL.asList();
+		final List<Item> to = new ArrayList<Item>();
+		for (int i=1; i<from.size(); ++i) {
+			final Item item = new Item(from.get(i));
+			if (i % 3 == 0) item.setAttr2("changed");
+			to.add(item);
+		}
+		to.add(new Item(from.get(0)).setItemid("test-new"));
+		Collections.sort(from);
+		Collections.sort(to);
+		final Set<String> expected = new HashSet<String>();
+		for (final RowChange<Item> change : Diff.diffActualized(from, to)) expected.add(change.toString());
+		assertEquals(2 + (from.size()-1) / 3, expected.size());
+		Collections.shuffle(from);
+		Collections.shuffle(to);
+		// in memory, spilled to disk (and re-partitioned), and spilled and diffed in parallel
+		final File tmpDir = File.createTempFile("dko_diff_test_", "");
+		tmpDir.delete();
+		tmpDir.mkdir();
+		try {
+			for (final int[] budget : new int[][] {{1000, 1}, {1, 1}, {1, 4}}) {
+				final Set<String> actual = new HashSet<String>();
+				for (final RowChange<Item> change : Diff.unsortedDiff(from, to, budget[0], budget[1], tmpDir)) {
+					assertTrue(actual.add(change.toString()));
+				}
+				assertEquals(expected, actual);
+				// the spill files are gone once they've been read
+				assertEquals(0, tmpDir.list().length);
+			}
+			// or once the iterator is closed, if it isn't read to the end
+			final Iterator<RowChange<Item>> it = Diff.unsortedDiff(from, to, 1, 1, tmpDir).iterator();
+			assertTrue(it.hasNext());
+			assertTrue(tmpDir.list().length > 0);
+			((Closeable) it).close();
+			assertEquals(0, tmpDir.list().length);
+			assertFalse(it.hasNext());
+		} finally {
+			for (final File f : tmpDir.listFiles()) f.delete();
+			tmpDir.delete();
+		}
+	}
+
+	public void testReadCSVQuoting() throws Exception {
+		printTestName();
+		final List<Item> as = new ArrayList<Item>();
+		for (final Item item : Item.ALL) {
+			as.add(new Item(item).setAttr1("a,\"b\"\r\nc").setAttr2(""));
+		}
+		final File f = File.createTempFile("dko_items_quoted_", ".csv");
+		try {
+			assertEquals(as.size(), CSV.write(as, f));
+			for (final int threads : new int[] {1, 4}) {
+				final List<Item> bs = new ArrayList<Item>();
+				for (final Item x : CSV.read(Item.class, f, threads)) bs.add(x);
+				assertEquals(as.size(), bs.size());
+				Collections.sort(as);
+				Collections.sort(bs);
+				assertEquals(0, Diff.diffActualized(as, bs).size());
+			}
+		} finally {
+			f.delete();
+		}
+		final String csv = "ITEMID,PRODUCTID,LISTPRICE,ATTR1\r\n"
+				+ "test-1,p1, 1.5 ,\"multi\nline\"\r\n"
+				+ "\r\n"
+				+ "test-2,p2,,\"\"";
+		final List<Item> cs = new ArrayList<Item>();
+		for (final Item x : CSV.read(Item.class, new java.io.StringReader(csv))) cs.add(x);
+		assertEquals(2, cs.size());
+		assertEquals("test-1", cs.get(0).getItemid());
+		assertEquals(1.5, cs.get(0).getListprice());
+		assertEquals("multi\nline", cs.get(0).getAttr1());
+		assertNull(cs.get(1).getListprice());
+		assertEquals("", cs.get(1).getAttr1());
+	}
+
+	public void testBulkInsertAllFromCSV() throws SQLException {
+		printTestName();
+		final String productId = Product.ALL.first().getProductid();
+		final Query<Item> them = Item.ALL.where(Item.ITEMID.like("test-%"));
+		them.delete();
+		new Item().setItemid("test-dup").setProductid(productId).insert();
+		final String csv = "ITEMID,PRODUCTID,LISTPRICE,ATTR1,NOT_A_COLUMN\n"
+				+ "test-1,"+ productId +",1.5,\"a,\nb\",x\n"
+				+ "test-2,"+ productId +",abc,,x\n"
+				+ "test-3,"+ productId +",,,x\n"
+				+ "test-dup,"+ productId +",2,,x\n"
+				+ "test-4,"+ productId +",4,,x\n";
+		for (final int threads : new int[] {1, 2}) {
+			them.where(Item.ITEMID.neq("test-dup")).delete();
+			final List<Long> rejected = new ArrayList<Long>();
+			final Bulk bulk = new Bulk(ds, 2).setParallelism(threads);
+			final long count = bulk.insertAllFromCSV(Item.class, new java.io.StringReader(csv),
+					new Bulk.CSVRejectCallback() {
+				@Override
+				public void reject(final long line, final Exception e) {
+					rejected.add(line);
+				}
+			});
+			assertEquals(3, count);
+			Collections.sort(rejected);
+			// (test-1 spans two lines)
+			assertEquals(java.util.Arrays.asList(4L, 6L), rejected);
+			assertEquals(4, them.count());
+			assertEquals("a,\nb", them.where(Item.ITEMID.eq("test-1")).first().getAttr1());
+			assertNull(them.where(Item.ITEMID.eq("test-3")).first().getListprice());
+		}
+		// without a reject callback the first bad row stops every writer
+		them.where(Item.ITEMID.neq("test-dup")).delete();
+		final String dups = "ITEMID,PRODUCTID\n"+ "test-dup,"+ productId +"\n"+ "test-5,"+ productId +"\n";
+		try {
+			new Bulk(ds, 1).setParallelism(2).insertAllFromCSV(Item.class, new java.io.StringReader(dups), null);
+			fail("expected the duplicate key to fail the load");
+		} catch (final SQLException e) {
+			// expected
+		}
+		them.delete();
+	}
+
+	public void testColumnarSnapshot() throws Exception {
+		printTestName();
+		final List<Item> items = Item.ALL.orderBy(Item.ITEMID).asList();
+		final Iterable<Item> snapshot = Item.ALL.orderBy(Item.ITEMID).columnarSnapshot();
+		for (int i=0; i<2; ++i) {
+			final List<Item> items2 = new ArrayList<Item>();
+			for (final Item item : snapshot) items2.add(item);
+			assertEquals(items.size(), items2.size());
+			assertEquals(0, Diff.diffActualized(items, items2).size());
+		}
+		((Closeable) snapshot).close();
+		final File tmpDir = File.createTempFile("dko_snapshot_test_", "");
+		tmpDir.delete();
+		tmpDir.mkdir();
+		try {
+			final Iterable<Product> snapshot2 = Product.ALL.columnarSnapshot(tmpDir);
+			final List<Product> products = new ArrayList<Product>();
+			for (final Product product : snapshot2) products.add(product);
+			assertEquals(Product.ALL.count(), products.size());
+			assertEquals(1, tmpDir.list().length);
+			// closing deletes the temp file
+			((Closeable) snapshot2).close();
+			assertEquals(0, tmpDir.list().length);
+		} finally {
+			for (final File f : tmpDir.listFiles()) f.delete();
+			tmpDir.delete();
+		}
+	}
+
+	public void testInStrategies() throws SQLException {
+		printTestName();
+		// inline, then a bound array (or a temp table) for a set too big to inline
+		final List<Item> items = Item.ALL.orderBy(Item.ITEMID).asList();
+		final List<Item> some = new ArrayList<Item>(items.subList(0, 3));
+		assertEquals(3, Item.ALL.in(some).count());
+		// still inline - no temp table
+		for (int i=0; i<300; ++i) some.add(new Item().setItemid("none-"+ i));
+		assertEquals(3, Item.ALL.in(some).count());
+		for (int i=300; i<2000; ++i) some.add(new Item().setItemid("none-"+ i));
+		some.add(items.get(0));
+		final Set<String> ids = new HashSet<String>();
+		for (final Item item : Item.ALL.in(some)) ids.add(item.getItemid());
+		assertEquals(3, ids.size());
+		assertTrue(ids.contains(items.get(2).getItemid()));
+		assertEquals(0, Item.ALL.in(new ArrayList<Item>()).count());
+
+		// composite keys:  inline, then a pooled temp table
+		final Query<Orderstatus> them = Orderstatus.ALL.where(Orderstatus.ORDERID.gt(900000));
+		them.delete();
+		final List<Orderstatus> statuses = new ArrayList<Orderstatus>();
+		for (int i=0; i<3; ++i) {
+			statuses.add(new Orderstatus().setOrderid(900001).setLinenum(i)
+					.setTimestamp(new java.sql.Date(System.currentTimeMillis())).setStatus("P"));
+		}
+		new Bulk(ds).insertAll(statuses);
+		final List<Orderstatus> keys = new ArrayList<Orderstatus>(statuses.subList(0, 2));
+		assertEquals(2, Orderstatus.ALL.in(keys).count());
+		for (int i=0; i<200; ++i) keys.add(new Orderstatus().setOrderid(900002).setLinenum(i));
+		final Query<Orderstatus> q = Orderstatus.ALL.in(keys);
+		for (int i=0; i<2; ++i) {
+			assertEquals(2, q.count());
+			assertEquals(2, q.asList().size());
+		}
+		// the same table, used twice at once
+		int pairs = 0;
+		for (final Orderstatus a : q) {
+			for (final Orderstatus b : Orderstatus.ALL.in(keys)) {
+				if (a.equals(b)) ++pairs;
+			}
+		}
+		assertEquals(2, pairs);
+		them.delete();
+	}
+
+	public void testInMemoryIndexes() throws SQLException {
+		printTestName();
+		final Query<Item> mem = Item.ALL.toMemory();
+		final List<Item> items = Item.ALL.orderBy(Item.ITEMID).asList();
+		// the second use of each field is served from an index
+		for (int run=0; run<2; ++run) {
+			for (final Item item : items) {
+				assertEquals(item, mem.get(Item.ITEMID.eq(item.getItemid())));
+				assertEquals(Item.ALL.where(Item.PRODUCTID.eq(item.getProductid())).count(),
+						mem.where(Item.PRODUCTID.eq(item.getProductid())).count());
+			}
+			assertEquals(2, mem.where(Item.ITEMID.in("EST-1", "EST-10", "nope")).count());
+			assertEquals(Item.ALL.where(Item.LISTPRICE.gt(20.0)).count(), mem.where(Item.LISTPRICE.gt(20.0)).count());
+			assertEquals(Item.ALL.where(Item.LISTPRICE.lte(20.0), Item.PRODUCTID.eq("FI-SW-01")).count(),
+					mem.where(Item.LISTPRICE.lte(20.0), Item.PRODUCTID.eq("FI-SW-01")).count());
+			assertEquals(items, mem.orderBy(Item.ITEMID).asList());
+			final List<Item> reversed = new ArrayList<Item>(items);
+			Collections.reverse(reversed);
+			assertEquals(reversed, mem.orderBy(Item.ITEMID.desc()).asList());
+			assertEquals(Item.ALL.mapBy(Item.PRODUCTID).keySet(), mem.mapBy(Item.PRODUCTID).keySet());
+			assertEquals(Item.ALL.mapBy(Item.ITEMID), mem.mapBy(Item.ITEMID));
+		}
+		// a row changed after indexing isn't returned for its old value, and toMemory()
+		// indexes the new one
+		final Item changed = mem.get(Item.PRODUCTID.eq("FI-SW-01"), Item.ITEMID.eq("EST-1"));
+		final long before = mem.where(Item.PRODUCTID.eq("FI-SW-01")).count();
+		changed.setProductid("changed");
+		assertEquals(before - 1, mem.where(Item.PRODUCTID.eq("FI-SW-01")).count());
+		assertEquals(0, mem.where(Item.PRODUCTID.eq("changed")).count());
+		final Query<Item> mem2 = mem.toMemory();
+		for (int run=0; run<2; ++run) {
+			assertEquals(changed, mem2.get(Item.PRODUCTID.eq("changed")));
+			assertEquals(before - 1, mem2.where(Item.PRODUCTID.eq("FI-SW-01")).count());
+		}
+	}
+
+	public void testInMemoryConditions() throws SQLException {
+		printTestName();
+		final Query<Item> mem = Item.ALL.toMemory();
+		final List<Condition> conditions = new ArrayList<Condition>();
+		conditions.add(Item.PRODUCTID.eq("FI-SW-01").or(Item.LISTPRICE.gt(50.0)));
+		conditions.add(Item.PRODUCTID.eq("FI-SW-01").not());
+		conditions.add(Item.ITEMID.in("EST-1", "EST-2", "EST-3").and(Item.LISTPRICE.lt(17.0)));
+		conditions.add(Item.ITEMID.notIn("EST-1", "EST-2"));
+		conditions.add(Item.ATTR2.isNull().and(Item.SUPPLIER.eq(1)));
+		conditions.add(Item.ATTR1.isNotNull().or(Item.ITEMID.eq("EST-1")));
+		conditions.add(Item.LISTPRICE.gte(Item.UNITCOST).and(Item.LISTPRICE.lte(20.0)));
+		for (final Condition c : conditions) {
+			final List<Item> expected = Item.ALL.where(c).orderBy(Item.ITEMID).asList();
+			assertEquals(c.toString(), expected, mem.where(c).orderBy(Item.ITEMID).asList());
+			// and through a filtering query (over a join)
+			assertEquals(c.toString(), expected.size(), Item.ALL.toMemory().leftJoin(Product.class,
+					Item.PRODUCTID.eq(Product.PRODUCTID)).where(c).count());
+		}
+	}
+
 }
@@ -4,11 +4,27 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
 
 import org.hsqldb.jdbc.JDBCDataSource;
+import org.kered.dko.Bulk;
 import org.kered.dko.Context;
+import org.kered.dko.Context.Undoer;
+import org.kered.dko.Diff;
+import org.kered.dko.Diff.RowChange;
 import org.kered.dko.datasource.ConnectionCountingDataSource;
+import org.kered.dko.datasource.MirroredDataSource;
+import org.kered.dko.datasource.MirroredDataSource.CircuitState;
+import org.kered.dko.datasource.MirroredDataSource.Mirror;
+import org.kered.dko.datasource.MirroredDataSource.Strategy;
+import org.kered.dko.unittest.nosco_test_jpetstore.Item;
+import org.kered.dko.unittest.nosco_test_jpetstore.Supplier;
 
 public class TestHSQLDB extends SharedDBTests {
 
@@ -49,6 +65,173 @@ public class TestHSQLDB extends SharedDBTests {
 		super.tearDown();
 	}
 
+	public void testChecksumDiff() throws SQLException {
+		printTestName();
+		final String productId = Item.ALL.first().getProductid();
+		final List<Item> items = new ArrayList<Item>();
+		for (int i=0; i<3000; ++i) {
+			items.add(new Item().setItemid(String.format("test-%04d", i)).setProductid(productId));
+		}
+		new Bulk(ds).insertAll(items);
+		// a copy of the item table in another schema, read through another DataSource
+		final DataSource copy = createPassThruDS();
+		final Connection conn = ds.getConnection();
+		final Statement stmt = conn.createStatement();
+		stmt.execute("create schema dko_copy authorization dba");
+		stmt.execute("create table dko_copy.item as (select * from item) with data");
+		conn.commit();
+		final Undoer u = Context.getVMContext().overrideSchema(copy, "PUBLIC", "DKO_COPY");
+		try {
+			assertFalse(Diff.checksumDiff(Item.class, ds, copy).iterator().hasNext());
+			Item.ALL.use(copy).where(Item.ITEMID.eq("test-1234")).set(Item.ATTR1, "changed").update();
+			Item.ALL.use(copy).where(Item.ITEMID.eq("test-2345")).delete();
+			new Item().setItemid("test-9999").setProductid(productId).insert(copy);
+			final List<RowChange<Item>> changes = new ArrayList<RowChange<Item>>();
+			for (final RowChange<Item> change : Diff.checksumDiff(Item.class, ds, copy)) changes.add(change);
+			assertEquals(3, changes.size());
+			assertEquals(Diff.diffActualized(Item.ALL.orderBy(Item.ITEMID),
+					Item.ALL.use(copy).orderBy(Item.ITEMID)).size(), changes.size());
+			// applying the diff makes them the same
+			new Bulk(ds).commitDiff(changes);
+			assertFalse(Diff.checksumDiff(Item.class, ds, copy).iterator().hasNext());
+		} finally {
+			u.undo();
+			stmt.execute("drop schema dko_copy cascade");
+			stmt.close();
+			conn.close();
+			Item.ALL.where(Item.ITEMID.like("test-%")).delete();
+		}
+	}
+
+	public void testChecksumDiffIntegerKeys() throws SQLException {
+		printTestName();
+		// keys spread over the whole int range, so the ranges are split arithmetically
+		final List<Supplier> suppliers = new ArrayList<Supplier>();
+		for (int i=0; i<3000; ++i) {
+			suppliers.add(new Supplier().setSuppid(Integer.MIN_VALUE + i * 1431655).setStatus("T"));
+		}
+		suppliers.add(new Supplier().setSuppid(Integer.MAX_VALUE).setStatus("T"));
+		new Bulk(ds).insertAll(suppliers);
+		final DataSource copy = createPassThruDS();
+		final Connection conn = ds.getConnection();
+		final Statement stmt = conn.createStatement();
+		stmt.execute("create schema dko_copy authorization dba");
+		stmt.execute("create table dko_copy.supplier as (select * from supplier) with data");
+		conn.commit();
+		final Undoer u = Context.getVMContext().overrideSchema(copy, "PUBLIC", "DKO_COPY");
+		try {
+			assertFalse(Diff.checksumDiff(Supplier.class, ds, copy).iterator().hasNext());
+			Supplier.ALL.use(copy).where(Supplier.SUPPID.eq(Integer.MAX_VALUE)).set(Supplier.NAME, "changed").update();
+			Supplier.ALL.use(copy).where(Supplier.SUPPID.eq(Integer.MIN_VALUE)).delete();
+			new Supplier().setSuppid(Integer.MAX_VALUE - 1).setStatus("T").insert(copy);
+			final List<RowChange<Supplier>> changes = new ArrayList<RowChange<Supplier>>();
+			for (final RowChange<Supplier> change : Diff.checksumDiff(Supplier.class, ds, copy)) changes.add(change);
+			assertEquals(3, changes.size());
+			new Bulk(ds).commitDiff(changes);
+			assertFalse(Diff.checksumDiff(Supplier.class, ds, copy).iterator().hasNext());
+		} finally {
+			u.undo();
+			stmt.execute("drop schema dko_copy cascade");
+			stmt.close();
+			conn.close();
+			Supplier.ALL.where(Supplier.STATUS.eq("T")).delete();
+		}
+	}
+
+	public void testMirroredDataSource() throws SQLException {
+		printTestName();
+		final long count = Item.ALL.count();
+		final DataSource down = new PassThruDS(ds) {
+			@Override
+			public Connection getConnection() throws SQLException {
+				throw new SQLException("down");
+			}
+		};
+		final MirroredDataSource mds = new MirroredDataSource(ds, down, ds);
+		mds.setFailureThreshold(1);
+		final Mirror bad = mds.getMirrors().get(0);
+		final Mirror good = mds.getMirrors().get(1);
+		mds.checkHealth();
+		assertEquals(CircuitState.OPEN, bad.getCircuitState());
+		assertEquals(CircuitState.CLOSED, good.getCircuitState());
+		// latency comes from the health check, not from how long connections are held
+		final double latency = good.getLatencyNanos();
+		assertTrue(latency > 0);
+		// reads all go to the healthy mirror
+		for (final Strategy s : new Strategy[] {MirroredDataSource.LEAST_OUTSTANDING,
+				MirroredDataSource.EWMA_LATENCY, MirroredDataSource.WEIGHTED, MirroredDataSource.RANDOM}) {
+			mds.setStrategy(s);
+			assertEquals(count, Item.ALL.use(mds).count());
+		}
+		assertEquals(1, bad.getFailureCount());
+		assertEquals(5, good.getRequestCount());
+		assertEquals(0, good.getOutstanding());
+		assertEquals(latency, good.getLatencyNanos(), 0);
+		assertEquals(0, mds.getPrimaryFallbackCount());
+		// a mirror too far behind is taken out of rotation until it catches up
+		mds.setReplicationLagQuery("values (5)", 1000);
+		mds.checkHealth();
+		assertEquals(5000, good.getReplicationLagMillis());
+		assertTrue(good.isLagging());
+		assertEquals(count, Item.ALL.use(mds).count());
+		assertEquals(1, mds.getPrimaryFallbackCount());
+		mds.setReplicationLagQuery("values (0.5)", 1000);
+		mds.setCircuitBreakerCooldown(0);
+		mds.checkHealth();
+		assertFalse(good.isLagging());
+		// a cooled down circuit lets one connection through, which reopens it on failure
+		assertEquals(CircuitState.HALF_OPEN, bad.getCircuitState());
+		mds.setStrategy(new Strategy() {
+			@Override
+			public Mirror choose(final List<Mirror> candidates) {
+				return candidates.get(0);
+			}
+		});
+		assertEquals(count, Item.ALL.use(mds).count());
+		assertEquals(4, bad.getFailureCount());
+		assertEquals(1, mds.getPrimaryFallbackCount());
+	}
+
+	public void testReadYourWrites() throws Exception {
+		printTestName();
+		final MirroredDataSource mds = new MirroredDataSource(ds, ds);
+		final Mirror mirror = mds.getMirrors().get(0);
+		final Undoer u = Context.getThreadContext().setReadYourWritesWindow(60 * 1000);
+		try {
+			Item.ALL.use(mds).count();
+			assertEquals(1, mirror.getRequestCount());
+			Item.ALL.use(mds).where(Item.ITEMID.eq("EST-1")).set(Item.ATTR1, "changed").update();
+			// the mirror isn't known to have caught up, so reads go to the primary
+			Item.ALL.use(mds).count();
+			assertEquals(1, mirror.getRequestCount());
+			assertEquals(1, mds.getPrimaryConsistentReadCount());
+			// until a health check shows it has
+			mds.setReplicationLagQuery("values (0)", -1);
+			mds.checkHealth();
+			Item.ALL.use(mds).count();
+			assertEquals(3, mirror.getRequestCount());
+			assertEquals(1, mds.getPrimaryConsistentReadCount());
+			// writes from parallel bulk writer threads count as this thread's
+			Thread.sleep(5);
+			final Item item = Item.ALL.get(Item.ITEMID.eq("EST-1"));
+			item.setAttr1("bulk");
+			assertEquals(1, new Bulk(mds).setParallelism(2).updateAll(Collections.singletonList(item)));
+			Item.ALL.use(mds).count();
+			assertEquals(3, mirror.getRequestCount());
+			assertEquals(2, mds.getPrimaryConsistentReadCount());
+			// with no window, reads go to the mirror right after writing
+			u.undo();
+			mds.setReplicationLagQuery(null, -1);
+			Item.ALL.use(mds).where(Item.ITEMID.eq("EST-1")).set(Item.ATTR1, "changed").update();
+			Item.ALL.use(mds).count();
+			assertEquals(4, mirror.getRequestCount());
+			assertEquals(2, mds.getPrimaryConsistentReadCount());
+		} finally {
+			u.undo();
+			Item.ALL.where(Item.ITEMID.eq("EST-1")).set(Item.ATTR1, "Large").update();
+		}
+	}
+
 	// mysql doesn't support outer joins
 //	public void testOuterJoin() throws SQLException {
 //		final long c1 = Item.ALL.count();